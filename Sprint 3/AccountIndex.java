@@ -0,0 +1,235 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * AccountIndex looks up accounts by username without reading every account
+ * into memory. Accounts are hashed into the shard files of a
+ * {@link DataLayout}; a shard is read only when one of its usernames is first
+ * looked up, and only a bounded number of shards stay in memory at once.
+ * Each shard file is a {@link UserStore}, so registrations are appended and
+ * checksummed.
+ *
+ * Shards are locked independently, so registrations and logins for users in
+ * different shards run in parallel. Writes also take the shard's file lock
+ * and reread the shard if another process changed it, so several app
+ * instances can share one data directory.
+ *
+ * Given an open {@link WriteAheadLog}, registrations are journaled and
+ * appended without forcing the shard; the journal's checkpoints force it.
+ */
+public class AccountIndex {
+    private static final int MAX_LOADED_SHARDS = 64;
+
+    private final DataLayout layout;
+    private final WriteAheadLog journal;
+    private final Shard[] shards = new Shard[DataLayout.SHARDS];
+    private final Map<Integer, Shard> loaded = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * One shard file and, once read, its accounts.
+     */
+    private static final class Shard {
+        final UserStore store;
+        Map<String, String> users; // Null until the shard is first used
+        String version; // The file version users was read from
+        boolean needsRepair; // The file has torn, damaged or old-format lines, cleaned up by the next write
+
+        Shard(UserStore store) {
+            this.store = store;
+        }
+
+        synchronized String lookup(String username) throws IOException {
+            String password = users().get(username);
+            if (password == null && !store.version().equals(version)) {
+                users = null; // Another process may have registered it since
+                password = users().get(username);
+            }
+            return password;
+        }
+
+        /**
+         * @return -1 if the username is taken; otherwise the journal position
+         *         to wait for, or 0 if the shard was forced itself.
+         */
+        synchronized long register(String username, String password, WriteAheadLog journal) throws IOException {
+            FileMutex lock = store.lock();
+            try {
+                if (journal != null) {
+                    journal.checkWritable();
+                }
+                refresh();
+                if (users.containsKey(username)) {
+                    return -1;
+                }
+                long position = 0;
+                if (journal != null && journal.isOpen()) {
+                    position = journal.write(store.getFile(), WriteAheadLog.ACCOUNT, -1, Arrays.asList(username, password),
+                            () -> store.append(username, password, false));
+                } else {
+                    store.append(username, password);
+                }
+                users.put(username, password);
+                version = store.version();
+                return position;
+            } finally {
+                lock.close();
+            }
+        }
+
+        synchronized void update(String username, String password, WriteAheadLog journal) throws IOException {
+            FileMutex lock = store.lock();
+            try {
+                if (journal != null) {
+                    journal.checkWritable();
+                }
+                refresh();
+                users.put(username, password);
+                if (journal != null && journal.isOpen()) {
+                    // The rewrite forces itself; journaling it keeps a replay from restoring the old password
+                    journal.write(store.getFile(), WriteAheadLog.ACCOUNT, -1, Arrays.asList(username, password),
+                            () -> store.rewrite(users));
+                } else {
+                    store.rewrite(users);
+                }
+                version = store.version();
+            } finally {
+                lock.close();
+            }
+        }
+
+        /**
+         * Rereads the shard if the file changed since it was read, cleaning
+         * up the file if it needs it. Only writers call this, holding the
+         * shard's file lock, so a torn line is never another process's
+         * append still under way.
+         */
+        private void refresh() throws IOException {
+            if (users == null || needsRepair || !store.version().equals(version)) {
+                users = new HashMap<>(store.load());
+                version = store.version();
+                needsRepair = false;
+            }
+        }
+
+        synchronized void unload() {
+            users = null;
+        }
+
+        /**
+         * Reads the shard for lookups without changing the file.
+         */
+        private Map<String, String> users() throws IOException {
+            if (users == null) {
+                version = store.version(); // Taken first, so a change made during the read shows up next time
+                Map<String, String> read = new HashMap<>();
+                needsRepair = store.read(read);
+                users = read;
+            }
+            return users;
+        }
+    }
+
+    /**
+     * Creates an index over a layout. Nothing is read until the first lookup.
+     *
+     * @param layout The data layout.
+     */
+    public AccountIndex(DataLayout layout) {
+        this(layout, null);
+    }
+
+    /**
+     * Creates an index over a layout whose writes are journaled while the
+     * journal is open.
+     *
+     * @param layout The data layout.
+     * @param journal The journal, or null to force every write to its shard.
+     */
+    public AccountIndex(DataLayout layout, WriteAheadLog journal) {
+        this.layout = layout;
+        this.journal = journal;
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(new UserStore(layout.accountFile(i)));
+        }
+    }
+
+    /**
+     * Looks up an account's stored password. Only the user's shard is read.
+     *
+     * @param username The username.
+     * @return The stored password, or null if there is no such account.
+     * @throws IOException If the shard cannot be read.
+     */
+    public String lookup(String username) throws IOException {
+        Shard shard = shards[DataLayout.shardOf(username)];
+        String password = shard.lookup(username);
+        touch(username);
+        return password;
+    }
+
+    /**
+     * @param username The username.
+     * @return true if the account exists.
+     * @throws IOException If the shard cannot be read.
+     */
+    public boolean contains(String username) throws IOException {
+        return lookup(username) != null;
+    }
+
+    /**
+     * Adds an account unless the username is taken.
+     *
+     * @param username The username.
+     * @param password The stored password.
+     * @return true if the account was added, false if the username was taken.
+     * @throws IOException If the shard cannot be read or written.
+     */
+    public boolean register(String username, String password) throws IOException {
+        long position = shards[DataLayout.shardOf(username)].register(username, password, journal);
+        touch(username);
+        if (position > 0) {
+            journal.awaitDurable(position); // Outside the shard's lock so registrations share a force
+        }
+        return position >= 0;
+    }
+
+    /**
+     * Replaces an existing account's stored password. Only the user's shard
+     * file is rewritten, atomically.
+     *
+     * @param username The username.
+     * @param password The new stored password.
+     * @throws IOException If the shard cannot be written.
+     */
+    public void update(String username, String password) throws IOException {
+        shards[DataLayout.shardOf(username)].update(username, password, journal);
+        touch(username);
+    }
+
+    public DataLayout getLayout() {
+        return layout;
+    }
+
+    /**
+     * Marks a shard as recently used and drops the least recently used shard
+     * when too many are loaded.
+     */
+    private void touch(String username) {
+        int number = DataLayout.shardOf(username);
+        Shard evicted = null;
+        synchronized (loaded) {
+            loaded.put(number, shards[number]);
+            if (loaded.size() > MAX_LOADED_SHARDS) {
+                Map.Entry<Integer, Shard> eldest = loaded.entrySet().iterator().next();
+                loaded.remove(eldest.getKey());
+                evicted = eldest.getValue();
+            }
+        }
+        if (evicted != null) {
+            evicted.unload(); // Outside the LRU lock so shard and LRU locks never nest
+        }
+    }
+}
@@ -0,0 +1,168 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+
+/**
+ * AnalyticsBenchmark times {@link MoodAnalytics} over a large set of
+ * synthetic users with one, two, four and more threads, and prints the
+ * speed-up over a single thread. The data is written once; pass
+ * {@code --dir} to keep it between runs, otherwise it goes to a temp
+ * directory that is deleted afterwards.
+ *
+ * Usage: {@code java AnalyticsBenchmark [--users 10000] [--days 120] [--threads 1,2,4,8] [--dir path]}
+ */
+public class AnalyticsBenchmark {
+    private static final LocalDate AS_OF = LocalDate.of(2024, 6, 30);
+    private static final int RUNS = 3;
+
+    /**
+     * Main method to run the benchmark.
+     *
+     * @param args Command line arguments.
+     */
+    public static void main(String[] args) throws IOException {
+        int users = 10_000;
+        int days = 120;
+        int[] threadCounts = defaultThreadCounts();
+        Path directory = null;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--users":
+                    users = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--days":
+                    days = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--threads":
+                    threadCounts = Arrays.stream(args[i + 1].split(",")).mapToInt(Integer::parseInt).toArray();
+                    break;
+                case "--dir":
+                    directory = Paths.get(args[i + 1]);
+                    break;
+                default:
+                    System.out.println("Unknown option: " + args[i]);
+                    return;
+            }
+        }
+
+        boolean temporary = directory == null;
+        Path root = temporary ? Files.createTempDirectory("mha-analytics") : directory;
+        DataLayout layout = new DataLayout(root);
+        try {
+            if (!Files.exists(layout.accountFile(0))) {
+                long start = System.nanoTime();
+                generate(layout, users, days);
+                System.out.printf("Wrote %d users with %d days each in %.1f s%n", users, days,
+                        (System.nanoTime() - start) / 1e9);
+            }
+
+            MoodAnalytics analytics = new MoodAnalytics(layout, AS_OF);
+            System.out.printf("%d processors%n", Runtime.getRuntime().availableProcessors());
+            System.out.printf("%-8s %10s %12s %8s%n", "threads", "best ms", "users/s", "speed-up");
+            double single = 0;
+            MoodAnalytics.Report last = null;
+            for (int threads : threadCounts) {
+                ForkJoinPool pool = new ForkJoinPool(threads);
+                try {
+                    analytics.run(pool); // Warm up
+                    long best = Long.MAX_VALUE;
+                    for (int run = 0; run < RUNS; run++) {
+                        long start = System.nanoTime();
+                        last = analytics.run(pool);
+                        best = Math.min(best, System.nanoTime() - start);
+                    }
+                    double millis = best / 1e6;
+                    if (single == 0) {
+                        single = millis * threads; // Scaled in case the first row is not one thread
+                    }
+                    System.out.printf("%-8d %10.1f %12.0f %7.2fx%n", threads, millis,
+                            last.getUsers() / (millis / 1000), single / millis);
+                } finally {
+                    pool.shutdown();
+                }
+            }
+            if (last != null) {
+                System.out.println();
+                last.print(System.out);
+            }
+        } finally {
+            if (temporary) {
+                deleteTree(root);
+            }
+        }
+    }
+
+    /**
+     * Writes account shards and mood files directly, skipping password
+     * hashing and the log, which would dominate the set-up time. A fifth of
+     * the users get a mood that falls through the last month.
+     */
+    private static void generate(DataLayout layout, int users, int days) throws IOException {
+        Random random = new Random(42);
+        List<Map<String, String>> shards = new ArrayList<>();
+        for (int i = 0; i < DataLayout.SHARDS; i++) {
+            shards.add(new HashMap<>());
+        }
+        LocalDate first = AS_OF.minusDays(days - 1);
+        StringBuilder lines = new StringBuilder();
+        for (int u = 0; u < users; u++) {
+            String username = "synthetic" + u;
+            shards.get(DataLayout.shardOf(username)).put(username, "synthetic");
+            boolean declining = random.nextInt(5) == 0;
+            double base = 3 + random.nextDouble() * 5;
+            lines.setLength(0);
+            for (int d = 0; d < days; d++) {
+                if (random.nextInt(10) == 0) {
+                    continue; // Skipped day
+                }
+                LocalDate date = first.plusDays(d);
+                double mood = base + random.nextGaussian() + (date.getDayOfWeek().getValue() >= 6 ? 0.5 : 0);
+                if (declining && d >= days - MoodAnalytics.TREND_DAYS) {
+                    mood -= (d - (days - MoodAnalytics.TREND_DAYS)) * 0.15;
+                }
+                int rating = (int) Math.max(MoodEntry.MIN_RATING, Math.min(MoodEntry.MAX_RATING, Math.round(mood)));
+                lines.append(new MoodEntry(date, rating, "synthetic day " + d).toLine()).append('\n');
+            }
+            Path moodFile = layout.moodFile(username);
+            Files.createDirectories(moodFile.getParent());
+            try (BufferedWriter writer = Files.newBufferedWriter(moodFile, StandardCharsets.UTF_8)) {
+                writer.write(lines.toString());
+            }
+        }
+        for (int i = 0; i < DataLayout.SHARDS; i++) {
+            Files.createDirectories(layout.accountFile(i).getParent());
+            new UserStore(layout.accountFile(i)).rewrite(shards.get(i));
+        }
+    }
+
+    private static int[] defaultThreadCounts() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        List<Integer> counts = new ArrayList<>();
+        for (int threads = 1; threads < processors; threads *= 2) {
+            counts.add(threads);
+        }
+        counts.add(processors);
+        return counts.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
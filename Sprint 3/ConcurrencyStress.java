@@ -0,0 +1,225 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ConcurrencyStress runs many simulated sessions against one shared pair of
+ * repositories, the way a server would, and then checks nothing was lost.
+ * Every thread registers and logs in its own users and also writes moods for
+ * users shared with the other threads, each thread on its own days, while
+ * reading histories back. Afterwards the data is reopened with fresh
+ * repositories and every user's entries and summaries are checked against
+ * what was written. With {@code --wal on} every write goes through a
+ * {@link WriteAheadLog}, which is closed, and so checkpointed, before the
+ * check.
+ *
+ * Usage: {@code java ConcurrencyStress [--threads 16] [--users 200] [--days 60] [--wal off]}
+ */
+public class ConcurrencyStress {
+    private static final LocalDate FIRST_DAY = LocalDate.of(2020, 1, 1);
+    private static final int SHARED_USERS = 8;
+
+    /**
+     * Main method to run the stress test.
+     *
+     * @param args Command line arguments.
+     */
+    public static void main(String[] args) throws Exception {
+        int threads = 16;
+        int users = 200;
+        int days = 60;
+        boolean journaled = false;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--threads":
+                    threads = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--users":
+                    users = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--days":
+                    days = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--wal":
+                    journaled = args[i + 1].equals("on");
+                    break;
+                default:
+                    System.out.println("Unknown option: " + args[i]);
+                    return;
+            }
+        }
+
+        Path root = Files.createTempDirectory("mha-stress");
+        DataLayout layout = new DataLayout(root);
+        PasswordHasher hasher = new PasswordHasher(1_000); // Cheap hashing keeps the focus on storage
+        Durability durability = Durability.group(2);
+        AtomicLong operations = new AtomicLong();
+
+        WriteAheadLog journal = new WriteAheadLog(layout, durability);
+        if (journaled && !journal.open()) {
+            System.out.println("The journal is turned off in the storage settings");
+            return;
+        }
+        FileUserRepository userRepository = new FileUserRepository(layout, hasher, journal);
+        FileMoodRepository moodRepository = new FileMoodRepository(layout, durability, journal);
+        for (int s = 0; s < SHARED_USERS; s++) {
+            userRepository.register(sharedUser(s), "password");
+            moodRepository.createUser(sharedUser(s));
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                int userCount = users;
+                int dayCount = days;
+                int threadCount = threads;
+                results.add(pool.submit(() -> {
+                    runThread(thread, threadCount, userCount, dayCount, userRepository, moodRepository, operations);
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } catch (ExecutionException e) {
+            System.out.println("Stress thread failed: " + e.getCause());
+            System.exit(1);
+        } finally {
+            pool.shutdown();
+        }
+        long elapsed = System.nanoTime() - start;
+        moodRepository.close();
+        journal.close();
+
+        System.out.printf("%d threads, %d operations in %.2f s (%.0f ops/s)%n",
+                threads, operations.get(), elapsed / 1e9, operations.get() / (elapsed / 1e9));
+
+        int problems = verify(layout, hasher, threads, users, days);
+        System.out.println(problems == 0 ? "All users verified." : problems + " problems found.");
+        System.exit(problems == 0 ? 0 : 1);
+    }
+
+    /**
+     * One simulated client: its own users end to end, plus its own days of
+     * the shared users.
+     */
+    private static void runThread(int thread, int threads, int users, int days, UserRepository userRepository,
+            FileMoodRepository moodRepository, AtomicLong operations) throws IOException {
+        for (int u = thread; u < users; u += threads) {
+            String username = ownUser(u);
+            if (!userRepository.register(username, "pw" + u)) {
+                throw new IllegalStateException("Could not register " + username);
+            }
+            moodRepository.createUser(username);
+            if (!userRepository.authenticate(username, "pw" + u) || userRepository.authenticate(username, "wrong")) {
+                throw new IllegalStateException("Login check failed for " + username);
+            }
+            operations.addAndGet(3);
+
+            for (int d = 0; d < days; d++) {
+                moodRepository.save(username, new MoodEntry(FIRST_DAY.plusDays(d), rating(u, d), "own day " + d));
+                operations.incrementAndGet();
+            }
+            int seen = moodRepository.forEach(username, null, null, entry -> { });
+            if (seen != days) {
+                throw new IllegalStateException(username + " read back " + seen + " of " + days + " entries");
+            }
+            operations.incrementAndGet();
+
+            // Shared users: this thread owns every threads-th day
+            String shared = sharedUser(u % SHARED_USERS);
+            for (int d = thread; d < days * 4; d += threads) {
+                moodRepository.save(shared, new MoodEntry(FIRST_DAY.plusDays(d), rating(d, thread), "shared day " + d));
+                moodRepository.count(shared);
+                operations.addAndGet(2);
+            }
+        }
+    }
+
+    /**
+     * Reopens the data with fresh repositories and checks every user.
+     *
+     * @return The number of problems found.
+     */
+    private static int verify(DataLayout layout, PasswordHasher hasher, int threads, int users, int days)
+            throws IOException {
+        int problems = 0;
+        UserRepository userRepository = new FileUserRepository(layout, hasher);
+        try (FileMoodRepository moodRepository = new FileMoodRepository(layout, Durability.SYNC)) {
+            for (int u = 0; u < users; u++) {
+                String username = ownUser(u);
+                if (!userRepository.authenticate(username, "pw" + u)) {
+                    System.out.println("Cannot log in as " + username);
+                    problems++;
+                }
+                MoodSession session = moodRepository.session(username);
+                for (int d = 0; d < days; d++) {
+                    if (session.getLog().rating(FIRST_DAY.plusDays(d)) != rating(u, d)) {
+                        System.out.println(username + " has a wrong rating on day " + d);
+                        problems++;
+                    }
+                }
+                problems += checkAggregates(session);
+            }
+            for (int s = 0; s < SHARED_USERS; s++) {
+                MoodSession session = moodRepository.session(sharedUser(s));
+                for (int d = 0; d < days * 4; d++) {
+                    int rating = session.getLog().rating(FIRST_DAY.plusDays(d));
+                    if (rating != 0 && rating != rating(d, d % threads)) { // Each day belongs to one thread
+                        System.out.println(sharedUser(s) + " has a wrong rating on day " + d);
+                        problems++;
+                    }
+                }
+                problems += checkAggregates(session);
+            }
+        }
+        return problems;
+    }
+
+    /**
+     * Checks a session's saved summaries against ones rebuilt from its log.
+     *
+     * @return 1 if they differ, 0 if they match.
+     */
+    private static int checkAggregates(MoodSession session) {
+        MoodAggregates saved = session.getAggregates();
+        MoodAggregates rebuilt = MoodAggregates.rebuild(session.getLog().series());
+        LocalDate day = FIRST_DAY;
+        for (int i = 0; i < 12; i++, day = day.plusMonths(1)) {
+            MoodAggregates.Stats a = saved.month(day);
+            MoodAggregates.Stats b = rebuilt.month(day);
+            if (a.getCount() != b.getCount() || a.getSum() != b.getSum()) {
+                System.out.println(session.getUsername() + " summaries differ in " + day.getMonth());
+                return 1;
+            }
+        }
+        if (saved.longestStreak() != rebuilt.longestStreak()) {
+            System.out.println(session.getUsername() + " longest streak differs");
+            return 1;
+        }
+        return 0;
+    }
+
+    private static String ownUser(int index) {
+        return "stress" + index;
+    }
+
+    private static String sharedUser(int index) {
+        return "shared" + index;
+    }
+
+    private static int rating(int a, int b) {
+        return 1 + Math.floorMod(a * 31 + b * 7, 10);
+    }
+}
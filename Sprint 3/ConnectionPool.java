@@ -0,0 +1,211 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ConnectionPool hands out a fixed number of JDBC connections, so requests
+ * do not pay for opening a database connection each time. Each connection
+ * keeps the statements it has prepared, so a statement is parsed once per
+ * connection instead of once per call. Connections are opened on first need
+ * and run with auto-commit off; work runs in a transaction through
+ * {@link #inTransaction}.
+ */
+public class ConnectionPool implements Closeable {
+    private static final long BORROW_TIMEOUT_SECONDS = 30;
+
+    private final String url;
+    private final Properties info;
+    private final Semaphore permits;
+    private final ConcurrentLinkedDeque<Lease> idle = new ConcurrentLinkedDeque<>();
+    private volatile boolean closed;
+
+    /**
+     * Work done in one transaction on a borrowed connection.
+     */
+    public interface Work<T> {
+        T run(Lease lease) throws SQLException, IOException;
+    }
+
+    /**
+     * A borrowed connection and the statements prepared on it. Closing the
+     * lease hands the connection back to the pool.
+     */
+    public final class Lease implements AutoCloseable {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+        private boolean broken;
+
+        private Lease(Connection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * Returns a prepared statement for some SQL, preparing it on first use.
+         * The statement belongs to the lease; do not close it.
+         *
+         * @param sql The SQL.
+         * @return The statement, with its parameters cleared.
+         * @throws SQLException If the statement cannot be prepared.
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            } else {
+                statement.clearParameters();
+            }
+            return statement;
+        }
+
+        /**
+         * Creates a plain statement, for SQL that runs once, such as creating
+         * tables. The caller closes it.
+         *
+         * @return The statement.
+         * @throws SQLException If the statement cannot be created.
+         */
+        public Statement createStatement() throws SQLException {
+            return connection.createStatement();
+        }
+
+        /**
+         * Commits the current transaction.
+         *
+         * @throws SQLException If the commit fails.
+         */
+        public void commit() throws SQLException {
+            connection.commit();
+        }
+
+        /**
+         * Rolls back the current transaction. If that fails the connection is
+         * closed instead of going back to the pool.
+         */
+        public void rollback() {
+            try {
+                connection.rollback();
+            } catch (SQLException e) {
+                broken = true;
+            }
+        }
+
+        /**
+         * Hands the connection back to the pool.
+         */
+        @Override
+        public void close() {
+            if (broken || closed) {
+                discard(this);
+            } else {
+                idle.push(this);
+            }
+            permits.release();
+            if (closed) {
+                drain(); // The pool closed while this was borrowed
+            }
+        }
+    }
+
+    /**
+     * Creates a pool. No connection is opened until one is needed.
+     *
+     * @param url The JDBC URL; the driver must be on the class path.
+     * @param info The connection properties, such as "user" and "password".
+     * @param size The most connections open at once.
+     */
+    public ConnectionPool(String url, Properties info, int size) {
+        this.url = url;
+        this.info = info;
+        this.permits = new Semaphore(size, true);
+    }
+
+    /**
+     * Borrows a connection, waiting while all of them are in use.
+     *
+     * @return The lease; close it to hand the connection back.
+     * @throws SQLException If no connection is free in time or a new one cannot be opened.
+     */
+    public Lease borrow() throws SQLException {
+        try {
+            if (!permits.tryAcquire(BORROW_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                throw new SQLException("Timed out waiting for a database connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a database connection", e);
+        }
+        try {
+            if (closed) {
+                throw new SQLException("Connection pool is closed");
+            }
+            Lease lease = idle.poll(); // Most recently used first, so idle connections stay idle
+            if (lease == null) {
+                Connection connection = DriverManager.getConnection(url, info);
+                connection.setAutoCommit(false);
+                lease = new Lease(connection);
+            }
+            return lease;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Runs work in a transaction on a borrowed connection. The transaction
+     * is committed if the work returns and rolled back if it throws.
+     *
+     * @param work The work.
+     * @return What the work returned.
+     * @throws IOException If the work or the database fails.
+     */
+    public <T> T inTransaction(Work<T> work) throws IOException {
+        try (Lease lease = borrow()) {
+            try {
+                T result = work.run(lease);
+                lease.commit();
+                return result;
+            } catch (SQLException | IOException | RuntimeException e) {
+                lease.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new IOException("Database error: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Closes the idle connections; borrowed ones are closed as they come back.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        drain();
+    }
+
+    private void drain() {
+        Lease lease;
+        while ((lease = idle.poll()) != null) {
+            discard(lease);
+        }
+    }
+
+    private static void discard(Lease lease) {
+        try {
+            lease.connection.close(); // Closes its statements too
+        } catch (SQLException e) {
+            System.out.println("Failed to close database connection: " + e.getMessage());
+        }
+    }
+}
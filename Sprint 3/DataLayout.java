@@ -0,0 +1,231 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * DataLayout decides where every data file lives. Instead of one user file
+ * and one mood file per user in the working directory, files are spread over
+ * 256 shard directories picked from a hash of the username:
+ *
+ * <pre>
+ * data/accounts/&lt;shard&gt;.txt             accounts whose names hash to the shard
+ * data/moods/&lt;shard&gt;/&lt;user&gt;_mood.txt    the user's mood log (and its .agg, .idx and .bin copies)
+ * data/moods.col                        columnar snapshot of every user's ratings
+ * data/wal/&lt;sequence&gt;.wal               journal of writes since the last checkpoint (see {@link WriteAheadLog})
+ * data/db/moodtracker.*                 the embedded database, if storage=jdbc (see {@link JdbcStorageProvider})
+ * data/storage.properties               storage settings; data/security.properties holds the hashing cost
+ * </pre>
+ *
+ * so no directory or account file grows past a small slice of the total.
+ * Every setting in the properties files can be overridden with an
+ * {@code mha.<key>} system property (see {@link #setting}).
+ */
+public class DataLayout {
+    public static final int SHARDS = 256;
+    public static final String STORAGE_SETTINGS = "storage.properties";
+    public static final String SECURITY_SETTINGS = "security.properties";
+    private static final String LEGACY_USER_FILE = "user_data.txt";
+
+    private final Path root;
+
+    /**
+     * Creates a layout rooted at a directory.
+     *
+     * @param root The data directory.
+     */
+    public DataLayout(Path root) {
+        this.root = root;
+    }
+
+    /**
+     * @return The layout used by the app: a "data" directory under the working directory.
+     */
+    public static DataLayout standard() {
+        return new DataLayout(Paths.get("data"));
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * @param username The username.
+     * @return The shard the user belongs to, 0 to {@link #SHARDS} - 1.
+     */
+    public static int shardOf(String username) {
+        return Math.floorMod(username.hashCode(), SHARDS);
+    }
+
+    /**
+     * @param shard The shard number.
+     * @return The account file of a shard.
+     */
+    public Path accountFile(int shard) {
+        return root.resolve("accounts").resolve(shardName(shard) + ".txt");
+    }
+
+    /**
+     * @param username The username.
+     * @return The directory holding the user's mood files.
+     */
+    public Path moodDirectory(String username) {
+        return root.resolve("moods").resolve(shardName(shardOf(username)));
+    }
+
+    /**
+     * @param username The username.
+     * @return The user's mood log.
+     */
+    public Path moodFile(String username) {
+        return moodDirectory(username).resolve(username + "_mood.txt");
+    }
+
+    /**
+     * @param username The username.
+     * @return The user's saved mood summaries.
+     */
+    public Path aggregatesFile(String username) {
+        return moodDirectory(username).resolve(username + "_mood.agg");
+    }
+
+    /**
+     * @param username The username.
+     * @return The user's saved reason search index.
+     */
+    public Path reasonIndexFile(String username) {
+        return moodDirectory(username).resolve(username + "_mood.idx");
+    }
+
+    /**
+     * @param username The username.
+     * @return The binary copy of the user's mood log (see {@link MoodBinaryFormat}).
+     */
+    public Path binaryFile(String username) {
+        return MoodBinaryFormat.binaryFileFor(moodFile(username));
+    }
+
+    /**
+     * @return The columnar snapshot of every user's ratings (see {@link SnapshotCompactor}).
+     */
+    public Path snapshotFile() {
+        return root.resolve("moods.col");
+    }
+
+    /**
+     * @return The directory of the embedded database used by the JDBC backend.
+     */
+    public Path databaseDirectory() {
+        return root.resolve("db");
+    }
+
+    /**
+     * Reads one of the deployment's settings files. A missing file means
+     * nothing is configured; one that cannot be read is reported and treated
+     * the same way.
+     *
+     * @param fileName The file in the data directory, such as {@link #STORAGE_SETTINGS}.
+     * @return The settings, without the system property overrides.
+     */
+    public Properties settings(String fileName) {
+        Properties settings = new Properties();
+        try (InputStream in = Files.newInputStream(root.resolve(fileName))) {
+            settings.load(in);
+        } catch (NoSuchFileException e) {
+            // Nothing configured
+        } catch (IOException e) {
+            System.out.println("Failed to read " + fileName + ": " + e.getMessage());
+        }
+        return settings;
+    }
+
+    /**
+     * Looks a setting up, letting an {@code mha.<key>} system property
+     * override the file.
+     *
+     * @param settings The settings read by {@link #settings(String)}.
+     * @param key The setting.
+     * @param defaultValue The value if neither sets it.
+     * @return The value.
+     */
+    public static String setting(Properties settings, String key, String defaultValue) {
+        return System.getProperty("mha." + key, settings.getProperty(key, defaultValue));
+    }
+
+    /**
+     * Looks a whole-number setting up the way {@link #setting} does.
+     *
+     * @param settings The settings read by {@link #settings(String)}.
+     * @param key The setting.
+     * @param defaultValue The value if neither sets it, or if it is invalid.
+     * @param minimum The smallest valid value.
+     * @return The value; the default, with a message, if it is not a number of at least the minimum.
+     */
+    public static int intSetting(Properties settings, String key, int defaultValue, int minimum) {
+        String value = setting(settings, key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            if (parsed < minimum) {
+                throw new NumberFormatException();
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring invalid " + key + " setting: " + value);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Moves data written by versions before sharding (user_data.txt and
+     * &lt;user&gt;_mood.txt in a flat directory) into this layout. The old user
+     * file is renamed afterwards so the move only happens once. Accounts whose
+     * names are not valid usernames (such as {@code ../x}, which would reach
+     * outside the data directory) are skipped and their files left where they
+     * are.
+     *
+     * @param legacyDirectory The directory the old version ran in.
+     * @return The number of accounts moved.
+     * @throws IOException If the files cannot be moved.
+     */
+    public int migrateFlatLayout(Path legacyDirectory) throws IOException {
+        Path legacyUsers = legacyDirectory.resolve(LEGACY_USER_FILE);
+        if (!Files.exists(legacyUsers)) {
+            return 0;
+        }
+        Map<String, String> users = new UserStore(legacyUsers).load();
+        AccountIndex accounts = new AccountIndex(this);
+        int moved = 0;
+        for (Map.Entry<String, String> user : users.entrySet()) {
+            String username = user.getKey();
+            if (!UserRepository.isValidUsername(username)) {
+                System.out.println("Skipping legacy account with invalid username: " + username);
+                continue;
+            }
+            accounts.register(username, user.getValue());
+            Files.createDirectories(moodDirectory(username));
+            for (String suffix : new String[] {"_mood.txt", "_mood.agg"}) {
+                Path legacyFile = legacyDirectory.resolve(username + suffix);
+                if (Files.exists(legacyFile)) {
+                    Files.move(legacyFile, moodDirectory(username).resolve(username + suffix),
+                            StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            moved++;
+        }
+        Files.move(legacyUsers, legacyUsers.resolveSibling(LEGACY_USER_FILE + ".migrated"),
+                StandardCopyOption.REPLACE_EXISTING);
+        return moved;
+    }
+
+    private static String shardName(int shard) {
+        return String.format("%02x", shard);
+    }
+}
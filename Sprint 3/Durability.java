@@ -0,0 +1,120 @@
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Durability decides when a submitted mood is forced to disk, trading submit
+ * latency against how much a power loss can take with it:
+ *
+ * <ul>
+ * <li>{@code sync}: every submit waits for a force that covers it. Submits
+ *     arriving while a force is running share the next one.</li>
+ * <li>{@code group}: every submit still waits for a force, but forces run at
+ *     most once per window, so bursts of submits share one. Nothing
+ *     acknowledged is lost; a submit can take up to one window longer.</li>
+ * <li>{@code os}: never forces; the operating system writes pages back in its
+ *     own time. Fastest, but the last few seconds of submits can be lost.</li>
+ * </ul>
+ *
+ * The policy comes from {@code storage.properties} in the data directory
+ * ({@code durability=group} and {@code durability.group.millis=10}), and can be
+ * overridden with the {@code mha.durability} and
+ * {@code mha.durability.group.millis} system properties.
+ */
+public final class Durability {
+    private static final String POLICY_KEY = "durability";
+    private static final String WINDOW_KEY = "durability.group.millis";
+    private static final int DEFAULT_WINDOW_MILLIS = 10;
+
+    /**
+     * The ways a log can be kept on disk.
+     */
+    public enum Policy {
+        SYNC, GROUP, OS
+    }
+
+    public static final Durability SYNC = new Durability(Policy.SYNC, 0);
+    public static final Durability OS = new Durability(Policy.OS, 0);
+
+    private final Policy policy;
+    private final int windowMillis;
+
+    private Durability(Policy policy, int windowMillis) {
+        this.policy = policy;
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Creates a group commit policy.
+     *
+     * @param windowMillis The shortest time between two forces of one log.
+     * @return The policy.
+     */
+    public static Durability group(int windowMillis) {
+        if (windowMillis < 0) {
+            throw new IllegalArgumentException("Window must not be negative");
+        }
+        return new Durability(Policy.GROUP, windowMillis);
+    }
+
+    /**
+     * Reads the policy configured for a deployment.
+     *
+     * @param layout The data layout holding storage.properties.
+     * @return The policy; {@link #SYNC} if nothing is configured.
+     */
+    public static Durability configured(DataLayout layout) {
+        Properties settings = layout.settings(DataLayout.STORAGE_SETTINGS);
+        String policy = DataLayout.setting(settings, POLICY_KEY, null);
+        String window = DataLayout.setting(settings, WINDOW_KEY, null);
+        try {
+            return parse(policy, window);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Ignoring invalid durability setting: " + policy + " " + window);
+            return SYNC;
+        }
+    }
+
+    /**
+     * Parses a policy name and group commit window.
+     *
+     * @param policy "sync", "group" or "os"; null for sync.
+     * @param windowMillis The group commit window; null for the default.
+     * @return The policy.
+     */
+    public static Durability parse(String policy, String windowMillis) {
+        if (policy == null) {
+            return SYNC;
+        }
+        switch (Policy.valueOf(policy.trim().toUpperCase(Locale.ROOT))) {
+            case GROUP:
+                return group(windowMillis == null ? DEFAULT_WINDOW_MILLIS : Integer.parseInt(windowMillis.trim()));
+            case OS:
+                return OS;
+            default:
+                return SYNC;
+        }
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public int getWindowMillis() {
+        return windowMillis;
+    }
+
+    /**
+     * Creates the commit tracker for one log.
+     *
+     * @param force Forces the log's file to disk.
+     * @return The tracker.
+     */
+    GroupCommit newGroupCommit(GroupCommit.Force force) {
+        return new GroupCommit(policy == Policy.OS ? null : force, policy == Policy.GROUP ? windowMillis : 0);
+    }
+
+    @Override
+    public String toString() {
+        return policy == Policy.GROUP ? "group(" + windowMillis + "ms)" : policy.name().toLowerCase(Locale.ROOT);
+    }
+}
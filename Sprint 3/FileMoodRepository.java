@@ -0,0 +1,277 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+
+/**
+ * FileMoodRepository keeps moods in the per-user mood logs of a
+ * {@link DataLayout}. Saves go through a {@link MoodSession} so the running
+ * summaries stay in step with the log. Recently used sessions are kept open
+ * so repeated work for one user does not reopen the log every time.
+ *
+ * The repository is safe to share between threads. Work for different users
+ * runs in parallel; each user's submissions are serialized by their session.
+ * Every operation holds the read side of the user's striped lock, and a
+ * session is only opened or closed under the write side, so a session is
+ * never closed while another thread is using it.
+ */
+public class FileMoodRepository implements MoodRepository {
+    private static final int MAX_OPEN_SESSIONS = 256;
+    private static final int LOCK_STRIPES = 64;
+    private static final OperationMetrics SAVES = Metrics.operation("saveMoodData");
+    private static final OperationMetrics BATCH_SAVES = Metrics.operation("saveMoodBatch");
+    private static final OperationMetrics READS = Metrics.operation("readMoodHistory");
+
+    private final DataLayout layout;
+    private final Durability durability;
+    private final WriteAheadLog journal;
+    private final ConcurrentHashMap<String, OpenSession> sessions = new ConcurrentHashMap<>();
+    private final StripedLocks locks = new StripedLocks(LOCK_STRIPES);
+
+    /**
+     * An open session and when it was last used, for choosing which to close.
+     */
+    private static final class OpenSession {
+        final MoodSession session;
+        volatile long lastUsed = System.nanoTime();
+
+        OpenSession(MoodSession session) {
+            this.session = session;
+        }
+    }
+
+    /**
+     * Work done with a user's open session.
+     */
+    private interface SessionTask<T> {
+        T run(MoodSession session) throws IOException;
+    }
+
+    /**
+     * Creates a repository over a data directory, using the durability policy
+     * configured for it.
+     *
+     * @param layout The data layout.
+     */
+    public FileMoodRepository(DataLayout layout) {
+        this(layout, Durability.configured(layout));
+    }
+
+    /**
+     * Creates a repository over a data directory.
+     *
+     * @param layout The data layout.
+     * @param durability When saved moods are forced to disk.
+     */
+    public FileMoodRepository(DataLayout layout, Durability durability) {
+        this(layout, durability, null);
+    }
+
+    /**
+     * Creates a repository over a data directory whose mood logs journal
+     * their writes while the journal is open. Logs opened before the journal
+     * is open force their own writes until they are closed.
+     *
+     * @param layout The data layout.
+     * @param durability When saved moods are forced to disk if the journal is not open.
+     * @param journal The journal, or null.
+     */
+    public FileMoodRepository(DataLayout layout, Durability durability, WriteAheadLog journal) {
+        this.layout = layout;
+        this.durability = durability;
+        this.journal = journal;
+    }
+
+    /**
+     * Creates an empty mood file for a new user.
+     */
+    @Override
+    public void createUser(String username) throws IOException {
+        Path moodFile = layout.moodFile(username);
+        Files.createDirectories(moodFile.getParent());
+        try (BufferedWriter writer = Files.newBufferedWriter(moodFile, StandardCharsets.UTF_8)) {
+            writer.newLine();
+        }
+    }
+
+    @Override
+    public boolean hasEntry(String username, LocalDate date) throws IOException {
+        return withSession(username, session -> session.getLog().contains(date));
+    }
+
+    @Override
+    public void save(String username, MoodEntry entry) throws IOException {
+        timed(SAVES, username, session -> {
+            session.submit(entry);
+            return null;
+        });
+    }
+
+    @Override
+    public long saveAll(String username, Iterator<MoodEntry> entries) throws IOException {
+        return timed(BATCH_SAVES, username, session -> session.submitAll(entries));
+    }
+
+    @Override
+    public int forEach(String username, LocalDate from, LocalDate to, MoodLog.EntryVisitor visitor) throws IOException {
+        return forEach(username, from, to, Integer.MAX_VALUE, visitor);
+    }
+
+    @Override
+    public int forEach(String username, LocalDate from, LocalDate to, int limit, MoodLog.EntryVisitor visitor)
+            throws IOException {
+        return timed(READS, username, session -> session.getLog().forEach(from, to, limit, visitor));
+    }
+
+    @Override
+    public int transferNative(String username, LocalDate from, LocalDate to, WritableByteChannel target) throws IOException {
+        return withSession(username, session -> session.getLog().transferTo(from, to, target));
+    }
+
+    @Override
+    public int[] searchReasons(String username, String query) throws IOException {
+        return withSession(username, session -> session.searchReasons(query));
+    }
+
+    @Override
+    public int count(String username) throws IOException {
+        return withSession(username, session -> session.getLog().size());
+    }
+
+    /**
+     * Returns an open session for a user, opening it if needed. The caller
+     * keeps using it after this returns, so it should only be held by a
+     * single-user front end such as the GUI, which closes it with
+     * {@link #closeSession(String)} on logout; with more users than the
+     * repository keeps open, the session could be closed under it.
+     *
+     * @param username The user.
+     * @return The session; it stays owned by the repository.
+     * @throws IOException If the user's mood log cannot be opened.
+     */
+    public MoodSession session(String username) throws IOException {
+        return withSession(username, session -> session);
+    }
+
+    /**
+     * Closes a user's session if it is open, releasing their mood log for
+     * other processes.
+     *
+     * @param username The user.
+     * @throws IOException If the session cannot be closed cleanly.
+     */
+    public void closeSession(String username) throws IOException {
+        Lock lock = locks.forKey(username).writeLock();
+        lock.lock();
+        try {
+            OpenSession open = sessions.remove(username);
+            if (open != null) {
+                open.session.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes every open session.
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (String username : sessions.keySet()) {
+            try {
+                closeSession(username);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Runs work with a user's session like {@link #withSession}, recording
+     * how long it took.
+     */
+    private <T> T timed(OperationMetrics metrics, String username, SessionTask<T> task) throws IOException {
+        long start = metrics.start();
+        try {
+            T result = withSession(username, task);
+            metrics.succeeded(start);
+            return result;
+        } catch (IOException | RuntimeException e) {
+            metrics.failed(start);
+            throw e;
+        }
+    }
+
+    /**
+     * Runs work with a user's session under the read side of their lock,
+     * opening the session first if needed.
+     */
+    private <T> T withSession(String username, SessionTask<T> task) throws IOException {
+        ReadWriteLock lock = locks.forKey(username);
+        OpenSession open;
+        boolean opened = false;
+        lock.readLock().lock();
+        try {
+            open = sessions.get(username);
+            if (open == null) {
+                lock.readLock().unlock();
+                lock.writeLock().lock();
+                try {
+                    open = sessions.get(username);
+                    if (open == null) {
+                        open = new OpenSession(MoodSession.open(layout, username, durability, journal));
+                        sessions.put(username, open);
+                        opened = true;
+                    }
+                } finally {
+                    lock.readLock().lock(); // Downgrade, so the session cannot be closed before the task runs
+                    lock.writeLock().unlock();
+                }
+            }
+            open.lastUsed = System.nanoTime();
+            return task.run(open.session);
+        } finally {
+            lock.readLock().unlock();
+            if (opened) {
+                closeIdleSessions();
+            }
+        }
+    }
+
+    /**
+     * Closes the least recently used sessions while too many are open.
+     */
+    private void closeIdleSessions() {
+        while (sessions.size() > MAX_OPEN_SESSIONS) {
+            String eldest = null;
+            long eldestUse = Long.MAX_VALUE;
+            for (Map.Entry<String, OpenSession> entry : sessions.entrySet()) {
+                if (entry.getValue().lastUsed < eldestUse) {
+                    eldestUse = entry.getValue().lastUsed;
+                    eldest = entry.getKey();
+                }
+            }
+            if (eldest == null) {
+                return;
+            }
+            try {
+                closeSession(eldest);
+            } catch (IOException e) {
+                System.out.println("Failed to close mood data for " + eldest + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * FileMutex is an exclusive lock on a lock file, respected both by other
+ * threads of this process and by other processes using the same data
+ * directory (several app windows on a shared terminal server, or the command
+ * line next to the GUI). The operating system lock does not stop other
+ * threads of the same process, so each lock file also has an in-process
+ * permit. The lock file is left in place after release; it holds no data.
+ */
+final class FileMutex implements Closeable {
+    private static final ConcurrentHashMap<Path, Semaphore> PERMITS = new ConcurrentHashMap<>();
+
+    private final Semaphore permit;
+    private final FileChannel channel;
+    private boolean released;
+
+    private FileMutex(Semaphore permit, FileChannel channel) {
+        this.permit = permit;
+        this.channel = channel;
+    }
+
+    /**
+     * Takes the lock, waiting for other holders to release it.
+     *
+     * @param lockFile The lock file; created if missing.
+     * @return The held lock.
+     * @throws IOException If the lock file cannot be opened or locked.
+     */
+    static FileMutex acquire(Path lockFile) throws IOException {
+        Semaphore permit = permitFor(lockFile);
+        permit.acquireUninterruptibly();
+        try {
+            FileChannel channel = open(lockFile);
+            try {
+                channel.lock();
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            return new FileMutex(permit, channel);
+        } catch (IOException | RuntimeException e) {
+            permit.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Takes the lock only if nobody holds it.
+     *
+     * @param lockFile The lock file; created if missing.
+     * @return The held lock, or null if another thread or process holds it.
+     * @throws IOException If the lock file cannot be opened.
+     */
+    static FileMutex tryAcquire(Path lockFile) throws IOException {
+        Semaphore permit = permitFor(lockFile);
+        if (!permit.tryAcquire()) {
+            return null;
+        }
+        try {
+            FileChannel channel = open(lockFile);
+            FileLock lock;
+            try {
+                lock = channel.tryLock();
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            if (lock == null) {
+                channel.close();
+                permit.release();
+                return null;
+            }
+            return new FileMutex(permit, channel);
+        } catch (IOException | RuntimeException e) {
+            permit.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Releases the lock. Safe to call from any thread, and more than once.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (released) {
+            return;
+        }
+        released = true;
+        try {
+            channel.close(); // Also releases the operating system lock
+        } finally {
+            permit.release();
+        }
+    }
+
+    private static Semaphore permitFor(Path lockFile) {
+        return PERMITS.computeIfAbsent(lockFile.toAbsolutePath().normalize(), path -> new Semaphore(1));
+    }
+
+    private static FileChannel open(Path lockFile) throws IOException {
+        Files.createDirectories(lockFile.toAbsolutePath().getParent());
+        return FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+}
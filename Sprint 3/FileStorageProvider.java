@@ -0,0 +1,76 @@
+import java.io.IOException;
+
+/**
+ * FileStorageProvider is the flat-file backend: sharded account files and
+ * per-user mood logs under a {@link DataLayout}, with writes journaled in the
+ * {@link WriteAheadLog}. It is the default backend.
+ */
+public class FileStorageProvider implements StorageProvider {
+    public static final String NAME = "file";
+
+    private final WriteAheadLog journal;
+    private final FileUserRepository users;
+    private final FileMoodRepository moods;
+
+    private FileStorageProvider(DataLayout layout, Durability durability, PasswordHasher passwordHasher) {
+        this.journal = new WriteAheadLog(layout, durability);
+        this.users = new FileUserRepository(layout, passwordHasher, journal);
+        this.moods = new FileMoodRepository(layout, durability, journal);
+    }
+
+    /**
+     * Opens the files of a data directory with its configured durability
+     * policy and password hashing.
+     *
+     * @param layout The data layout.
+     * @return The open provider.
+     * @throws IOException If the journal cannot be replayed.
+     */
+    public static FileStorageProvider open(DataLayout layout) throws IOException {
+        return open(layout, Durability.configured(layout), PasswordHasher.configured(layout));
+    }
+
+    /**
+     * Opens the files of a data directory, replaying whatever the journal
+     * kept from the last run.
+     *
+     * @param layout The data layout.
+     * @param durability When writes are forced to disk.
+     * @param passwordHasher The hasher used for new and upgraded passwords.
+     * @return The open provider.
+     * @throws IOException If the journal cannot be replayed.
+     */
+    public static FileStorageProvider open(DataLayout layout, Durability durability, PasswordHasher passwordHasher)
+            throws IOException {
+        FileStorageProvider provider = new FileStorageProvider(layout, durability, passwordHasher);
+        provider.journal.open();
+        return provider;
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public FileUserRepository getUserRepository() {
+        return users;
+    }
+
+    @Override
+    public FileMoodRepository getMoodRepository() {
+        return moods;
+    }
+
+    /**
+     * Closes the mood logs, then checkpoints and closes the journal.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            moods.close();
+        } finally {
+            journal.close();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+import java.io.IOException;
+
+/**
+ * FileUserRepository stores accounts in the sharded account files of a
+ * {@link DataLayout}, with passwords hashed by a {@link PasswordHasher}.
+ */
+public class FileUserRepository implements UserRepository {
+    private static final OperationMetrics REGISTERS = Metrics.operation("saveUserData");
+    private static final OperationMetrics LOGINS = Metrics.operation("login");
+
+    private final AccountIndex accounts;
+    private final PasswordHasher passwordHasher;
+
+    /**
+     * Creates a repository over a data directory.
+     *
+     * @param layout The data layout.
+     * @param passwordHasher The hasher used for new and upgraded passwords.
+     */
+    public FileUserRepository(DataLayout layout, PasswordHasher passwordHasher) {
+        this(layout, passwordHasher, null);
+    }
+
+    /**
+     * Creates a repository over a data directory whose account writes are
+     * journaled while the journal is open.
+     *
+     * @param layout The data layout.
+     * @param passwordHasher The hasher used for new and upgraded passwords.
+     * @param journal The journal, or null to force every write to its shard.
+     */
+    public FileUserRepository(DataLayout layout, PasswordHasher passwordHasher, WriteAheadLog journal) {
+        this.accounts = new AccountIndex(layout, journal);
+        this.passwordHasher = passwordHasher;
+    }
+
+    @Override
+    public boolean register(String username, String password) throws IOException {
+        long start = REGISTERS.start();
+        try {
+            boolean created = accounts.register(username, passwordHasher.hash(password));
+            REGISTERS.succeeded(start);
+            return created;
+        } catch (IOException | RuntimeException e) {
+            REGISTERS.failed(start);
+            throw e;
+        }
+    }
+
+    /**
+     * Checks a login. Only the account shard holding the username is read.
+     * A password stored in plain text or at a lower cost is re-hashed after a
+     * successful check.
+     */
+    @Override
+    public boolean authenticate(String username, String password) throws IOException {
+        long start = LOGINS.start();
+        try {
+            boolean matches = check(username, password);
+            LOGINS.succeeded(start);
+            return matches;
+        } catch (IOException | RuntimeException e) {
+            LOGINS.failed(start);
+            throw e;
+        }
+    }
+
+    private boolean check(String username, String password) throws IOException {
+        String stored = accounts.lookup(username);
+        if (stored == null) {
+            passwordHasher.hash(password); // Take as long as a real check so unknown names are not revealed
+            return false;
+        }
+        if (!passwordHasher.verify(password, stored)) {
+            return false;
+        }
+        if (passwordHasher.needsRehash(stored)) {
+            accounts.update(username, passwordHasher.hash(password));
+        }
+        return true;
+    }
+
+    @Override
+    public boolean exists(String username) throws IOException {
+        return accounts.contains(username);
+    }
+}
@@ -0,0 +1,130 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * GroupCommit makes writers to one file wait until their bytes are on disk,
+ * while letting writers that arrive together share a single force. The first
+ * writer to wait becomes the leader: it waits out the rest of the group
+ * commit window, then forces once on behalf of everyone who appended so far.
+ * Writers that arrive while a force is running wait for the next one.
+ *
+ * Positions are counted in bytes ever appended, never reset, so a log that is
+ * rewritten by a compaction keeps counting from where it was.
+ */
+final class GroupCommit {
+
+    /**
+     * Forces a file to disk.
+     */
+    interface Force {
+        void force() throws IOException;
+    }
+
+    private final Force force; // Null when the operating system decides
+    private final long windowNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private long requested;
+    private long durable;
+    private boolean forcing;
+    private long nextForceAt;
+    private long forces;
+
+    GroupCommit(Force force, long windowMillis) {
+        this.force = force;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.nextForceAt = System.nanoTime();
+    }
+
+    /**
+     * Waits until everything up to a position is on disk, forcing it if no
+     * other writer is already about to.
+     *
+     * @param position The number of bytes appended that must be durable.
+     * @throws IOException If the force fails or the wait is interrupted.
+     */
+    void awaitDurable(long position) throws IOException {
+        if (force == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (position > requested) {
+                requested = position;
+            }
+            while (durable < position) {
+                if (forcing) {
+                    changed.await();
+                    continue;
+                }
+                forcing = true; // This writer leads the next force
+                try {
+                    long delay;
+                    while ((delay = nextForceAt - System.nanoTime()) > 0) {
+                        changed.awaitNanos(delay); // Others join the group meanwhile
+                    }
+                    long target = requested;
+                    if (durable < target) { // A compaction may have covered it while we waited
+                        lock.unlock();
+                        try {
+                            force.force();
+                        } finally {
+                            lock.lock();
+                        }
+                        durable = Math.max(durable, target);
+                        forces++;
+                        nextForceAt = System.nanoTime() + windowNanos;
+                    }
+                } finally {
+                    forcing = false;
+                    changed.signalAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the mood log to reach disk");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records that everything up to a position reached disk some other way,
+     * such as a compaction forcing the rewritten file.
+     *
+     * @param position The number of bytes appended that are durable.
+     */
+    void markDurable(long position) {
+        lock.lock();
+        try {
+            if (position > durable) {
+                durable = position;
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if writers wait for a force, false if the operating system decides.
+     */
+    boolean forcesWrites() {
+        return force != null;
+    }
+
+    /**
+     * @return The number of forces run so far.
+     */
+    long getForces() {
+        lock.lock();
+        try {
+            return forces;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,252 @@
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * JdbcMoodRepository keeps moods in the {@code moods} table of the embedded
+ * database (see {@link JdbcStorageProvider}), one row per user and day. The
+ * table's primary key is (username, epoch_day), so a day lookup or a date
+ * range is an index seek and rows come back in date order without a sort.
+ *
+ * Bulk saves are sent as JDBC batches of {@link #BATCH_SIZE} rows, each batch
+ * in its own transaction. The repository is safe to share between threads;
+ * every call borrows its own connection from the pool.
+ */
+public class JdbcMoodRepository implements MoodRepository {
+    static final int BATCH_SIZE = 500;
+    private static final OperationMetrics SAVES = Metrics.operation("saveMoodData");
+    private static final OperationMetrics BATCH_SAVES = Metrics.operation("saveMoodBatch");
+    private static final OperationMetrics READS = Metrics.operation("readMoodHistory");
+
+    private static final String EXISTS = "SELECT 1 FROM moods WHERE username = ? AND epoch_day = ?";
+    private static final String DELETE = "DELETE FROM moods WHERE username = ? AND epoch_day = ?";
+    private static final String INSERT = "INSERT INTO moods (username, epoch_day, rating, reason) VALUES (?, ?, ?, ?)";
+    private static final String RANGE = "SELECT epoch_day, rating, reason FROM moods"
+            + " WHERE username = ? AND epoch_day BETWEEN ? AND ? ORDER BY epoch_day";
+    private static final String REASONS = "SELECT epoch_day, reason FROM moods WHERE username = ? ORDER BY epoch_day";
+    private static final String COUNT = "SELECT COUNT(*) FROM moods WHERE username = ?";
+
+    private final ConnectionPool pool;
+
+    /**
+     * Creates a repository over a database whose tables already exist.
+     *
+     * @param pool The connections to the database.
+     */
+    public JdbcMoodRepository(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Does nothing: a user's moods are rows, so there is nothing to create
+     * before the first one is saved.
+     */
+    @Override
+    public void createUser(String username) {
+    }
+
+    @Override
+    public boolean hasEntry(String username, LocalDate date) throws IOException {
+        return pool.inTransaction(lease -> {
+            PreparedStatement exists = lease.prepare(EXISTS);
+            exists.setString(1, username);
+            exists.setInt(2, epochDay(date));
+            try (ResultSet rows = exists.executeQuery()) {
+                return rows.next();
+            }
+        });
+    }
+
+    /**
+     * Saves a mood by deleting any row for the day and inserting the new one
+     * in one transaction, which every SQL database supports, unlike the
+     * various upsert statements.
+     */
+    @Override
+    public void save(String username, MoodEntry entry) throws IOException {
+        long start = SAVES.start();
+        try {
+            pool.inTransaction(lease -> write(lease, username, List.of(entry)));
+            SAVES.succeeded(start);
+        } catch (IOException | RuntimeException e) {
+            SAVES.failed(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public long saveAll(String username, Iterator<MoodEntry> entries) throws IOException {
+        long start = BATCH_SAVES.start();
+        try {
+            long saved = 0;
+            Map<Integer, MoodEntry> batch = new LinkedHashMap<>();
+            while (entries.hasNext()) {
+                MoodEntry entry = entries.next();
+                batch.remove(epochDay(entry.getDate())); // A later entry for the day wins, in its own place
+                batch.put(epochDay(entry.getDate()), entry);
+                saved++;
+                if (batch.size() == BATCH_SIZE) {
+                    List<MoodEntry> rows = new ArrayList<>(batch.values());
+                    pool.inTransaction(lease -> write(lease, username, rows));
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                List<MoodEntry> rows = new ArrayList<>(batch.values());
+                pool.inTransaction(lease -> write(lease, username, rows));
+            }
+            BATCH_SAVES.succeeded(start);
+            return saved;
+        } catch (IOException | RuntimeException e) {
+            BATCH_SAVES.failed(start);
+            throw e;
+        }
+    }
+
+    /**
+     * Replaces the rows of some days, one batch of deletes then one batch of
+     * inserts.
+     */
+    private static Void write(ConnectionPool.Lease lease, String username, List<MoodEntry> entries) throws SQLException {
+        PreparedStatement delete = lease.prepare(DELETE);
+        for (MoodEntry entry : entries) {
+            delete.setString(1, username);
+            delete.setInt(2, epochDay(entry.getDate()));
+            delete.addBatch();
+        }
+        delete.executeBatch();
+        PreparedStatement insert = lease.prepare(INSERT);
+        for (MoodEntry entry : entries) {
+            insert.setString(1, username);
+            insert.setInt(2, epochDay(entry.getDate()));
+            insert.setInt(3, entry.getRating());
+            insert.setString(4, entry.getReason());
+            insert.addBatch();
+        }
+        insert.executeBatch();
+        return null;
+    }
+
+    @Override
+    public int forEach(String username, LocalDate from, LocalDate to, MoodLog.EntryVisitor visitor) throws IOException {
+        return forEach(username, from, to, Integer.MAX_VALUE, visitor);
+    }
+
+    @Override
+    public int forEach(String username, LocalDate from, LocalDate to, int limit, MoodLog.EntryVisitor visitor)
+            throws IOException {
+        if (limit <= 0) {
+            return 0;
+        }
+        long start = READS.start();
+        try {
+            int streamed = pool.inTransaction(lease -> {
+                PreparedStatement range = lease.prepare(RANGE);
+                range.setString(1, username);
+                range.setInt(2, bound(from, Integer.MIN_VALUE));
+                range.setInt(3, bound(to, Integer.MAX_VALUE));
+                range.setMaxRows(limit == Integer.MAX_VALUE ? 0 : limit);
+                range.setFetchSize(Math.min(limit, BATCH_SIZE)); // Some drivers refuse to fetch past the limit
+                int count = 0;
+                try (ResultSet rows = range.executeQuery()) {
+                    while (rows.next()) {
+                        visitor.visit(new MoodEntry(LocalDate.ofEpochDay(rows.getInt(1)), rows.getInt(2),
+                                rows.getString(3)));
+                        count++;
+                    }
+                }
+                return count;
+            });
+            READS.succeeded(start);
+            return streamed;
+        } catch (IOException | RuntimeException e) {
+            READS.failed(start);
+            throw e;
+        }
+    }
+
+    /**
+     * Always returns -1: rows are not stored as mood lines, so there is
+     * nothing to copy without decoding.
+     */
+    @Override
+    public int transferNative(String username, LocalDate from, LocalDate to, WritableByteChannel target) {
+        return -1;
+    }
+
+    /**
+     * Finds matching days by reading the user's reasons and matching their
+     * words the way {@link ReasonIndex} does. There is no word index in the
+     * database, so unlike the file backend this reads every reason; SQL
+     * {@code LIKE} cannot express whole-word matches portably.
+     */
+    @Override
+    public int[] searchReasons(String username, String query) throws IOException {
+        List<String> words = new ArrayList<>(ReasonIndex.terms(query));
+        if (words.isEmpty()) {
+            return new int[0];
+        }
+        String prefix = words.remove(words.size() - 1);
+        return pool.inTransaction(lease -> {
+            PreparedStatement reasons = lease.prepare(REASONS);
+            reasons.setString(1, username);
+            int[] days = new int[16];
+            int matches = 0;
+            try (ResultSet rows = reasons.executeQuery()) {
+                while (rows.next()) {
+                    Set<String> terms = ReasonIndex.terms(rows.getString(2));
+                    if (terms.containsAll(words) && terms.stream().anyMatch(term -> term.startsWith(prefix))) {
+                        if (matches == days.length) {
+                            days = Arrays.copyOf(days, matches * 2);
+                        }
+                        days[matches++] = rows.getInt(1);
+                    }
+                }
+            }
+            return Arrays.copyOf(days, matches);
+        });
+    }
+
+    @Override
+    public int count(String username) throws IOException {
+        return pool.inTransaction(lease -> {
+            PreparedStatement count = lease.prepare(COUNT);
+            count.setString(1, username);
+            try (ResultSet rows = count.executeQuery()) {
+                rows.next();
+                return rows.getInt(1);
+            }
+        });
+    }
+
+    /**
+     * Does nothing; the connections belong to the {@link JdbcStorageProvider}.
+     */
+    @Override
+    public void close() {
+    }
+
+    private static int epochDay(LocalDate date) {
+        return Math.toIntExact(date.toEpochDay());
+    }
+
+    /**
+     * @return A range bound as an epoch day, clamped to what the column holds.
+     */
+    private static int bound(LocalDate date, int ifNull) {
+        if (date == null) {
+            return ifNull;
+        }
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, date.toEpochDay()));
+    }
+}
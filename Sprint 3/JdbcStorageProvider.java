@@ -0,0 +1,134 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Statement;
+import java.util.Properties;
+
+/**
+ * JdbcStorageProvider keeps accounts and moods in an embedded, file-based SQL
+ * database instead of flat files:
+ *
+ * <pre>
+ * accounts (username VARCHAR(64) PRIMARY KEY, password VARCHAR(512))
+ * moods    (username VARCHAR(64), epoch_day INTEGER, rating SMALLINT, reason CLOB,
+ *           PRIMARY KEY (username, epoch_day))
+ * </pre>
+ *
+ * Only {@code java.sql} is used, so any embedded database with a JDBC driver
+ * works; the driver is put on the class path when the app is started, and
+ * is not shipped with it. Selected with {@code storage=jdbc} and configured
+ * in {@code storage.properties} (or {@code mha.} system properties):
+ *
+ * <ul>
+ * <li>{@code jdbc.url}: the database; by default an H2 database in
+ *     {@code data/db/} ({@code jdbc:h2:file:data/db/moodtracker}).
+ *     {@code jdbc:sqlite:data/db/moodtracker.db} works the same way.</li>
+ * <li>{@code jdbc.user} and {@code jdbc.password}: the login, if the database wants one.</li>
+ * <li>{@code jdbc.pool}: the most connections open at once, 4 by default.</li>
+ * </ul>
+ *
+ * The tables are created on first use. When a commit reaches the disk is up
+ * to the database; the {@code durability} setting only applies to files.
+ */
+public class JdbcStorageProvider implements StorageProvider {
+    public static final String NAME = "jdbc";
+    private static final String URL_KEY = "jdbc.url";
+    private static final String USER_KEY = "jdbc.user";
+    private static final String PASSWORD_KEY = "jdbc.password";
+    private static final String POOL_KEY = "jdbc.pool";
+    private static final int DEFAULT_POOL_SIZE = 4;
+
+    private static final String[] SCHEMA = {
+        "CREATE TABLE IF NOT EXISTS accounts (username VARCHAR(64) NOT NULL PRIMARY KEY,"
+                + " password VARCHAR(512) NOT NULL)",
+        "CREATE TABLE IF NOT EXISTS moods (username VARCHAR(64) NOT NULL, epoch_day INTEGER NOT NULL,"
+                + " rating SMALLINT NOT NULL, reason CLOB, PRIMARY KEY (username, epoch_day))"
+    };
+
+    private final ConnectionPool pool;
+    private final JdbcUserRepository users;
+    private final JdbcMoodRepository moods;
+
+    private JdbcStorageProvider(ConnectionPool pool, PasswordHasher passwordHasher) {
+        this.pool = pool;
+        this.users = new JdbcUserRepository(pool, passwordHasher);
+        this.moods = new JdbcMoodRepository(pool);
+    }
+
+    /**
+     * Opens the database configured for a deployment.
+     *
+     * @param layout The data layout; the default database lives in its db directory.
+     * @param settings The contents of storage.properties.
+     * @return The open provider.
+     * @throws IOException If the database cannot be opened or its tables created.
+     */
+    static JdbcStorageProvider open(DataLayout layout, Properties settings) throws IOException {
+        String url = DataLayout.setting(settings, URL_KEY, null);
+        if (url == null) {
+            Files.createDirectories(layout.databaseDirectory());
+            url = "jdbc:h2:file:" + layout.databaseDirectory().toAbsolutePath().resolve("moodtracker");
+        }
+        Properties info = new Properties();
+        String user = DataLayout.setting(settings, USER_KEY, null);
+        if (user != null) {
+            info.setProperty("user", user);
+            info.setProperty("password", DataLayout.setting(settings, PASSWORD_KEY, ""));
+        }
+        int poolSize = DataLayout.intSetting(settings, POOL_KEY, DEFAULT_POOL_SIZE, 1);
+        return open(url, info, poolSize, PasswordHasher.configured(layout));
+    }
+
+    /**
+     * Opens a database, creating the tables if they do not exist yet.
+     *
+     * @param url The JDBC URL; the driver must be on the class path.
+     * @param info The connection properties, such as "user" and "password".
+     * @param poolSize The most connections open at once.
+     * @param passwordHasher The hasher used for new and upgraded passwords.
+     * @return The open provider.
+     * @throws IOException If the database cannot be opened or its tables created.
+     */
+    public static JdbcStorageProvider open(String url, Properties info, int poolSize, PasswordHasher passwordHasher)
+            throws IOException {
+        ConnectionPool pool = new ConnectionPool(url, info, poolSize);
+        try {
+            pool.inTransaction(lease -> {
+                try (Statement statement = lease.createStatement()) {
+                    for (String sql : SCHEMA) {
+                        statement.executeUpdate(sql);
+                    }
+                }
+                return null;
+            });
+        } catch (IOException e) {
+            pool.close();
+            throw new IOException("Cannot open database " + url + " (is its JDBC driver on the class path?): "
+                    + e.getMessage(), e);
+        }
+        return new JdbcStorageProvider(pool, passwordHasher);
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public JdbcUserRepository getUserRepository() {
+        return users;
+    }
+
+    @Override
+    public JdbcMoodRepository getMoodRepository() {
+        return moods;
+    }
+
+    /**
+     * Closes the pool's connections; the last one closed also closes an
+     * embedded database.
+     */
+    @Override
+    public void close() {
+        pool.close();
+    }
+}
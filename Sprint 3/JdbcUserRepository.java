@@ -0,0 +1,124 @@
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+
+/**
+ * JdbcUserRepository stores accounts in the {@code accounts} table of the
+ * embedded database (see {@link JdbcStorageProvider}), with passwords hashed
+ * by a {@link PasswordHasher} just as in the account files.
+ */
+public class JdbcUserRepository implements UserRepository {
+    private static final OperationMetrics REGISTERS = Metrics.operation("saveUserData");
+    private static final OperationMetrics LOGINS = Metrics.operation("login");
+
+    private static final String SELECT = "SELECT password FROM accounts WHERE username = ?";
+    private static final String INSERT = "INSERT INTO accounts (username, password) VALUES (?, ?)";
+    private static final String UPDATE = "UPDATE accounts SET password = ? WHERE username = ?";
+
+    private final ConnectionPool pool;
+    private final PasswordHasher passwordHasher;
+
+    /**
+     * Creates a repository over a database whose tables already exist.
+     *
+     * @param pool The connections to the database.
+     * @param passwordHasher The hasher used for new and upgraded passwords.
+     */
+    public JdbcUserRepository(ConnectionPool pool, PasswordHasher passwordHasher) {
+        this.pool = pool;
+        this.passwordHasher = passwordHasher;
+    }
+
+    @Override
+    public boolean register(String username, String password) throws IOException {
+        long start = REGISTERS.start();
+        try {
+            String hash = passwordHasher.hash(password); // Outside the transaction; hashing is slow on purpose
+            boolean created = pool.inTransaction(lease -> {
+                if (lookup(lease, username) != null) {
+                    return false;
+                }
+                PreparedStatement insert = lease.prepare(INSERT);
+                insert.setString(1, username);
+                insert.setString(2, hash);
+                try {
+                    insert.executeUpdate();
+                    return true;
+                } catch (SQLException e) {
+                    if (!isDuplicateKey(e)) {
+                        throw e;
+                    }
+                    lease.rollback(); // Registered by someone else since the lookup
+                    return false;
+                }
+            });
+            REGISTERS.succeeded(start);
+            return created;
+        } catch (IOException | RuntimeException e) {
+            REGISTERS.failed(start);
+            throw e;
+        }
+    }
+
+    /**
+     * Checks a login. A password stored in plain text or at a lower cost is
+     * re-hashed after a successful check.
+     */
+    @Override
+    public boolean authenticate(String username, String password) throws IOException {
+        long start = LOGINS.start();
+        try {
+            boolean matches = check(username, password);
+            LOGINS.succeeded(start);
+            return matches;
+        } catch (IOException | RuntimeException e) {
+            LOGINS.failed(start);
+            throw e;
+        }
+    }
+
+    private boolean check(String username, String password) throws IOException {
+        String stored = pool.inTransaction(lease -> lookup(lease, username));
+        if (stored == null) {
+            passwordHasher.hash(password); // Take as long as a real check so unknown names are not revealed
+            return false;
+        }
+        if (!passwordHasher.verify(password, stored)) {
+            return false;
+        }
+        if (passwordHasher.needsRehash(stored)) {
+            String hash = passwordHasher.hash(password);
+            pool.inTransaction(lease -> {
+                PreparedStatement update = lease.prepare(UPDATE);
+                update.setString(1, hash);
+                update.setString(2, username);
+                return update.executeUpdate();
+            });
+        }
+        return true;
+    }
+
+    @Override
+    public boolean exists(String username) throws IOException {
+        return pool.inTransaction(lease -> lookup(lease, username)) != null;
+    }
+
+    private static String lookup(ConnectionPool.Lease lease, String username) throws SQLException {
+        PreparedStatement select = lease.prepare(SELECT);
+        select.setString(1, username);
+        try (ResultSet rows = select.executeQuery()) {
+            return rows.next() ? rows.getString(1) : null;
+        }
+    }
+
+    /**
+     * @return true if a statement failed on a unique key; SQLState class 23
+     *         is an integrity constraint violation in every driver that sets it.
+     */
+    private static boolean isDuplicateKey(SQLException e) {
+        return e instanceof SQLIntegrityConstraintViolationException
+                || (e.getSQLState() != null && e.getSQLState().startsWith("23"));
+    }
+}
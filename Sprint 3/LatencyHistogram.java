@@ -0,0 +1,149 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram counts durations in log-linear buckets, in the style of
+ * HdrHistogram: every power of two is split into 64 equal buckets, so any
+ * recorded value is known to within about 1.5% whether it is a microsecond
+ * or a minute. Recording is one array increment with no locking or
+ * allocation, so it is cheap enough to leave on in every hot path.
+ *
+ * Durations are recorded in nanoseconds. Values past about four hours land
+ * in the last bucket.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int HALF_SUB_BUCKETS = 1 << (SUB_BUCKET_BITS - 1);
+    private static final int MAX_VALUE_BITS = 44;
+    private static final int BUCKETS = (MAX_VALUE_BITS - SUB_BUCKET_BITS + 2) * HALF_SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Records one duration.
+     *
+     * @param nanos The duration; negative values count as zero.
+     */
+    public void record(long nanos) {
+        counts.incrementAndGet(indexOf(Math.max(0, nanos)));
+    }
+
+    /**
+     * Takes a consistent-enough copy to report from. Recording carries on
+     * while the copy is taken, so a few values may be missing from it.
+     *
+     * @return The copy.
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new Snapshot(copy);
+    }
+
+    /**
+     * Forgets everything recorded so far.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+    }
+
+    /**
+     * The counts at one moment, with the statistics worked out from them.
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long total;
+
+        Snapshot(long[] counts) {
+            this.counts = counts;
+            long sum = 0;
+            for (long count : counts) {
+                sum += count;
+            }
+            this.total = sum;
+        }
+
+        /**
+         * @return The number of durations recorded.
+         */
+        public long getCount() {
+            return total;
+        }
+
+        /**
+         * @param percentile The percentile, 0 to 100.
+         * @return The duration in nanoseconds that the given share of values do not exceed, or 0 if empty.
+         */
+        public long percentile(double percentile) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return highestValueIn(i);
+                }
+            }
+            return highestValueIn(counts.length - 1);
+        }
+
+        /**
+         * @return The longest duration in nanoseconds, or 0 if empty.
+         */
+        public long max() {
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] > 0) {
+                    return highestValueIn(i);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * @return The mean duration in nanoseconds, from bucket midpoints, or 0 if empty.
+         */
+        public double mean() {
+            if (total == 0) {
+                return 0;
+            }
+            double sum = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    sum += counts[i] * ((lowestValueIn(i) + highestValueIn(i)) / 2.0);
+                }
+            }
+            return sum / total;
+        }
+    }
+
+    /**
+     * Values below 128 get a bucket each. Above that, a value's top seven bits
+     * pick the bucket within its power of two.
+     */
+    static int indexOf(long value) {
+        int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        int index = shift * HALF_SUB_BUCKETS + (int) (value >>> shift);
+        return Math.min(index, BUCKETS - 1);
+    }
+
+    static long lowestValueIn(int index) {
+        if (index < 2 * HALF_SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / HALF_SUB_BUCKETS - 1;
+        return (long) (index - shift * HALF_SUB_BUCKETS) << shift;
+    }
+
+    static long highestValueIn(int index) {
+        if (index < 2 * HALF_SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / HALF_SUB_BUCKETS - 1;
+        return ((long) (index - shift * HALF_SUB_BUCKETS + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,175 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+
+/**
+ * MappedMoodReader gives random access to a binary mood file (see
+ * {@link MoodBinaryFormat}) through a memory-mapped buffer. Looking up the Nth
+ * entry or a date only touches the bytes of that entry; nothing else is decoded.
+ * {@link MoodLog#readPoints(Path)} reads ratings this way, for analytics and
+ * snapshots, whenever the binary copy still matches the log.
+ */
+public class MappedMoodReader implements Closeable {
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final String stamp;
+    private final int count;
+    private final int entryStart;
+    private final int blobStart;
+
+    private MappedMoodReader(FileChannel channel, MappedByteBuffer buffer, String stamp, int count, int entryStart,
+            int blobStart) {
+        this.channel = channel;
+        this.buffer = buffer;
+        this.stamp = stamp;
+        this.count = count;
+        this.entryStart = entryStart;
+        this.blobStart = blobStart;
+    }
+
+    /**
+     * Maps a binary mood file and checks its header.
+     *
+     * @param file The binary mood file.
+     * @return The reader.
+     * @throws IOException If the file cannot be read or is not a supported mood file.
+     */
+    public static MappedMoodReader open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < MoodBinaryFormat.HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("Not a mood file: " + file);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt(0) != MoodBinaryFormat.MAGIC) {
+                throw new IOException("Not a mood file: " + file);
+            }
+            short version = buffer.getShort(4);
+            if (version != MoodBinaryFormat.VERSION) {
+                throw new IOException("Unsupported mood file version " + version + ": " + file);
+            }
+            int count = buffer.getInt(8);
+            long blobStart = buffer.getLong(12);
+            int entryStart = MoodBinaryFormat.HEADER_SIZE + (buffer.getShort(MoodBinaryFormat.HEADER_SIZE - 2) & 0xFFFF);
+            if (count < 0 || entryStart > size
+                    || blobStart < entryStart + (long) MoodBinaryFormat.ENTRY_SIZE * count || blobStart > size) {
+                throw new IOException("Corrupt mood file header: " + file);
+            }
+            byte[] stamp = new byte[entryStart - MoodBinaryFormat.HEADER_SIZE];
+            ((ByteBuffer) buffer.duplicate().position(MoodBinaryFormat.HEADER_SIZE)).get(stamp);
+            return new MappedMoodReader(channel, buffer, new String(stamp, StandardCharsets.UTF_8), count, entryStart,
+                    (int) blobStart);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The {@link MoodLog#stamp()} of the log the file was made from.
+     */
+    public String getStamp() {
+        return stamp;
+    }
+
+    /**
+     * @return The number of entries in the file.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @param index The entry number, 0 being the oldest.
+     * @return The entry's day as an epoch day.
+     */
+    public int epochDay(int index) {
+        return buffer.getInt(entryOffset(index));
+    }
+
+    /**
+     * @param index The entry number, 0 being the oldest.
+     * @return The entry's mood rating.
+     */
+    public int rating(int index) {
+        return buffer.get(entryOffset(index) + 4);
+    }
+
+    /**
+     * Decodes the reason of one entry.
+     *
+     * @param index The entry number, 0 being the oldest.
+     * @return The reason text.
+     */
+    public String reason(int index) {
+        int blob = blobStart + buffer.getInt(entryOffset(index) + 5);
+        int length = buffer.getInt(blob);
+        ByteBuffer bytes = buffer.duplicate();
+        bytes.position(blob + 4).limit(blob + 4 + length);
+        return StandardCharsets.UTF_8.decode(bytes).toString();
+    }
+
+    /**
+     * Decodes one full entry.
+     *
+     * @param index The entry number, 0 being the oldest.
+     * @return The entry.
+     */
+    public MoodEntry entry(int index) {
+        return new MoodEntry(LocalDate.ofEpochDay(epochDay(index)), rating(index), reason(index));
+    }
+
+    /**
+     * Binary searches for a day.
+     *
+     * @param date The day to find.
+     * @return The entry number, or {@code -(insertionPoint) - 1} if the day has no entry.
+     */
+    public int indexOf(LocalDate date) {
+        long target = date.toEpochDay();
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int day = epochDay(mid);
+            if (day < target) {
+                low = mid + 1;
+            } else if (day > target) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Looks up the entry for a day.
+     *
+     * @param date The day to find.
+     * @return The entry, or null if the day has no entry.
+     */
+    public MoodEntry find(LocalDate date) {
+        int index = indexOf(date);
+        return index < 0 ? null : entry(index);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private int entryOffset(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Entry " + index + " of " + count);
+        }
+        return entryStart + index * MoodBinaryFormat.ENTRY_SIZE;
+    }
+}
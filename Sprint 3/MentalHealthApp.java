@@ -2,54 +2,208 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.*;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * MentalHealthApp is a Java Swing application that allows users to register, log in,
  * submit their mood ratings, and view their mood history.
+ *
+ * <p>Start-up can be timed with {@code -Dmha.startup.timing=print} (see
+ * {@link StartupTimer}), and shortened with an application class-data sharing
+ * archive, which lets the JVM map the app's classes instead of loading them.
+ * The classes must come from a jar for this:
+ *
+ * <pre>
+ * jar cfe mha.jar MentalHealthApp *.class
+ * java -XX:ArchiveClassesAtExit=mha.jsa -Dmha.startup.timing=exit -jar mha.jar   (once, to record the archive)
+ * java -XX:SharedArchiveFile=mha.jsa -jar mha.jar
+ * </pre>
+ *
+ * The archive must be recorded again whenever the jar or the JDK changes; on
+ * Java 19 and later, {@code -XX:+AutoCreateSharedArchive -XX:SharedArchiveFile=mha.jsa}
+ * does that by itself.
+ *
+ * <p>The GUI always keeps its data in files: its history view and graph work
+ * on the user's open mood log. The {@code storage} setting (see
+ * {@link StorageProvider}) applies to the command line and {@link MoodServer}.
  */
 public class MentalHealthApp {
+    private static final String LOGIN_CARD = "login";
+    private static final String REGISTER_CARD = "register";
+    private static final String MOOD_CARD = "mood";
+    private static final String HISTORY_CARD = "history";
+    private static final OperationMetrics USER_DATA_LOADS = Metrics.operation("loadUserData");
+    private static final OperationMetrics HISTORY_LOADS = Metrics.operation("loadMoodHistory");
+
     // Main frame and panels
     private JFrame frame;
+    private JPanel cards; // Holds every panel; only one is shown at a time
+    private final CardLayout cardLayout = new CardLayout();
+    private final Set<String> builtCards = new HashSet<>(); // Panels are built the first time they are needed
     private JPanel loginPanel, registerPanel, moodPanel, historyPanel;
     private JTextField usernameField, regUsernameField, moodField;
     private JPasswordField passwordField, regPasswordField;
-    private JTextArea moodDescriptionField, moodHistoryArea;
-    private JLabel messageLabel, moodMessageLabel;
-    private Map<String, String> userDatabase;
+    private JTextArea moodDescriptionField;
+    private JTextField searchField;
+    private JTable moodHistoryTable;
+    private MoodHistoryTableModel moodHistoryModel;
+    private MoodGraphPanel moodGraph;
+    private JLabel messageLabel, moodMessageLabel, historyMessageLabel;
+    private JButton loginButton, submitMoodButton;
     private String loggedInUser;
-    private static final String DATA_FILE = "user_data.txt";
+    private MoodSession moodSession; // Mood storage for the logged-in user
+    private boolean historyStale = true; // Graph and summary need refreshing before the history is shown
+    private CompletableFuture<Void> userDataReady; // Completes once old user files are migrated and the journal replayed
+    private final PersistenceService persistence = new PersistenceService(); // Keeps file work off the UI thread
+    private final DataLayout layout = DataLayout.standard(); // Sharded data directory
+    private final WriteAheadLog journal = new WriteAheadLog(layout); // Opened, and replayed, with the user data
+    private final UserRepository userRepository = new FileUserRepository(layout, PasswordHasher.configured(layout),
+            journal);
+    private final FileMoodRepository moodRepository = new FileMoodRepository(layout, Durability.configured(layout),
+            journal);
 
     /**
      * Constructor for MentalHealthApp.
-     * Initializes the user database and sets up the main UI.
+     * Shows the login window straight away and prepares the data directory
+     * in the background. A login waits for that preparation, then reads only
+     * the account shard holding its username.
      */
     public MentalHealthApp() {
-        userDatabase = new HashMap<>();
-        loadUserData(); // Load user info from file
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown)); // Let queued writes finish
+        moodHistoryModel = new MoodHistoryTableModel(persistence);
         initUI(); // Set up the main UI
+        userDataReady = persistence.write(this::loadUserData); // Move old data files into the sharded layout
+        PersistenceService.onEdt(userDataReady, ready -> StartupTimer.ready("user data loaded"),
+                error -> StartupTimer.ready("user data failed"));
+        persistence.read(() -> {
+            Metrics.configure(layout); // Publish timings over JMX and start the metrics dump, if configured
+            return null;
+        });
+    }
+
+    /**
+     * Finishes queued writes, closes any open mood logs, checkpoints the
+     * journal and writes the metrics one last time.
+     */
+    private void shutdown() {
+        persistence.shutdown();
+        Metrics.stopDump();
+        try {
+            moodRepository.close();
+            journal.close(); // Checkpoints, so the next start has nothing to replay
+        } catch (IOException e) {
+            System.out.println("Failed to close mood data: " + e.getMessage());
+        }
     }
 
     /**
      * Initializes the main UI of the application.
-     * Sets up the main frame and displays the login panel.
+     * Only the login panel is built before the window shows; each other panel
+     * is built once, the first time it is needed, and moving between views
+     * after that only switches which panel is shown.
      */
     private void initUI() {
         frame = new JFrame("Mental Health App");
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         frame.setSize(400, 300);
+        if (StartupTimer.ENABLED) {
+            frame.addWindowListener(new WindowAdapter() {
+                @Override
+                public void windowOpened(WindowEvent e) {
+                    StartupTimer.ready("first frame");
+                }
+            });
+        }
+
+        cards = new JPanel(cardLayout);
+        frame.setContentPane(cards);
 
         showLoginPanel(); // Show login first
 
         frame.setVisible(true); // Make it show up
     }
 
+    /**
+     * Builds a panel and adds it to the cards, unless that was done already.
+     *
+     * @param card The panel's card name.
+     */
+    private void ensurePanel(String card) {
+        if (!builtCards.add(card)) {
+            return;
+        }
+        switch (card) {
+            case LOGIN_CARD:
+                cards.add(buildLoginPanel(), card);
+                break;
+            case REGISTER_CARD:
+                cards.add(buildRegisterPanel(), card);
+                break;
+            case MOOD_CARD:
+                cards.add(buildMoodPanel(), card);
+                break;
+            default:
+                cards.add(buildHistoryPanel(), card);
+                break;
+        }
+    }
+
     /**
      * Displays the login panel where users can enter their username and password.
      */
     private void showLoginPanel() {
+        ensurePanel(LOGIN_CARD);
+        passwordField.setText("");
+        messageLabel.setText("");
+        cardLayout.show(cards, LOGIN_CARD);
+    }
+
+    /**
+     * Displays the registration panel where new users can create an account.
+     */
+    private void showRegisterPanel() {
+        ensurePanel(REGISTER_CARD);
+        regUsernameField.setText("");
+        regPasswordField.setText("");
+        cardLayout.show(cards, REGISTER_CARD);
+    }
+
+    /**
+     * Displays the mood panel where users can submit their mood ratings and descriptions.
+     */
+    private void showMoodPanel() {
+        ensurePanel(MOOD_CARD);
+        cardLayout.show(cards, MOOD_CARD);
+    }
+
+    /**
+     * Displays the history panel where users can view their mood history.
+     * The table keeps the rows it has already read for this session, so only
+     * the graph and summary are refreshed, and only after a submission.
+     */
+    private void showHistoryPanel() {
+        ensurePanel(HISTORY_CARD);
+        if (historyStale) {
+            loadMoodHistory();
+        }
+        cardLayout.show(cards, HISTORY_CARD);
+    }
+
+    /**
+     * Builds the login panel.
+     *
+     * @return The panel.
+     */
+    private JPanel buildLoginPanel() {
         loginPanel = new JPanel(new GridLayout(4, 2));
 
         loginPanel.add(new JLabel("Username:"));
@@ -60,7 +214,7 @@ public class MentalHealthApp {
         passwordField = new JPasswordField();
         loginPanel.add(passwordField);
 
-        JButton loginButton = new JButton("Login");
+        loginButton = new JButton("Login");
         loginButton.addActionListener(new LoginAction());
         loginPanel.add(loginButton);
 
@@ -70,15 +224,15 @@ public class MentalHealthApp {
 
         messageLabel = new JLabel(); // Label for error/success messages
         loginPanel.add(messageLabel);
-
-        frame.setContentPane(loginPanel); // Set login panel as main view
-        frame.revalidate();
+        return loginPanel;
     }
 
     /**
-     * Displays the registration panel where new users can create an account.
+     * Builds the registration panel.
+     *
+     * @return The panel.
      */
-    private void showRegisterPanel() {
+    private JPanel buildRegisterPanel() {
         registerPanel = new JPanel(new GridLayout(4, 2));
 
         registerPanel.add(new JLabel("New Username:"));
@@ -96,15 +250,15 @@ public class MentalHealthApp {
         JButton backButton = new JButton("Back to Login");
         backButton.addActionListener(e -> showLoginPanel());
         registerPanel.add(backButton);
-
-        frame.setContentPane(registerPanel); // Switch to register view
-        frame.revalidate();
+        return registerPanel;
     }
 
     /**
-     * Displays the mood panel where users can submit their mood ratings and descriptions.
+     * Builds the mood panel.
+     *
+     * @return The panel.
      */
-    private void showMoodPanel() {
+    private JPanel buildMoodPanel() {
         moodPanel = new JPanel(new GridLayout(5, 2));
 
         moodPanel.add(new JLabel("How are you feeling today? (1-10):"));
@@ -115,7 +269,7 @@ public class MentalHealthApp {
         moodDescriptionField = new JTextArea(3, 20);
         moodPanel.add(new JScrollPane(moodDescriptionField));
 
-        JButton submitMoodButton = new JButton("Submit Mood");
+        submitMoodButton = new JButton("Submit Mood");
         submitMoodButton.addActionListener(new SubmitMoodAction());
         moodPanel.add(submitMoodButton);
 
@@ -125,124 +279,290 @@ public class MentalHealthApp {
 
         JButton logoutButton = new JButton("Logout");
         logoutButton.addActionListener(e -> {
+            closeMoodSession();
             loggedInUser = null;
+            moodField.setText("");
+            moodDescriptionField.setText("");
+            moodMessageLabel.setText("");
+            if (searchField != null) {
+                searchField.setText("");
+            }
             showLoginPanel();
         });
         moodPanel.add(logoutButton);
 
         moodMessageLabel = new JLabel(); // For feedback messages
         moodPanel.add(moodMessageLabel);
-
-        frame.setContentPane(moodPanel); // Show mood panel
-        frame.revalidate();
+        return moodPanel;
     }
 
     /**
-     * Displays the history panel where users can view their mood history.
+     * Builds the history panel. Its table model is created with the app and
+     * is pointed at each user's mood log on login.
+     *
+     * @return The panel.
      */
-    private void showHistoryPanel() {
+    private JPanel buildHistoryPanel() {
         historyPanel = new JPanel(new BorderLayout());
 
-        moodHistoryArea = new JTextArea();
-        moodHistoryArea.setEditable(false);
-        loadMoodHistory(); // Load and display history
-
-        historyPanel.add(new JScrollPane(moodHistoryArea), BorderLayout.CENTER);
+        moodHistoryTable = new JTable(moodHistoryModel);
+        moodHistoryTable.setFillsViewportHeight(true);
+        moodHistoryTable.getColumnModel().getColumn(0).setPreferredWidth(90);
+        moodHistoryTable.getColumnModel().getColumn(1).setPreferredWidth(45);
+        moodHistoryTable.getColumnModel().getColumn(2).setPreferredWidth(250);
+        historyMessageLabel = new JLabel();
+
+        JPanel graphPanel = new JPanel(new BorderLayout());
+        moodGraph = new MoodGraphPanel();
+        JComboBox<String> zoomBox = new JComboBox<>(MoodGraphPanel.ZOOM_NAMES);
+        zoomBox.addActionListener(e -> moodGraph.setZoom(zoomBox.getSelectedIndex()));
+        graphPanel.add(zoomBox, BorderLayout.NORTH);
+        graphPanel.add(moodGraph, BorderLayout.CENTER);
+
+        JTabbedPane historyTabs = new JTabbedPane();
+        historyTabs.addTab("Entries", new JScrollPane(moodHistoryTable));
+        historyTabs.addTab("Graph", graphPanel);
+        searchField = new JTextField(15);
+        searchField.addActionListener(e -> searchMoodHistory(searchField.getText())); // Enter searches too
+        JButton searchButton = new JButton("Search");
+        searchButton.addActionListener(e -> searchMoodHistory(searchField.getText()));
+        JPanel searchPanel = new JPanel();
+        searchPanel.add(new JLabel("Search reasons:"));
+        searchPanel.add(searchField);
+        searchPanel.add(searchButton);
+        JPanel topPanel = new JPanel(new BorderLayout());
+        topPanel.add(historyMessageLabel, BorderLayout.NORTH);
+        topPanel.add(searchPanel, BorderLayout.SOUTH);
+        historyPanel.add(topPanel, BorderLayout.NORTH);
+        historyPanel.add(historyTabs, BorderLayout.CENTER);
 
         JButton backButton = new JButton("Back");
         backButton.addActionListener(e -> showMoodPanel()); // Go back to mood panel
-        historyPanel.add(backButton, BorderLayout.SOUTH);
-
-        frame.setContentPane(historyPanel); // Show history panel
-        frame.revalidate();
+        JButton exportButton = new JButton("Export...");
+        exportButton.addActionListener(e -> exportMoodHistory());
+        JPanel buttonPanel = new JPanel();
+        buttonPanel.add(backButton);
+        buttonPanel.add(exportButton);
+        historyPanel.add(buttonPanel, BorderLayout.SOUTH);
+        return historyPanel;
     }
 
     /**
-     * Loads user credentials from a file into the user database.
+     * Prepares user data for lookups. Accounts from the old flat user_data.txt
+     * are moved into the sharded layout once; after that nothing is read up
+     * front, and each login only reads the shard holding that username. Then
+     * the journal replays any writes a crash kept from the data files; if
+     * that fails, logins fail rather than run on data missing those writes.
      */
-    private void loadUserData() {
-        try (BufferedReader reader = new BufferedReader(new FileReader(DATA_FILE))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(":");
-                if (parts.length == 2) {
-                    userDatabase.put(parts[0], parts[1]);
-                }
+    private void loadUserData() throws IOException {
+        long start = USER_DATA_LOADS.start();
+        try {
+            int moved = layout.migrateFlatLayout(Paths.get("."));
+            if (moved > 0) {
+                System.out.println("Moved " + moved + " account(s) into " + layout.getRoot());
             }
+            USER_DATA_LOADS.succeeded(start);
         } catch (IOException e) {
-            System.out.println("User data file not found. Starting fresh.");
+            USER_DATA_LOADS.failed(start);
+            System.out.println("Failed to move old user data: " + e.getMessage());
         }
+        journal.open();
     }
 
     /**
-     * Saves user credentials from the user database to a file.
+     * Saves a newly registered user's credentials through the user repository,
+     * which appends a salted PBKDF2 hash to the user's account shard.
+     *
+     * @param username The new username.
+     * @param password The new password.
+     * @return true if the account was saved, false if the username is already taken.
+     * @throws IOException If the account shard cannot be written.
      */
-    private void saveUserData() {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(DATA_FILE))) {
-            for (Map.Entry<String, String> entry : userDatabase.entrySet()) {
-                writer.write(entry.getKey() + ":" + entry.getValue());
-                writer.newLine();
-            }
-        } catch (IOException e) {
-            System.out.println("Failed to save user data.");
+    private boolean saveUserData(String username, String password) throws IOException {
+        return userRepository.register(username, password);
+    }
+
+    /**
+     * Checks a login in the background and, if it matches, opens the user's
+     * mood log and summaries. Password hashing is deliberately slow, so it never
+     * runs on the UI thread. The check waits for the data directory to be
+     * prepared, and the session is opened behind any pending writes, so a
+     * logout's close of the same session cannot land after it.
+     *
+     * @param username The username entered.
+     * @param password The password entered.
+     * @return A future holding the opened session, or null if the login does not match.
+     */
+    private CompletableFuture<MoodSession> checkLogin(String username, String password) {
+        return userDataReady.thenCompose(ready -> persistence.read(() -> userRepository.authenticate(username, password)))
+                .thenCompose(matches -> matches
+                        ? persistence.write(() -> moodRepository.session(username))
+                        : CompletableFuture.completedFuture(null));
+    }
+
+    /**
+     * Lets go of the logged-in user's mood data and closes their session in
+     * the background, so another window or the command line can open it.
+     */
+    private void closeMoodSession() {
+        if (moodSession != null) {
+            String username = loggedInUser;
+            persistence.write(() -> moodRepository.closeSession(username));
         }
+        moodSession = null;
+        moodHistoryModel.reset(null); // Forget the cached rows
+        historyStale = true;
     }
 
     /**
-     * Loads the mood history for the logged-in user from a file.
+     * Shows or clears the busy cursor while background work runs.
+     *
+     * @param busy true while work is in progress.
+     */
+    private void setBusy(boolean busy) {
+        frame.setCursor(busy ? Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR) : Cursor.getDefaultCursor());
+    }
+
+    /**
+     * Loads the mood history for the logged-in user into the graph and summary,
+     * and takes the table back to the full history if a search was showing.
+     * The table reads the reasons it displays a page at a time in the background
+     * and keeps them until the user logs out.
      */
     private void loadMoodHistory() {
-        moodHistoryArea.setText("");
-        String filename = loggedInUser + "_mood.txt";
-        try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                moodHistoryArea.append(line + "\n");
-            }
-        } catch (IOException e) {
-            moodHistoryArea.setText("No mood history found.");
+        long start = HISTORY_LOADS.start();
+        MoodLog log = moodSession == null ? null : moodSession.getLog();
+        if (moodHistoryModel.isFiltered()) {
+            moodHistoryModel.reset(log);
         }
+        moodGraph.setSeries(log == null ? new MoodSeries() : log.series());
+        historyMessageLabel.setText(moodHistoryModel.getRowCount() == 0 ? "No mood history found." : moodSummary());
+        historyStale = false;
+        HISTORY_LOADS.succeeded(start);
     }
 
     /**
-     * Saves or updates the mood data for the logged-in user.
-     * 
-     * @param moodRating The mood rating (1-10).
-     * @param description The description of the mood.
+     * Shows only the entries whose reason contains every word of a query.
+     * The search runs against the user's reason index in the background; an
+     * empty query shows the whole history again.
+     *
+     * @param query The words to look for.
      */
-    private void saveMoodData(int moodRating, String description) {
-        String today = java.time.LocalDate.now().toString();
-        String filename = loggedInUser + "_mood.txt";
-
-        try {
-            StringBuilder history = new StringBuilder();
-            boolean moodExistsForToday = false;
-            try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    if (line.startsWith("Date: " + today)) {
-                        moodExistsForToday = true;
-                    } else {
-                        history.append(line).append("\n");
-                    }
-                }
+    private void searchMoodHistory(String query) {
+        MoodSession session = moodSession;
+        if (session == null) {
+            return;
+        }
+        if (query.trim().isEmpty()) {
+            loadMoodHistory();
+            return;
+        }
+        PersistenceService.onEdt(persistence.read(() -> session.searchReasons(query)), days -> {
+            if (session != moodSession) {
+                return; // Logged out while searching
             }
+            moodHistoryModel.showDays(session.getLog(), days);
+            historyMessageLabel.setText(days.length == 0 ? "No entries match \"" + query.trim() + "\"."
+                    : days.length + " entries match \"" + query.trim() + "\".");
+        }, error -> {
+            System.out.println("Failed to search mood history: " + error.getMessage());
+            historyMessageLabel.setText("Search failed.");
+        });
+    }
 
-            if (moodExistsForToday) {
-                int confirm = JOptionPane.showConfirmDialog(frame, "You've already submitted a mood today. Submitting a new mood will overwrite the previous one. Continue?", "Warning", JOptionPane.YES_NO_OPTION);
-                if (confirm != JOptionPane.YES_OPTION) {
-                    JOptionPane.showMessageDialog(frame, "Mood will not be submitted!");
-                    return;
-                }
+    /**
+     * Saves the logged-in user's whole mood history to a file the user picks.
+     * The format follows the file's extension: .csv, .json, or mood lines for
+     * anything else. The history is streamed to the file in the background.
+     */
+    private void exportMoodHistory() {
+        String username = loggedInUser;
+        if (username == null) {
+            return;
+        }
+        JFileChooser chooser = new JFileChooser();
+        chooser.setSelectedFile(new File(username + "_moods.csv"));
+        if (chooser.showSaveDialog(frame) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File file = chooser.getSelectedFile();
+        setBusy(true);
+        PersistenceService.onEdt(persistence.read(() -> {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                return new MoodExporter(moodRepository).export(username, null, null,
+                        MoodExporter.Format.forFile(file.getName()), channel);
             }
+        }), exported -> {
+            setBusy(false);
+            historyMessageLabel.setText("Exported " + exported + " entries to " + file.getName() + ".");
+        }, error -> {
+            setBusy(false);
+            System.out.println("Failed to export mood data: " + error.getMessage());
+            historyMessageLabel.setText("Export failed.");
+        });
+    }
 
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter(filename))) {
-                writer.write(history.toString());
-                writer.write("Date: " + today + ", Mood: " + moodRating + ", Reason: " + description + "\n");
-            }
-        } catch (IOException e) {
-            System.out.println("Failed to save mood data.");
+    /**
+     * Builds the one-line summary shown above the history.
+     * Reads only the running summaries, never the mood log.
+     *
+     * @return The summary text.
+     */
+    private String moodSummary() {
+        MoodAggregates aggregates = moodSession.getAggregates();
+        LocalDate today = LocalDate.now();
+        return String.format("7-day avg: %s  30-day: %s  90-day: %s  Streak: %d (best %d)",
+                formatAverage(aggregates.rollingAverage(7, today)),
+                formatAverage(aggregates.rollingAverage(30, today)),
+                formatAverage(aggregates.rollingAverage(90, today)),
+                aggregates.currentStreak(today), aggregates.longestStreak());
+    }
+
+    private static String formatAverage(double average) {
+        return Double.isNaN(average) ? "-" : String.format("%.1f", average);
+    }
+
+    /**
+     * Asks the user before today's mood is overwritten.
+     * Only the in-memory index is consulted, so no file work runs while the dialog is open.
+     *
+     * @param today The day being submitted.
+     * @return true if the submission should go ahead.
+     */
+    private boolean confirmMoodOverwrite(LocalDate today) {
+        if (moodSession == null || !moodSession.getLog().contains(today)) {
+            return true;
+        }
+        int confirm = JOptionPane.showConfirmDialog(frame, "You've already submitted a mood today. Submitting a new mood will overwrite the previous one. Continue?", "Warning", JOptionPane.YES_NO_OPTION);
+        if (confirm != JOptionPane.YES_OPTION) {
+            JOptionPane.showMessageDialog(frame, "Mood will not be submitted!");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Saves or updates the mood data for the logged-in user in the background.
+     * The record is appended to the user's mood log; an earlier submission for
+     * today is replaced without rewriting the rest of the file, and the running
+     * summaries are updated in place.
+     * 
+     * @param today The day being submitted.
+     * @param moodRating The mood rating (1-10).
+     * @param description The description of the mood.
+     * @return A future holding the saved entry once it is written.
+     */
+    private CompletableFuture<MoodEntry> saveMoodData(LocalDate today, int moodRating, String description) {
+        MoodSession session = moodSession;
+        if (session == null) {
+            return CompletableFuture.failedFuture(new IOException("No mood log is open"));
         }
+        MoodEntry entry = new MoodEntry(today, moodRating, description);
+        return persistence.write(() -> {
+            moodRepository.save(session.getUsername(), entry); // The same session, timed by the repository
+            return entry;
+        });
     }
 
     /**
@@ -256,12 +576,33 @@ public class MentalHealthApp {
 
             if (username.isEmpty() || password.isEmpty()) {
                 messageLabel.setText("Fields cannot be blank.");
-            } else if (userDatabase.containsKey(username) && userDatabase.get(username).equals(password)) {
-                loggedInUser = username;
-                JOptionPane.showMessageDialog(frame, "Login successful!");
-                showMoodPanel();
             } else {
-                messageLabel.setText("Invalid username or password.");
+                loginButton.setEnabled(false);
+                messageLabel.setText("Logging in...");
+                setBusy(true);
+                SwingUtilities.invokeLater(() -> { // Build the next views while the password is checked
+                    ensurePanel(MOOD_CARD);
+                    ensurePanel(HISTORY_CARD);
+                });
+                PersistenceService.onEdt(checkLogin(username, password), session -> {
+                    setBusy(false);
+                    loginButton.setEnabled(true);
+                    if (session == null) {
+                        messageLabel.setText("Invalid username or password.");
+                        return;
+                    }
+                    loggedInUser = username;
+                    moodSession = session;
+                    moodHistoryModel.reset(session.getLog());
+                    historyStale = true;
+                    JOptionPane.showMessageDialog(frame, "Login successful!");
+                    showMoodPanel();
+                }, error -> {
+                    setBusy(false);
+                    loginButton.setEnabled(true);
+                    System.out.println("Failed to log in: " + error.getMessage());
+                    messageLabel.setText("Could not load your account.");
+                });
             }
         }
     }
@@ -272,9 +613,8 @@ public class MentalHealthApp {
      * @param username The username of the new user.
      */
     private void createUserMoodFile(String username) {
-        String moodFileName = username + "_mood.txt";
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(moodFileName))) {
-            writer.newLine();
+        try {
+            moodRepository.createUser(username);
         } catch (IOException e) {
             System.out.println("Error creating mood file for " + username + ": " + e.getMessage());
         }
@@ -289,16 +629,31 @@ public class MentalHealthApp {
             String newUsername = regUsernameField.getText();
             String newPassword = new String(regPasswordField.getPassword());
 
-            if (newUsername.length() < 5 || newPassword.length() < 5) {
+            if (newUsername.length() < UserRepository.MIN_LENGTH || !UserRepository.isValidPassword(newPassword)) {
                 JOptionPane.showMessageDialog(frame, "Username and password must be at least 5 characters.");
-            } else if (userDatabase.containsKey(newUsername)) {
-                JOptionPane.showMessageDialog(frame, "Username already taken.");
+            } else if (!UserRepository.isValidUsername(newUsername)) {
+                JOptionPane.showMessageDialog(frame, "Username may only use letters, digits, '.', '_' and '-', up to 64 characters.");
             } else {
-                userDatabase.put(newUsername, newPassword);
-                saveUserData();
-                JOptionPane.showMessageDialog(frame, "Account created successfully!");
-                showLoginPanel();
-                createUserMoodFile(newUsername);
+                setBusy(true);
+                PersistenceService.onEdt(persistence.write(() -> {
+                    if (!saveUserData(newUsername, newPassword)) {
+                        return false;
+                    }
+                    createUserMoodFile(newUsername);
+                    return true;
+                }), created -> {
+                    setBusy(false);
+                    if (!created) {
+                        JOptionPane.showMessageDialog(frame, "Username already taken.");
+                        return;
+                    }
+                    JOptionPane.showMessageDialog(frame, "Account created successfully!");
+                    showLoginPanel();
+                }, error -> {
+                    System.out.println("Failed to save user data.");
+                    setBusy(false);
+                    JOptionPane.showMessageDialog(frame, "Failed to create account.");
+                });
             }
         }
     }
@@ -313,11 +668,32 @@ public class MentalHealthApp {
             String moodDescription = moodDescriptionField.getText();
             try {
                 int moodRating = Integer.parseInt(moodInput);
-                if (moodRating < 1 || moodRating > 10) {
+                if (!MoodEntry.isValidRating(moodRating)) {
                     moodMessageLabel.setText("Please enter a number between 1 and 10.");
                 } else {
-                    saveMoodData(moodRating, moodDescription);
-                    JOptionPane.showMessageDialog(frame, "Success!");
+                    LocalDate today = LocalDate.now();
+                    if (!confirmMoodOverwrite(today)) {
+                        return;
+                    }
+                    submitMoodButton.setEnabled(false);
+                    moodMessageLabel.setText("Saving mood...");
+                    setBusy(true);
+                    MoodSession session = moodSession;
+                    PersistenceService.onEdt(saveMoodData(today, moodRating, moodDescription), saved -> {
+                        if (session == moodSession) {
+                            moodHistoryModel.entrySaved(saved, session.getLog()); // Write through instead of re-reading
+                            historyStale = true;
+                        }
+                        setBusy(false);
+                        submitMoodButton.setEnabled(true);
+                        moodMessageLabel.setText("");
+                        JOptionPane.showMessageDialog(frame, "Success!");
+                    }, error -> {
+                        setBusy(false);
+                        submitMoodButton.setEnabled(true);
+                        System.out.println("Failed to save mood data.");
+                        moodMessageLabel.setText("Failed to save mood.");
+                    });
                 }
             } catch (NumberFormatException ex) {
                 moodMessageLabel.setText("Please enter a valid number.");
@@ -327,10 +703,15 @@ public class MentalHealthApp {
 
     /**
      * Main method to launch the application.
+     * With arguments, runs a command line job instead of the GUI (see {@link MoodCli}).
      * 
      * @param args Command line arguments.
      */
     public static void main(String[] args) {
+        if (args.length > 0) {
+            System.exit(MoodCli.run(args));
+        }
+        StartupTimer.mark("main");
         SwingUtilities.invokeLater(MentalHealthApp::new);
     }
 }
\ No newline at end of file
@@ -0,0 +1,184 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Metrics keeps the timings of the app's hot paths: logging in, saving
+ * users and moods, and reading mood history. Each operation has an
+ * {@link OperationMetrics} with its counts and latency histogram.
+ *
+ * Once {@link #configure(DataLayout)} has run, every operation is also
+ * published over JMX as {@code MentalHealthApp:type=Operation,name=<operation>},
+ * and, if {@code storage.properties} in the data directory names a file in it
+ * with {@code metrics.dump=metrics.txt}, a table of all operations is written to it
+ * every {@code metrics.dump.seconds} (default 60) and on shutdown. Both keys
+ * can be overridden with {@code mha.} system properties, and
+ * {@code -Dmha.metrics=false} turns timing off altogether.
+ */
+public final class Metrics {
+    static final boolean ENABLED = !"false".equalsIgnoreCase(System.getProperty("mha.metrics"));
+
+    private static final String DUMP_KEY = "metrics.dump";
+    private static final String DUMP_SECONDS_KEY = "metrics.dump.seconds";
+    private static final int DEFAULT_DUMP_SECONDS = 60;
+    private static final String JMX_DOMAIN = "MentalHealthApp";
+
+    private static final Map<String, OperationMetrics> OPERATIONS = new ConcurrentHashMap<>();
+    private static volatile MBeanServer jmx; // Null until published
+    private static ScheduledExecutorService dumper;
+    private static Path dumpFile;
+
+    private Metrics() {
+    }
+
+    /**
+     * Returns the metrics of an operation, creating them on first use.
+     *
+     * @param name The operation, such as "saveMoodData".
+     * @return The operation's metrics; the same object for every call with this name.
+     */
+    public static OperationMetrics operation(String name) {
+        OperationMetrics metrics = OPERATIONS.get(name);
+        if (metrics == null) {
+            OperationMetrics created = new OperationMetrics(name);
+            metrics = OPERATIONS.putIfAbsent(name, created);
+            if (metrics == null) {
+                metrics = created;
+                MBeanServer server = jmx;
+                if (server != null) {
+                    register(server, created);
+                }
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Publishes the metrics over JMX and starts the periodic dump if one is
+     * configured. Only front ends that run for a while call this; command line
+     * jobs keep their metrics in memory.
+     *
+     * @param layout The data layout holding storage.properties.
+     */
+    public static synchronized void configure(DataLayout layout) {
+        if (jmx == null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            jmx = server;
+            for (OperationMetrics metrics : OPERATIONS.values()) {
+                register(server, metrics);
+            }
+        }
+
+        Properties settings = layout.settings(DataLayout.STORAGE_SETTINGS);
+        String file = DataLayout.setting(settings, DUMP_KEY, null);
+        if (file == null || file.trim().isEmpty()) {
+            return;
+        }
+        int period = DataLayout.intSetting(settings, DUMP_SECONDS_KEY, DEFAULT_DUMP_SECONDS, 1);
+        startDump(layout.getRoot().resolve(file.trim()), period);
+    }
+
+    /**
+     * Writes the metrics table to a file at a fixed rate, on a background
+     * thread, replacing the file each time. Replaces any earlier dump.
+     *
+     * @param file The file to write; relative paths are taken from the working directory.
+     * @param periodSeconds The time between dumps.
+     */
+    public static synchronized void startDump(Path file, long periodSeconds) {
+        if (dumper != null) {
+            dumper.shutdownNow();
+        }
+        dumpFile = file;
+        dumper = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleAtFixedRate(() -> {
+            try {
+                dump(file);
+            } catch (IOException e) {
+                System.out.println("Failed to write metrics: " + e.getMessage());
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the periodic dump, writing the table one last time.
+     */
+    public static synchronized void stopDump() {
+        if (dumper == null) {
+            return;
+        }
+        dumper.shutdownNow();
+        dumper = null;
+        try {
+            dump(dumpFile);
+        } catch (IOException e) {
+            System.out.println("Failed to write metrics: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the metrics table to a file through a temp file, so readers
+     * never see half a table.
+     *
+     * @param file The file to write.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void dump(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            writeReport(writer);
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Writes one line per operation with its counts and latencies in milliseconds.
+     *
+     * @param writer Where the table is written.
+     * @throws IOException If writing fails.
+     */
+    public static void writeReport(Writer writer) throws IOException {
+        writer.write("# Metrics at " + LocalDateTime.now().truncatedTo(ChronoUnit.SECONDS) + "\n");
+        writer.write(String.format("%-18s %10s %8s %10s %10s %10s %10s %10s%n",
+                "operation", "count", "errors", "mean ms", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+        for (OperationMetrics metrics : new TreeMap<>(OPERATIONS).values()) {
+            LatencyHistogram.Snapshot latencies = metrics.snapshot();
+            writer.write(String.format("%-18s %10d %8d %10.3f %10.3f %10.3f %10.3f %10.3f%n",
+                    metrics.getName(), latencies.getCount(), metrics.getErrors(), latencies.mean() / 1e6,
+                    latencies.percentile(50) / 1e6, latencies.percentile(90) / 1e6,
+                    latencies.percentile(99) / 1e6, latencies.max() / 1e6));
+        }
+    }
+
+    private static void register(MBeanServer server, OperationMetrics metrics) {
+        try {
+            server.registerMBean(metrics, new ObjectName(JMX_DOMAIN + ":type=Operation,name=" + metrics.getName()));
+        } catch (InstanceAlreadyExistsException e) {
+            // Published already
+        } catch (JMException e) {
+            System.out.println("Failed to publish metrics for " + metrics.getName() + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,387 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * MoodAggregates keeps running summaries of a user's moods so summary queries
+ * never rescan the mood log: count, sum and a rating histogram per week and
+ * per month, the ratings of the last 90 days for rolling averages, and the
+ * runs of consecutive logged days for streaks. Each submission updates them in
+ * place; an overwritten day is retracted before the new rating is added. The
+ * aggregates are saved to {@code <user>_mood.agg} next to the log when the
+ * session closes, together with the stamp of the log they match (its length
+ * and file identity, see {@link MoodLog#stamp()}), and rebuilt from the log's
+ * index only when that stamp is out of date, as after a crash or a
+ * compaction.
+ * Submits never rewrite the file, whose size grows with the history.
+ */
+public class MoodAggregates {
+    public static final int MAX_WINDOW_DAYS = 90;
+    private static final int FORMAT_VERSION = 2; // 1 stamped files with the log length alone
+
+    private final Map<Long, Stats> weeks = new HashMap<>();
+    private final Map<Long, Stats> months = new HashMap<>();
+    private final MoodSeries recent = new MoodSeries(); // Ratings of the last MAX_WINDOW_DAYS days
+    private final TreeMap<Integer, Integer> runs = new TreeMap<>(); // First day -> last day of each streak
+    private int latestDay = Integer.MIN_VALUE;
+    private int longestStreak;
+    private boolean dirty;
+
+    /**
+     * Count, sum and histogram of the ratings in one period. Keeping the
+     * histogram lets min and max be retracted when a day is overwritten.
+     */
+    public static final class Stats {
+        private int count;
+        private long sum;
+        private final int[] histogram = new int[11];
+
+        public int getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public double getAverage() {
+            return count == 0 ? Double.NaN : (double) sum / count;
+        }
+
+        public int getMin() {
+            for (int rating = 1; rating <= 10; rating++) {
+                if (histogram[rating] > 0) {
+                    return rating;
+                }
+            }
+            return 0;
+        }
+
+        public int getMax() {
+            for (int rating = 10; rating >= 1; rating--) {
+                if (histogram[rating] > 0) {
+                    return rating;
+                }
+            }
+            return 0;
+        }
+
+        private void add(int rating, int sign) {
+            count += sign;
+            sum += (long) sign * rating;
+            histogram[rating] += sign;
+        }
+
+        private Stats copy() {
+            Stats copy = new Stats();
+            copy.count = count;
+            copy.sum = sum;
+            System.arraycopy(histogram, 0, copy.histogram, 0, histogram.length);
+            return copy;
+        }
+    }
+
+    /**
+     * Records one submission.
+     *
+     * @param epochDay The day submitted.
+     * @param rating The new rating (1-10).
+     * @param previousRating The rating being overwritten, or 0 if the day was empty.
+     */
+    public synchronized void record(int epochDay, int rating, int previousRating) {
+        dirty = true;
+        if (previousRating > 0) {
+            apply(epochDay, previousRating, -1);
+        } else {
+            addStreakDay(epochDay);
+        }
+        apply(epochDay, rating, 1);
+        if (epochDay > latestDay) {
+            latestDay = epochDay;
+        }
+        if (epochDay > latestDay - MAX_WINDOW_DAYS) {
+            recent.put(epochDay, rating);
+        }
+        recent.removeBefore(latestDay - MAX_WINDOW_DAYS + 1);
+    }
+
+    /**
+     * Retracts a day that was removed from the log.
+     *
+     * @param epochDay The day removed.
+     * @param previousRating The rating it had.
+     */
+    public synchronized void retract(int epochDay, int previousRating) {
+        dirty = true;
+        apply(epochDay, previousRating, -1);
+        recent.remove(epochDay);
+        removeStreakDay(epochDay);
+    }
+
+    /**
+     * Average rating over the days ending on a given day.
+     *
+     * @param days The window length, at most {@link #MAX_WINDOW_DAYS}.
+     * @param today The last day of the window.
+     * @return The average, or NaN if no day in the window was logged.
+     */
+    public synchronized double rollingAverage(int days, LocalDate today) {
+        if (days > MAX_WINDOW_DAYS) {
+            throw new IllegalArgumentException("Rolling windows are limited to " + MAX_WINDOW_DAYS + " days");
+        }
+        long last = today.toEpochDay();
+        long sum = 0;
+        int count = 0;
+        MoodSeries.Cursor window = recent.cursor().range(last - days + 1, last);
+        while (window.next()) {
+            sum += window.rating();
+            count++;
+        }
+        return count == 0 ? Double.NaN : (double) sum / count;
+    }
+
+    /**
+     * @param date Any day in the week.
+     * @return A copy of the stats of the Monday-to-Sunday week containing the day.
+     */
+    public synchronized Stats week(LocalDate date) {
+        Stats stats = MoodEntry.isValidDate(date) ? weeks.get(weekKey((int) date.toEpochDay())) : null;
+        return stats == null ? new Stats() : stats.copy();
+    }
+
+    /**
+     * @param date Any day in the month.
+     * @return A copy of the stats of the calendar month containing the day.
+     */
+    public synchronized Stats month(LocalDate date) {
+        Stats stats = MoodEntry.isValidDate(date) ? months.get(monthKey((int) date.toEpochDay())) : null;
+        return stats == null ? new Stats() : stats.copy();
+    }
+
+    /**
+     * The streak that is still going: it must include today or yesterday.
+     *
+     * @param today The current day.
+     * @return The number of consecutive logged days, or 0.
+     */
+    public synchronized int currentStreak(LocalDate today) {
+        if (!MoodEntry.isValidDate(today)) {
+            return 0;
+        }
+        int day = (int) today.toEpochDay();
+        Map.Entry<Integer, Integer> run = runs.floorEntry(day);
+        if (run == null || run.getValue() < day - 1) {
+            return 0;
+        }
+        return Math.min(run.getValue(), day) - run.getKey() + 1;
+    }
+
+    /**
+     * @return The longest run of consecutive logged days ever.
+     */
+    public synchronized int longestStreak() {
+        return longestStreak;
+    }
+
+    /**
+     * Loads saved aggregates, rebuilding them from the log if the saved copy is
+     * missing, damaged or does not match the log.
+     *
+     * @param file The {@code <user>_mood.agg} file.
+     * @param log The user's mood log.
+     * @return The aggregates; a rebuilt copy is marked as changed so it is saved.
+     */
+    public static MoodAggregates load(Path file, MoodLog log) {
+        MoodAggregates aggregates = new MoodAggregates();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            if (aggregates.read(reader, log.stamp())) {
+                return aggregates;
+            }
+        } catch (NoSuchFileException e) {
+            // First login since the summaries were added
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Mood summary file is damaged, rebuilding: " + e.getMessage());
+        }
+
+        return rebuild(log.series());
+    }
+
+    /**
+     * Builds aggregates from scratch.
+     *
+     * @param series Every rating in the log.
+     * @return The aggregates, marked as changed.
+     */
+    public static MoodAggregates rebuild(MoodSeries series) {
+        MoodAggregates aggregates = new MoodAggregates();
+        MoodSeries.Cursor days = series.cursor();
+        while (days.next()) {
+            aggregates.record(days.day(), days.rating(), 0);
+        }
+        return aggregates;
+    }
+
+    /**
+     * Saves the aggregates through a temp file so a crash leaves the old copy intact.
+     *
+     * @param file The {@code <user>_mood.agg} file.
+     * @param logStamp The {@link MoodLog#stamp()} of the log these aggregates match.
+     * @throws IOException If the file cannot be written.
+     */
+    public synchronized void save(Path file, String logStamp) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            writer.write("version " + FORMAT_VERSION + " " + logStamp + " " + latestDay + " " + longestStreak);
+            writer.newLine();
+            writeStats(writer, "week", weeks);
+            writeStats(writer, "month", months);
+            for (Map.Entry<Integer, Integer> run : runs.entrySet()) {
+                writer.write("run " + run.getKey() + " " + run.getValue());
+                writer.newLine();
+            }
+            MoodSeries.Cursor days = recent.cursor();
+            while (days.next()) {
+                writer.write("day " + days.day() + " " + days.rating());
+                writer.newLine();
+            }
+            writer.write("end");
+            writer.newLine();
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        dirty = false;
+    }
+
+    /**
+     * @return true if the aggregates changed since they were loaded or saved.
+     */
+    public synchronized boolean isDirty() {
+        return dirty;
+    }
+
+    private boolean read(BufferedReader reader, String logStamp) throws IOException {
+        String[] header = reader.readLine().split(" ");
+        if (!header[0].equals("version") || Integer.parseInt(header[1]) != FORMAT_VERSION
+                || !header[2].equals(logStamp)) {
+            return false;
+        }
+        latestDay = Integer.parseInt(header[3]);
+        longestStreak = Integer.parseInt(header[4]);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] parts = line.split(" ");
+            switch (parts[0]) {
+                case "week":
+                case "month":
+                    Stats stats = new Stats();
+                    stats.count = Integer.parseInt(parts[2]);
+                    stats.sum = Long.parseLong(parts[3]);
+                    for (int rating = 1; rating <= 10; rating++) {
+                        stats.histogram[rating] = Integer.parseInt(parts[3 + rating]);
+                    }
+                    (parts[0].equals("week") ? weeks : months).put(Long.parseLong(parts[1]), stats);
+                    break;
+                case "run":
+                    runs.put(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+                    break;
+                case "day":
+                    recent.put(Integer.parseInt(parts[1]), Byte.parseByte(parts[2]));
+                    break;
+                case "end":
+                    return true;
+                default:
+                    return false;
+            }
+        }
+        return false; // A file without its end marker was cut short
+    }
+
+    private static void writeStats(BufferedWriter writer, String kind, Map<Long, Stats> periods) throws IOException {
+        for (Map.Entry<Long, Stats> period : periods.entrySet()) {
+            Stats stats = period.getValue();
+            StringBuilder line = new StringBuilder(kind).append(' ').append(period.getKey())
+                    .append(' ').append(stats.count).append(' ').append(stats.sum);
+            for (int rating = 1; rating <= 10; rating++) {
+                line.append(' ').append(stats.histogram[rating]);
+            }
+            writer.write(line.toString());
+            writer.newLine();
+        }
+    }
+
+    private void apply(int epochDay, int rating, int sign) {
+        applyTo(weeks, weekKey(epochDay), rating, sign);
+        applyTo(months, monthKey(epochDay), rating, sign);
+    }
+
+    private static void applyTo(Map<Long, Stats> periods, long key, int rating, int sign) {
+        Stats stats = periods.computeIfAbsent(key, k -> new Stats());
+        stats.add(rating, sign);
+        if (stats.count == 0) {
+            periods.remove(key);
+        }
+    }
+
+    private void addStreakDay(int day) {
+        Map.Entry<Integer, Integer> before = runs.floorEntry(day);
+        if (before != null && before.getValue() >= day) {
+            return; // Already logged
+        }
+        int start = day;
+        int end = day;
+        if (before != null && before.getValue() == day - 1) {
+            start = before.getKey();
+        }
+        Integer after = runs.get(day + 1);
+        if (after != null) {
+            end = after;
+            runs.remove(day + 1);
+        }
+        runs.put(start, end);
+        longestStreak = Math.max(longestStreak, end - start + 1);
+    }
+
+    private void removeStreakDay(int day) {
+        Map.Entry<Integer, Integer> run = runs.floorEntry(day);
+        if (run == null || run.getValue() < day) {
+            return;
+        }
+        int start = run.getKey();
+        int end = run.getValue();
+        runs.remove(start);
+        if (start < day) {
+            runs.put(start, day - 1);
+        }
+        if (day < end) {
+            runs.put(day + 1, end);
+        }
+        if (end - start + 1 == longestStreak) {
+            longestStreak = 0;
+            for (Map.Entry<Integer, Integer> other : runs.entrySet()) {
+                longestStreak = Math.max(longestStreak, other.getValue() - other.getKey() + 1);
+            }
+        }
+    }
+
+    /**
+     * Weeks are keyed by the epoch day of their Monday (day 0 was a Thursday).
+     */
+    private static long weekKey(int epochDay) {
+        return epochDay - Math.floorMod(epochDay + 3, 7);
+    }
+
+    /**
+     * Months are keyed by the epoch day of their first day.
+     */
+    private static long monthKey(int epochDay) {
+        return LocalDate.ofEpochDay(epochDay).withDayOfMonth(1).toEpochDay();
+    }
+}
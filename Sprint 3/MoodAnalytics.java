@@ -0,0 +1,272 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.NoSuchFileException;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.format.TextStyle;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * MoodAnalytics reports on every account at once: the average mood on each
+ * weekday, how often each rating is given, and the share of users whose mood
+ * has been falling over the last 30 days.
+ *
+ * The scan is split by account shard. Each shard's usernames are read from
+ * its account file and each user's ratings straight from their mood file,
+ * without opening the log, so the scan can run next to the app and never
+ * takes a log away from a logged-in user. Shards are scanned in parallel on
+ * a fork-join pool; each task builds its own {@link Report} and the reports
+ * are merged on the way back up, so the threads share nothing while they
+ * work.
+ */
+public class MoodAnalytics {
+    public static final int TREND_DAYS = 30;
+    public static final int MIN_TREND_POINTS = 7;
+    public static final double DECLINE_PER_DAY = -0.05; // About 1.5 points over the window
+
+    private final DataLayout layout;
+    private final LocalDate asOf;
+
+    /**
+     * Creates an engine over a data directory.
+     *
+     * @param layout The data layout.
+     * @param asOf The last day of the trend window, usually today.
+     */
+    public MoodAnalytics(DataLayout layout, LocalDate asOf) {
+        this.layout = layout;
+        this.asOf = asOf;
+    }
+
+    /**
+     * Scans every user on the common fork-join pool.
+     *
+     * @return The merged report.
+     * @throws IOException If an account or mood file cannot be read.
+     */
+    public Report run() throws IOException {
+        return run(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Scans every user on the given pool; its parallelism sets how many
+     * shards are read at once.
+     *
+     * @param pool The pool to run on.
+     * @return The merged report.
+     * @throws IOException If an account or mood file cannot be read.
+     */
+    public Report run(ForkJoinPool pool) throws IOException {
+        try {
+            return pool.invoke(new ShardScan(0, DataLayout.SHARDS));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Scans a range of shards, splitting it in half until one shard is left.
+     */
+    private final class ShardScan extends RecursiveTask<Report> {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+
+        ShardScan(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Report compute() {
+            if (to - from == 1) {
+                try {
+                    return scanShard(from);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            int middle = (from + to) >>> 1;
+            ShardScan left = new ShardScan(from, middle);
+            left.fork();
+            Report right = new ShardScan(middle, to).compute();
+            return right.merge(left.join());
+        }
+    }
+
+    private Report scanShard(int shard) throws IOException {
+        Report report = new Report();
+        for (String username : new UserStore(layout.accountFile(shard)).usernames()) {
+            MoodPoints points;
+            try {
+                points = MoodLog.readPoints(layout.moodFile(username));
+            } catch (NoSuchFileException e) {
+                points = null; // Registered, but never opened their mood log
+            }
+            report.addUser(points, asOf.toEpochDay());
+        }
+        return report;
+    }
+
+    /**
+     * Totals for a set of users. Partial reports from separate shards are
+     * combined with {@link #merge(Report)}.
+     */
+    public static final class Report {
+        private final long[] weekdaySums = new long[7]; // Monday first
+        private final long[] weekdayCounts = new long[7];
+        private final long[] ratingCounts = new long[MoodEntry.MAX_RATING + 1];
+        private long users;
+        private long usersWithMoods;
+        private long usersWithTrend;
+        private long usersDeclining;
+
+        void addUser(MoodPoints points, long asOfDay) {
+            users++;
+            if (points == null || points.size() == 0) {
+                return;
+            }
+            usersWithMoods++;
+            for (int i = 0; i < points.size(); i++) {
+                int rating = points.rating(i);
+                int weekday = Math.floorMod(points.day(i) + 3, 7); // Epoch day 0 was a Thursday
+                weekdaySums[weekday] += rating;
+                weekdayCounts[weekday]++;
+                if (rating >= 0 && rating < ratingCounts.length) {
+                    ratingCounts[rating]++;
+                }
+            }
+            addTrend(points, asOfDay);
+        }
+
+        /**
+         * Fits a least-squares line through the ratings of the trend window
+         * and counts the user as declining if it falls fast enough.
+         */
+        private void addTrend(MoodPoints points, long asOfDay) {
+            int first = points.indexAtOrAfter(asOfDay - TREND_DAYS + 1);
+            int last = points.indexAtOrAfter(asOfDay + 1);
+            int n = last - first;
+            if (n < MIN_TREND_POINTS) {
+                return;
+            }
+            double sumX = 0;
+            double sumY = 0;
+            double sumXY = 0;
+            double sumXX = 0;
+            for (int i = first; i < last; i++) {
+                double x = points.day(i) - asOfDay;
+                double y = points.rating(i);
+                sumX += x;
+                sumY += y;
+                sumXY += x * y;
+                sumXX += x * x;
+            }
+            double spread = n * sumXX - sumX * sumX;
+            usersWithTrend++;
+            if (spread > 0 && (n * sumXY - sumX * sumY) / spread <= DECLINE_PER_DAY) {
+                usersDeclining++;
+            }
+        }
+
+        /**
+         * Adds another report's totals to this one.
+         *
+         * @param other The report to add.
+         * @return This report.
+         */
+        public Report merge(Report other) {
+            for (int i = 0; i < 7; i++) {
+                weekdaySums[i] += other.weekdaySums[i];
+                weekdayCounts[i] += other.weekdayCounts[i];
+            }
+            for (int i = 0; i < ratingCounts.length; i++) {
+                ratingCounts[i] += other.ratingCounts[i];
+            }
+            users += other.users;
+            usersWithMoods += other.usersWithMoods;
+            usersWithTrend += other.usersWithTrend;
+            usersDeclining += other.usersDeclining;
+            return this;
+        }
+
+        public long getUsers() {
+            return users;
+        }
+
+        public long getUsersWithMoods() {
+            return usersWithMoods;
+        }
+
+        /**
+         * @return The number of moods counted.
+         */
+        public long getEntries() {
+            long total = 0;
+            for (long count : weekdayCounts) {
+                total += count;
+            }
+            return total;
+        }
+
+        /**
+         * @param day The weekday.
+         * @return The average rating given on that weekday, or NaN if none.
+         */
+        public double averageOn(DayOfWeek day) {
+            int i = day.getValue() - 1;
+            return weekdayCounts[i] == 0 ? Double.NaN : (double) weekdaySums[i] / weekdayCounts[i];
+        }
+
+        /**
+         * @param rating A rating from 1 to 10.
+         * @return How many times it was given.
+         */
+        public long countOf(int rating) {
+            return ratingCounts[rating];
+        }
+
+        /**
+         * @return The number of users with enough recent moods to have a trend.
+         */
+        public long getUsersWithTrend() {
+            return usersWithTrend;
+        }
+
+        /**
+         * @return The share of users with a trend whose mood is falling, 0 to 1, or NaN if none have a trend.
+         */
+        public double decliningShare() {
+            return usersWithTrend == 0 ? Double.NaN : (double) usersDeclining / usersWithTrend;
+        }
+
+        /**
+         * Prints the report as plain text.
+         *
+         * @param out Where to print.
+         */
+        public void print(PrintStream out) {
+            out.printf("Users: %d (%d with moods), moods: %d%n", users, usersWithMoods, getEntries());
+            out.println("Average mood by weekday:");
+            for (DayOfWeek day : DayOfWeek.values()) {
+                double average = averageOn(day);
+                out.printf("  %-10s %s%n", day.getDisplayName(TextStyle.FULL, Locale.ENGLISH),
+                        Double.isNaN(average) ? "-" : String.format("%.2f", average));
+            }
+            out.println("Ratings:");
+            long entries = Math.max(1, getEntries());
+            for (int rating = MoodEntry.MIN_RATING; rating <= MoodEntry.MAX_RATING; rating++) {
+                double share = (double) ratingCounts[rating] / entries;
+                out.printf("  %2d %6.1f%%  %s%n", rating, share * 100, "#".repeat((int) Math.round(share * 50)));
+            }
+            double declining = decliningShare();
+            out.printf("Declining over the last %d days: %s of %d users with at least %d moods in that time%n",
+                    TREND_DAYS, Double.isNaN(declining) ? "-" : String.format("%.1f%%", declining * 100),
+                    usersWithTrend, MIN_TREND_POINTS);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * MoodBinaryFormat describes and writes the compact binary copy of a mood
+ * log, {@code <user>_mood.bin}, which {@link MappedMoodReader} reads without
+ * parsing any text:
+ *
+ * <pre>
+ * header  : int magic "MOOD", short version, short reserved, int count, long blobStart,
+ *           short stamp length, the stamp's UTF-8 bytes
+ * entries : count x (int epochDay, byte rating, int reasonOffset), sorted by epochDay
+ * blobs   : per entry, int length followed by the UTF-8 reason bytes
+ * </pre>
+ *
+ * Entries are fixed width so a reader can jump straight to the Nth entry or
+ * binary search for a date. Reason offsets are relative to blobStart, which
+ * may leave room for a few more entries than count. The log stays the source
+ * of truth: the copy is written when a session closes, holds the
+ * {@link MoodLog#stamp()} of the log it was made from, and is only read while
+ * the log still has that stamp.
+ */
+public final class MoodBinaryFormat {
+    static final int MAGIC = 0x4D4F4F44; // "MOOD"
+    static final short VERSION = 2; // 1 had no stamp and was never read by the app
+    static final int HEADER_SIZE = 22; // Up to the stamp
+    static final int ENTRY_SIZE = 9;
+    static final String EXTENSION = ".bin";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private MoodBinaryFormat() {
+    }
+
+    /**
+     * Writes the binary copy of a log. The log is locked while it is read, and
+     * the file is written to a temp file first and moved into place so readers
+     * never see a half-written file.
+     *
+     * @param file The file to write.
+     * @param log The mood log to copy.
+     * @return The number of entries written.
+     * @throws IOException If the log cannot be read or the file cannot be written.
+     */
+    public static int write(Path file, MoodLog log) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        int count;
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            synchronized (log) {
+                byte[] stamp = log.stamp().getBytes(StandardCharsets.UTF_8);
+                long entryStart = HEADER_SIZE + stamp.length;
+                long blobStart = entryStart + (long) ENTRY_SIZE * log.size(); // A record that fails to parse leaves a slot free
+                Writer writer = new Writer(out, entryStart, blobStart);
+                count = log.forEach(null, null, writer);
+                writer.finish();
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + stamp.length);
+                header.putInt(MAGIC).putShort(VERSION).putShort((short) 0).putInt(count).putLong(blobStart)
+                        .putShort((short) stamp.length).put(stamp).flip();
+                writeFully(out, header, 0);
+            }
+            out.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return count;
+    }
+
+    /**
+     * Reads the stamp of a binary copy without mapping the rest of it.
+     *
+     * @param file The binary mood file.
+     * @return The stamp of the log it was made from, or null if the file is missing or not a mood file.
+     * @throws IOException If the file exists but cannot be read.
+     */
+    public static String readStamp(Path file) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (in.read(header, 0) < HEADER_SIZE || header.getInt(0) != MAGIC || header.getShort(4) != VERSION) {
+                return null;
+            }
+            ByteBuffer stamp = ByteBuffer.allocate(header.getShort(HEADER_SIZE - 2) & 0xFFFF);
+            while (stamp.hasRemaining()) {
+                if (in.read(stamp, HEADER_SIZE + stamp.position()) < 0) {
+                    return null;
+                }
+            }
+            return new String(stamp.array(), StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the binary file that sits next to a text mood file.
+     *
+     * @param textFile The {@code <user>_mood.txt} file.
+     * @return The matching {@code <user>_mood.bin} file.
+     */
+    public static Path binaryFileFor(Path textFile) {
+        String name = textFile.getFileName().toString();
+        if (name.endsWith(".txt")) {
+            name = name.substring(0, name.length() - 4);
+        }
+        return textFile.resolveSibling(name + EXTENSION);
+    }
+
+    /**
+     * Fills the entry and blob regions side by side as the log is streamed.
+     */
+    private static final class Writer implements MoodLog.EntryVisitor {
+        private final FileChannel out;
+        private final ByteBuffer entries = ByteBuffer.allocate(BUFFER_SIZE);
+        private final ByteBuffer blobs = ByteBuffer.allocate(BUFFER_SIZE);
+        private long entryPosition;
+        private long blobPosition;
+        private long reasonOffset;
+
+        Writer(FileChannel out, long entryStart, long blobStart) {
+            this.out = out;
+            this.entryPosition = entryStart;
+            this.blobPosition = blobStart;
+        }
+
+        @Override
+        public void visit(MoodEntry entry) throws IOException {
+            if (reasonOffset > Integer.MAX_VALUE) {
+                throw new IOException("Too many reasons for a binary mood file");
+            }
+            if (entries.remaining() < ENTRY_SIZE) {
+                entryPosition += flush(out, entries, entryPosition);
+            }
+            entries.putInt((int) entry.getDate().toEpochDay()).put((byte) entry.getRating()).putInt((int) reasonOffset);
+
+            byte[] reason = entry.getReason().getBytes(StandardCharsets.UTF_8);
+            if (blobs.remaining() < 4 + reason.length) {
+                blobPosition += flush(out, blobs, blobPosition);
+            }
+            if (blobs.remaining() < 4 + reason.length) {
+                // Oversized reason, write it straight through
+                ByteBuffer large = ByteBuffer.allocate(4 + reason.length);
+                large.putInt(reason.length).put(reason).flip();
+                blobPosition += writeFully(out, large, blobPosition);
+            } else {
+                blobs.putInt(reason.length).put(reason);
+            }
+            reasonOffset += 4 + reason.length;
+        }
+
+        void finish() throws IOException {
+            flush(out, entries, entryPosition);
+            flush(out, blobs, blobPosition);
+        }
+    }
+
+    private static int flush(FileChannel out, ByteBuffer buffer, long position) throws IOException {
+        buffer.flip();
+        int written = writeFully(out, buffer, position);
+        buffer.clear();
+        return written;
+    }
+
+    private static int writeFully(FileChannel out, ByteBuffer buffer, long position) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += out.write(buffer, position + written);
+        }
+        return written;
+    }
+}
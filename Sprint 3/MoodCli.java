@@ -0,0 +1,323 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * MoodCli runs the app's storage from the command line without starting the
+ * GUI, for scripted jobs like nightly exports and backfills. Histories are
+ * streamed one entry at a time, in and out.
+ *
+ * <pre>
+ * register &lt;user&gt; &lt;password&gt;
+ * import   &lt;user&gt; [file] [format]              CSV, JSONL or mood lines from a file or stdin (see {@link MoodImporter})
+ * export   &lt;user&gt; [from] [to] [format] [file]  CSV, JSON or mood lines to a file or stdout (see {@link MoodExporter})
+ * search   &lt;user&gt; &lt;words...&gt;                  mood lines whose reason contains every word
+ * stats    &lt;user&gt; [from] [to]                  count, average, lowest and highest rating
+ * analytics [as-of]                             weekday averages, rating spread and falling trends across all users (see {@link MoodAnalytics})
+ * snapshot                                      rewrites the columnar snapshot of every user's ratings (see {@link SnapshotCompactor})
+ * daily    [from] [to]                          moods and average rating per day across all users, from the snapshot
+ * </pre>
+ *
+ * Dates are ISO dates (2024-03-14). A "-" in place of an argument leaves it
+ * out, so {@code export alice - 2024-12-31 csv} exports everything up to the end
+ * of 2024. Started through {@code java MentalHealthApp <command> ...}.
+ */
+public class MoodCli {
+    private final UserRepository users;
+    private final MoodRepository moods;
+    private final PrintStream out;
+
+    /**
+     * Creates a CLI over the given repositories.
+     *
+     * @param users The account storage.
+     * @param moods The mood storage.
+     * @param out Where results are printed.
+     */
+    public MoodCli(UserRepository users, MoodRepository moods, PrintStream out) {
+        this.users = users;
+        this.moods = moods;
+        this.out = out;
+    }
+
+    /**
+     * Runs one command against the standard data directory, on the storage
+     * backend configured for it (see {@link StorageProvider}).
+     *
+     * @param args The command and its arguments.
+     * @return The process exit code.
+     */
+    public static int run(String[] args) {
+        DataLayout layout = DataLayout.standard();
+        if (args[0].equals("analytics")) {
+            return analytics(layout, args);
+        }
+        if (args[0].equals("snapshot") || args[0].equals("daily")) {
+            return snapshot(layout, args);
+        }
+        try (StorageProvider storage = StorageProvider.open(layout)) {
+            MoodCli cli = new MoodCli(storage.getUserRepository(), storage.getMoodRepository(), System.out);
+            return cli.execute(args);
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            return 1;
+        }
+    }
+
+    /**
+     * Runs one command.
+     *
+     * @param args The command and its arguments.
+     * @return The process exit code.
+     * @throws IOException If the storage fails.
+     */
+    public int execute(String[] args) throws IOException {
+        if (args.length < 2) {
+            return usage();
+        }
+        String user = args[1];
+        switch (args[0]) {
+            case "register":
+                if (args.length < 3) {
+                    return usage();
+                }
+                if (!UserRepository.isValidUsername(user) || !UserRepository.isValidPassword(args[2])) {
+                    System.err.println("Username and password must be at least 5 characters; usernames may only use letters, digits, '.', '_' and '-'.");
+                    return 2;
+                }
+                if (!users.register(user, args[2])) {
+                    System.err.println("Username already taken.");
+                    return 1;
+                }
+                moods.createUser(user);
+                out.println("Account created.");
+                return 0;
+            case "import":
+                return requireUser(user) ? importMoods(user, arg(args, 2), arg(args, 3)) : 1;
+            case "export": {
+                if (!requireUser(user)) {
+                    return 1;
+                }
+                LocalDate[] range = range(args);
+                return range == null ? 2 : exportMoods(user, range[0], range[1], arg(args, 4), arg(args, 5));
+            }
+            case "search":
+                if (args.length < 3) {
+                    return usage();
+                }
+                return requireUser(user) ? search(user, String.join(" ", Arrays.copyOfRange(args, 2, args.length))) : 1;
+            case "stats": {
+                if (!requireUser(user)) {
+                    return 1;
+                }
+                LocalDate[] range = range(args);
+                return range == null ? 2 : stats(user, range[0], range[1]);
+            }
+            default:
+                return usage();
+        }
+    }
+
+    private int importMoods(String user, String file, String format) throws IOException {
+        MoodImporter.Format chosen;
+        if (format != null && !format.equals("-")) {
+            try {
+                chosen = MoodImporter.Format.valueOf(format.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                return usage();
+            }
+        } else {
+            chosen = file == null || file.equals("-") ? MoodImporter.Format.NATIVE : MoodImporter.Format.forFile(file);
+        }
+        MoodImporter importer = new MoodImporter(moods, System.err); // Progress stays out of piped output
+        MoodImporter.Report report;
+        if (file == null || file.equals("-")) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+            report = importer.importFrom(user, reader, chosen);
+        } else {
+            report = importer.importFile(user, Paths.get(file), chosen);
+        }
+        out.println(report);
+        return 0;
+    }
+
+    private int exportMoods(String user, LocalDate from, LocalDate to, String format, String file) throws IOException {
+        MoodExporter.Format chosen;
+        if (format != null && !format.equals("-")) {
+            try {
+                chosen = MoodExporter.Format.valueOf(format.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                return usage();
+            }
+        } else {
+            chosen = file == null || file.equals("-") ? MoodExporter.Format.NATIVE : MoodExporter.Format.forFile(file);
+        }
+        MoodExporter exporter = new MoodExporter(moods);
+        if (file == null || file.equals("-")) {
+            out.flush();
+            exporter.export(user, from, to, chosen, Channels.newChannel(out));
+            out.flush();
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            int exported = exporter.export(user, from, to, chosen, channel);
+            System.err.println("Exported " + exported + " entries to " + file + ".");
+        }
+        return 0;
+    }
+
+    private int search(String user, String query) throws IOException {
+        int[] days = moods.searchReasons(user, query);
+        for (int day : days) {
+            LocalDate date = LocalDate.ofEpochDay(day);
+            moods.forEach(user, date, date, entry -> out.println(entry.toLine()));
+        }
+        System.err.println(days.length + " matching entries.");
+        return 0;
+    }
+
+    private int stats(String user, LocalDate from, LocalDate to) throws IOException {
+        long[] totals = {0, 0, 11, 0}; // count, sum, lowest, highest
+        moods.forEach(user, from, to, entry -> {
+            totals[0]++;
+            totals[1] += entry.getRating();
+            totals[2] = Math.min(totals[2], entry.getRating());
+            totals[3] = Math.max(totals[3], entry.getRating());
+        });
+        if (totals[0] == 0) {
+            out.println("No mood history found.");
+        } else {
+            out.printf("Entries: %d  Average: %.2f  Lowest: %d  Highest: %d%n",
+                    totals[0], (double) totals[1] / totals[0], totals[2], totals[3]);
+        }
+        return 0;
+    }
+
+    private boolean requireUser(String user) throws IOException {
+        if (!users.exists(user)) {
+            System.err.println("No such user: " + user);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Prints the report across every user. Needs no repositories: the scan
+     * reads the account and mood files directly.
+     */
+    private static int analytics(DataLayout layout, String[] args) {
+        LocalDate asOf;
+        try {
+            asOf = args.length > 1 ? LocalDate.parse(args[1]) : LocalDate.now();
+        } catch (DateTimeParseException e) {
+            System.err.println("Dates must look like 2024-03-14.");
+            return 2;
+        }
+        try {
+            long start = System.nanoTime();
+            MoodAnalytics.Report report = new MoodAnalytics(layout, asOf).run();
+            report.print(System.out);
+            System.err.printf("Scanned %d users in %d ms%n", report.getUsers(), (System.nanoTime() - start) / 1_000_000);
+            return 0;
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            return 1;
+        }
+    }
+
+    /**
+     * Writes the columnar snapshot, or prints daily totals from it. Like
+     * analytics, this works on the data files directly.
+     */
+    private static int snapshot(DataLayout layout, String[] args) {
+        try {
+            long start = System.nanoTime();
+            if (args[0].equals("snapshot")) {
+                int rows = new SnapshotCompactor(layout).compact();
+                System.err.printf("Wrote %d moods (%d bytes) in %d ms%n", rows, Files.size(layout.snapshotFile()),
+                        (System.nanoTime() - start) / 1_000_000);
+                return 0;
+            }
+            LocalDate from;
+            LocalDate to;
+            try {
+                from = date(args, 1);
+                to = date(args, 2);
+            } catch (DateTimeParseException e) {
+                System.err.println("Dates must look like 2024-03-14.");
+                return 2;
+            }
+            try (MoodSnapshot snapshot = MoodSnapshot.open(layout.snapshotFile())) {
+                MoodSnapshot.Query query = snapshot.query();
+                if (from != null) {
+                    query.from(from);
+                }
+                if (to != null) {
+                    query.to(to);
+                }
+                MoodSnapshot.Groups days = query.byDay();
+                for (int i = 0; i < days.size(); i++) {
+                    System.out.printf("%s %8d %6.2f%n", LocalDate.ofEpochDay(days.key(i)), days.count(i), days.average(i));
+                }
+                System.err.printf("%d days from a snapshot taken %s, queried in %d ms%n", days.size(),
+                        Instant.ofEpochMilli(snapshot.getCreatedMillis()), (System.nanoTime() - start) / 1_000_000);
+            }
+            return 0;
+        } catch (NoSuchFileException e) {
+            System.err.println("No snapshot yet; run the snapshot command first.");
+            return 1;
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            return 1;
+        }
+    }
+
+    /**
+     * Reads the optional first and last day that export and stats take.
+     *
+     * @return {from, to}, null for an open end; null if a date is malformed, which is reported.
+     */
+    private static LocalDate[] range(String[] args) {
+        try {
+            return new LocalDate[] {date(args, 2), date(args, 3)};
+        } catch (DateTimeParseException e) {
+            System.err.println("Dates must look like 2024-03-14.");
+            return null;
+        }
+    }
+
+    private static LocalDate date(String[] args, int index) {
+        return args.length > index && !args[index].equals("-") ? LocalDate.parse(args[index]) : null;
+    }
+
+    private static String arg(String[] args, int index) {
+        return args.length > index ? args[index] : null;
+    }
+
+    private int usage() {
+        System.err.println("Usage: java MentalHealthApp <command> <user> [arguments]");
+        System.err.println("  register <user> <password>");
+        System.err.println("  import   <user> [file|-] [csv|jsonl|native]");
+        System.err.println("  export   <user> [from|-] [to|-] [csv|json|native] [file]");
+        System.err.println("  search   <user> <words...>");
+        System.err.println("  stats    <user> [from] [to]");
+        System.err.println("  analytics [as-of]");
+        System.err.println("  snapshot");
+        System.err.println("  daily    [from|-] [to|-]");
+        return 2;
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * MoodDownsampler reduces a long run of mood points to about as many points as
+ * there are pixels to draw them on. Two reductions are offered: the
+ * Largest-Triangle-Three-Buckets algorithm, which keeps the visual shape of the
+ * line, and a min/max envelope per bucket, which keeps the extremes.
+ */
+public final class MoodDownsampler {
+
+    private MoodDownsampler() {
+    }
+
+    /**
+     * Picks the days that best preserve the shape of the line (LTTB). The
+     * series is walked with two cursors, one a bucket ahead of the other,
+     * so nothing is allocated per day.
+     *
+     * @param series The full series.
+     * @param firstDay The first day to consider.
+     * @param lastDay The last day to consider.
+     * @param threshold The number of points wanted.
+     * @return The chosen days, ascending.
+     */
+    public static int[] lttb(MoodSeries series, long firstDay, long lastDay, int threshold) {
+        int count = series.rank(lastDay + 1) - series.rank(firstDay);
+        MoodSeries.Cursor current = series.cursor().range(firstDay, lastDay);
+        if (threshold >= count || threshold < 3) {
+            int[] all = new int[Math.max(0, count)];
+            for (int i = 0; i < all.length && current.next(); i++) {
+                all[i] = current.day();
+            }
+            return all;
+        }
+
+        int[] chosen = new int[threshold];
+        double bucketSize = (double) (count - 2) / (threshold - 2);
+        MoodSeries.Cursor ahead = series.cursor().range(firstDay, lastDay);
+        current.next();
+        int currentNext = 1; // Position of the day the cursor returns next
+        int aheadNext = 0;
+        chosen[0] = current.day();
+        double selectedX = current.day();
+        double selectedY = current.rating();
+        for (int bucket = 0; bucket < threshold - 2; bucket++) {
+            // Average of the next bucket is the third corner of the triangle
+            int nextStart = (int) Math.floor((bucket + 1) * bucketSize) + 1;
+            int nextEnd = Math.min(count, (int) Math.floor((bucket + 2) * bucketSize) + 1);
+            for (; aheadNext < nextStart; aheadNext++) {
+                ahead.next();
+            }
+            double averageX = 0;
+            double averageY = 0;
+            for (; aheadNext < nextEnd; aheadNext++) {
+                ahead.next();
+                averageX += ahead.day();
+                averageY += ahead.rating();
+            }
+            int nextCount = Math.max(1, nextEnd - nextStart);
+            averageX /= nextCount;
+            averageY /= nextCount;
+
+            int start = (int) Math.floor(bucket * bucketSize) + 1;
+            int end = (int) Math.floor((bucket + 1) * bucketSize) + 1;
+            for (; currentNext < start; currentNext++) {
+                current.next();
+            }
+            double largestArea = -1;
+            int bestDay = 0;
+            int bestRating = 0;
+            for (; currentNext < end; currentNext++) {
+                current.next();
+                double area = Math.abs((selectedX - averageX) * (current.rating() - selectedY)
+                        - (selectedX - current.day()) * (averageY - selectedY));
+                if (area > largestArea) {
+                    largestArea = area;
+                    bestDay = current.day();
+                    bestRating = current.rating();
+                }
+            }
+            chosen[bucket + 1] = bestDay;
+            selectedX = bestDay;
+            selectedY = bestRating;
+        }
+        chosen[threshold - 1] = series.dayAt(series.rank(lastDay + 1) - 1);
+        return chosen;
+    }
+
+    /**
+     * Splits a day range into equal buckets and records the lowest and highest
+     * rating in each one.
+     *
+     * @param series The full series.
+     * @param firstDay The first day of the range.
+     * @param lastDay The last day of the range.
+     * @param buckets The number of buckets, usually the chart width in pixels.
+     * @return Pairs of {min, max} per bucket; both are 0 for a bucket with no entries.
+     */
+    public static int[][] minMax(MoodSeries series, long firstDay, long lastDay, int buckets) {
+        int[][] envelope = new int[buckets][2];
+        double daysPerBucket = (double) (lastDay - firstDay + 1) / buckets;
+        MoodSeries.Cursor days = series.cursor().range(firstDay, lastDay);
+        while (days.next()) {
+            int bucket = Math.min(buckets - 1, (int) ((days.day() - firstDay) / daysPerBucket));
+            int rating = days.rating();
+            int[] range = envelope[bucket];
+            if (range[0] == 0 || rating < range[0]) {
+                range[0] = rating;
+            }
+            if (rating > range[1]) {
+                range[1] = rating;
+            }
+        }
+        return envelope;
+    }
+}
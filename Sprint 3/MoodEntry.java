@@ -0,0 +1,183 @@
+import java.time.LocalDate;
+
+/**
+ * MoodEntry is a single day's mood submission: the date, the 1-10 rating and the
+ * reason the user typed in.
+ */
+public final class MoodEntry {
+    public static final int MIN_RATING = 1;
+    public static final int MAX_RATING = 10;
+
+    /**
+     * The first and last days an entry can be for: the four-digit years,
+     * which are all the mood file and import formats write. Keeping dates in
+     * this range also keeps every epoch day well inside an int.
+     */
+    public static final LocalDate MIN_DATE = LocalDate.of(1, 1, 1);
+    public static final LocalDate MAX_DATE = LocalDate.of(9999, 12, 31);
+
+    private static final String DATE_PREFIX = "Date: ";
+    private static final String MOOD_PREFIX = ", Mood: ";
+    private static final String REASON_PREFIX = ", Reason: ";
+    private static final String ESCAPED_REASON_PREFIX = ", Escaped reason: ";
+
+    private final LocalDate date;
+    private final int rating;
+    private final String reason;
+
+    /**
+     * Creates a mood entry.
+     *
+     * @param date The day the mood was recorded for.
+     * @param rating The mood rating (1-10).
+     * @param reason The description of the mood.
+     * @throws IllegalArgumentException If the date is outside {@link #MIN_DATE} to {@link #MAX_DATE}.
+     */
+    public MoodEntry(LocalDate date, int rating, String reason) {
+        if (!isValidDate(date)) {
+            throw new IllegalArgumentException("Mood dates must be between " + MIN_DATE + " and " + MAX_DATE + ": "
+                    + date);
+        }
+        this.date = date;
+        this.rating = rating;
+        this.reason = reason == null ? "" : reason;
+    }
+
+    /**
+     * Checks a rating against the range the mood form accepts.
+     *
+     * @param rating The rating to check.
+     * @return true if the rating is between 1 and 10.
+     */
+    public static boolean isValidRating(int rating) {
+        return rating >= MIN_RATING && rating <= MAX_RATING;
+    }
+
+    /**
+     * Checks a date against the range an entry can have.
+     *
+     * @param date The date to check.
+     * @return true if the date is between {@link #MIN_DATE} and {@link #MAX_DATE}.
+     */
+    public static boolean isValidDate(LocalDate date) {
+        return date != null && !date.isBefore(MIN_DATE) && !date.isAfter(MAX_DATE);
+    }
+
+    public LocalDate getDate() {
+        return date;
+    }
+
+    public int getRating() {
+        return rating;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    /**
+     * Formats the entry as a single mood file line (without the trailing newline).
+     * Line breaks in the reason are escaped so every record stays on one line.
+     * Only a reason that needed escaping is written after "Escaped reason:",
+     * so lines written before escaping existed are still read back as-is.
+     *
+     * @return The line in the "Date: ..., Mood: ..., Reason: ..." format.
+     */
+    public String toLine() {
+        String escaped = escape(reason);
+        return DATE_PREFIX + date + MOOD_PREFIX + rating
+                + (escaped.equals(reason) ? REASON_PREFIX : ESCAPED_REASON_PREFIX) + escaped;
+    }
+
+    /**
+     * Formats the entry the way it is shown to the user in the history view.
+     *
+     * @return The display text of the entry.
+     */
+    @Override
+    public String toString() {
+        return DATE_PREFIX + date + MOOD_PREFIX + rating + REASON_PREFIX + reason;
+    }
+
+    /**
+     * Checks whether a line looks like a mood record.
+     *
+     * @param line The line to check.
+     * @return true if the line starts with the record prefix.
+     */
+    public static boolean isRecordLine(String line) {
+        return line.startsWith(DATE_PREFIX);
+    }
+
+    /**
+     * Parses a mood file line back into an entry. A reason after "Reason:"
+     * is taken literally, backslashes included; only one after
+     * "Escaped reason:" is unescaped.
+     *
+     * @param line The line in the "Date: ..., Mood: ..., Reason: ..." format.
+     * @return The parsed entry, or null if the line is not a valid record.
+     */
+    public static MoodEntry parse(String line) {
+        if (!isRecordLine(line)) {
+            return null;
+        }
+        int moodAt = line.indexOf(MOOD_PREFIX);
+        if (moodAt < 0) {
+            return null;
+        }
+        int reasonAt = line.indexOf(REASON_PREFIX, moodAt);
+        int escapedAt = line.indexOf(ESCAPED_REASON_PREFIX, moodAt);
+        boolean escaped = escapedAt >= 0 && (reasonAt < 0 || escapedAt < reasonAt); // The first one ends the rating
+        int ratingEnd = escaped ? escapedAt : reasonAt < 0 ? line.length() : reasonAt;
+        try {
+            LocalDate date = LocalDate.parse(line.substring(DATE_PREFIX.length(), moodAt));
+            int rating = Integer.parseInt(line.substring(moodAt + MOOD_PREFIX.length(), ratingEnd).trim());
+            String reason = escaped ? unescape(line.substring(escapedAt + ESCAPED_REASON_PREFIX.length()))
+                    : reasonAt < 0 ? "" : line.substring(reasonAt + REASON_PREFIX.length());
+            return new MoodEntry(date, rating, reason);
+        } catch (RuntimeException e) {
+            return null; // Not a record we understand
+        }
+    }
+
+    /**
+     * Escapes backslashes and line breaks so the text fits on one line.
+     */
+    static String escape(String text) {
+        if (text.indexOf('\\') < 0 && text.indexOf('\n') < 0 && text.indexOf('\r') < 0) {
+            return text;
+        }
+        StringBuilder out = new StringBuilder(text.length() + 8);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\') {
+                out.append("\\\\");
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else if (c != '\r') {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Reverses {@link #escape(String)}.
+     */
+    static String unescape(String text) {
+        if (text.indexOf('\\') < 0) {
+            return text;
+        }
+        StringBuilder out = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length()) {
+                char next = text.charAt(++i);
+                out.append(next == 'n' ? '\n' : next);
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+}
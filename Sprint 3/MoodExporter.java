@@ -0,0 +1,175 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.Locale;
+
+/**
+ * MoodExporter writes a user's mood history for a date range to a channel as
+ * CSV, JSON or native mood lines. Entries are streamed one at a time through a
+ * fixed-size buffer, so a range of any length is never held in memory.
+ *
+ * <p>A native export whose range lies back to back on disk is copied with
+ * {@link java.nio.channels.FileChannel#transferTo}, which lets the operating
+ * system move the bytes from the log file to a file or socket directly.
+ */
+public class MoodExporter {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The formats an export can write.
+     */
+    public enum Format {
+        CSV, JSON, NATIVE;
+
+        /**
+         * Picks a format from a file name's extension.
+         *
+         * @param fileName The file name.
+         * @return CSV for ".csv", JSON for ".json", NATIVE otherwise.
+         */
+        public static Format forFile(String fileName) {
+            String name = fileName.toLowerCase(Locale.ROOT);
+            if (name.endsWith(".csv")) {
+                return CSV;
+            }
+            if (name.endsWith(".json")) {
+                return JSON;
+            }
+            return NATIVE;
+        }
+    }
+
+    private final MoodRepository moods;
+
+    /**
+     * Creates an exporter.
+     *
+     * @param moods Where the moods are read from.
+     */
+    public MoodExporter(MoodRepository moods) {
+        this.moods = moods;
+    }
+
+    /**
+     * Exports a date range. The target channel is not closed.
+     *
+     * @param username The user whose moods are exported.
+     * @param from The first day, inclusive, or null for the oldest.
+     * @param to The last day, inclusive, or null for the newest.
+     * @param format The output format.
+     * @param target Where the export is written.
+     * @return The number of entries exported.
+     * @throws IOException If the moods cannot be read or the target cannot be written.
+     */
+    public int export(String username, LocalDate from, LocalDate to, Format format, WritableByteChannel target) throws IOException {
+        if (format == Format.NATIVE) {
+            int copied = moods.transferNative(username, from, to, target);
+            if (copied >= 0) {
+                return copied;
+            }
+        }
+
+        Writer writer = new BufferedWriter(Channels.newWriter(target, StandardCharsets.UTF_8.newEncoder(), BUFFER_SIZE), BUFFER_SIZE);
+        int exported;
+        switch (format) {
+            case CSV:
+                writer.write("date,rating,reason\n");
+                exported = moods.forEach(username, from, to, entry -> {
+                    writer.write(entry.getDate().toString());
+                    writer.write(',');
+                    writer.write(Integer.toString(entry.getRating()));
+                    writer.write(',');
+                    writeCsvField(writer, entry.getReason());
+                    writer.write('\n');
+                });
+                break;
+            case JSON:
+                writer.write('[');
+                boolean[] first = {true};
+                exported = moods.forEach(username, from, to, entry -> {
+                    writer.write(first[0] ? "\n" : ",\n");
+                    first[0] = false;
+                    writer.write("  {\"date\": \"");
+                    writer.write(entry.getDate().toString());
+                    writer.write("\", \"rating\": ");
+                    writer.write(Integer.toString(entry.getRating()));
+                    writer.write(", \"reason\": ");
+                    writeJsonString(writer, entry.getReason());
+                    writer.write('}');
+                });
+                writer.write(first[0] ? "]\n" : "\n]\n");
+                break;
+            default:
+                exported = moods.forEach(username, from, to, entry -> {
+                    writer.write(entry.toLine());
+                    writer.write('\n');
+                });
+                break;
+        }
+        writer.flush();
+        return exported;
+    }
+
+    /**
+     * Writes a CSV field, quoting it only when it holds a comma, quote or line break.
+     */
+    static void writeCsvField(Writer writer, String value) throws IOException {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                writer.write('"');
+            }
+            writer.write(c);
+        }
+        writer.write('"');
+    }
+
+    /**
+     * Writes a JSON string literal.
+     */
+    static void writeJsonString(Writer writer, String value) throws IOException {
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        writer.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        writer.write(c);
+                    }
+                    break;
+            }
+        }
+        writer.write('"');
+    }
+}
@@ -0,0 +1,158 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.geom.Path2D;
+import java.time.LocalDate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * MoodGraphPanel draws the user's mood ratings over time. Long ranges are
+ * downsampled to the chart width with {@link MoodDownsampler}: an LTTB line on
+ * top of a min/max band, so painting costs the same for a month as for years
+ * of daily entries. The downsampled series is cached per zoom level and size.
+ */
+public class MoodGraphPanel extends JComponent {
+    private static final long serialVersionUID = 1L;
+
+    public static final String[] ZOOM_NAMES = {"Last 30 days", "Last 90 days", "Last year", "All time"};
+    private static final int[] ZOOM_DAYS = {30, 90, 365, 0}; // 0 means the whole history
+    private static final int MAX_CACHED_SERIES = 8;
+    private static final int LEFT = 28, TOP = 10, RIGHT = 10, BOTTOM = 20;
+    private static final Color BAND_COLOR = new Color(200, 215, 235);
+    private static final Color LINE_COLOR = new Color(40, 90, 160);
+
+    private MoodSeries series = new MoodSeries();
+    private int zoom;
+    private final Map<String, RenderedSeries> cache = new LinkedHashMap<String, RenderedSeries>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, RenderedSeries> eldest) {
+            return size() > MAX_CACHED_SERIES;
+        }
+    };
+
+    /**
+     * A downsampled series already converted to pixel coordinates.
+     */
+    private static final class RenderedSeries {
+        final Path2D line;
+        final int[][] band;
+        final long firstDay;
+        final long lastDay;
+
+        RenderedSeries(Path2D line, int[][] band, long firstDay, long lastDay) {
+            this.line = line;
+            this.band = band;
+            this.firstDay = firstDay;
+            this.lastDay = lastDay;
+        }
+    }
+
+    /**
+     * Creates an empty graph.
+     */
+    public MoodGraphPanel() {
+        setPreferredSize(new Dimension(380, 200));
+    }
+
+    /**
+     * Replaces the plotted ratings and drops every cached series.
+     *
+     * @param series The ratings to plot; the graph keeps it, so it must not change afterwards.
+     */
+    public void setSeries(MoodSeries series) {
+        this.series = series;
+        cache.clear();
+        repaint();
+    }
+
+    /**
+     * Selects how much of the history is shown.
+     *
+     * @param zoom An index into {@link #ZOOM_NAMES}.
+     */
+    public void setZoom(int zoom) {
+        this.zoom = zoom;
+        repaint();
+    }
+
+    @Override
+    protected void paintComponent(Graphics graphics) {
+        Graphics2D g = (Graphics2D) graphics.create();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, getWidth(), getHeight());
+
+        int plotWidth = getWidth() - LEFT - RIGHT;
+        int plotHeight = getHeight() - TOP - BOTTOM;
+        if (plotWidth < 10 || plotHeight < 10) {
+            g.dispose();
+            return;
+        }
+
+        // Axes and rating labels
+        g.setColor(Color.GRAY);
+        g.drawLine(LEFT, TOP, LEFT, TOP + plotHeight);
+        g.drawLine(LEFT, TOP + plotHeight, LEFT + plotWidth, TOP + plotHeight);
+        for (int rating : new int[] {1, 5, 10}) {
+            g.drawString(String.valueOf(rating), 4, ratingY(rating, plotHeight) + 4);
+        }
+
+        if (series.isEmpty()) {
+            g.drawString("No mood history found.", LEFT + 10, TOP + plotHeight / 2);
+            g.dispose();
+            return;
+        }
+
+        RenderedSeries series = cache.get(zoom + ":" + plotWidth + "x" + plotHeight);
+        if (series == null) {
+            series = render(plotWidth, plotHeight);
+            cache.put(zoom + ":" + plotWidth + "x" + plotHeight, series);
+        }
+
+        g.setColor(BAND_COLOR);
+        for (int x = 0; x < series.band.length; x++) {
+            int[] range = series.band[x];
+            if (range[1] > 0) {
+                g.drawLine(LEFT + x, ratingY(range[0], plotHeight), LEFT + x, ratingY(range[1], plotHeight));
+            }
+        }
+        g.setColor(LINE_COLOR);
+        g.setStroke(new BasicStroke(1.5f));
+        g.draw(series.line);
+
+        g.setColor(Color.GRAY);
+        String first = LocalDate.ofEpochDay(series.firstDay).toString();
+        String last = LocalDate.ofEpochDay(series.lastDay).toString();
+        FontMetrics metrics = g.getFontMetrics();
+        g.drawString(first, LEFT, getHeight() - 5);
+        g.drawString(last, LEFT + plotWidth - metrics.stringWidth(last), getHeight() - 5);
+        g.dispose();
+    }
+
+    /**
+     * Downsamples the selected range to the plot width and converts it to pixels.
+     */
+    private RenderedSeries render(int plotWidth, int plotHeight) {
+        long lastDay = series.lastDay();
+        long firstDay = ZOOM_DAYS[zoom] == 0 ? series.firstDay() : lastDay - ZOOM_DAYS[zoom] + 1;
+        double pixelsPerDay = (double) plotWidth / Math.max(1, lastDay - firstDay);
+
+        Path2D line = new Path2D.Float();
+        int[] chosen = MoodDownsampler.lttb(series, firstDay, lastDay, plotWidth);
+        for (int i = 0; i < chosen.length; i++) {
+            double x = LEFT + (chosen[i] - firstDay) * pixelsPerDay;
+            double y = ratingY(series.rating(chosen[i]), plotHeight);
+            if (i == 0) {
+                line.moveTo(x, y);
+            } else {
+                line.lineTo(x, y);
+            }
+        }
+        int[][] band = MoodDownsampler.minMax(series, firstDay, lastDay, plotWidth);
+        return new RenderedSeries(line, band, firstDay, lastDay);
+    }
+
+    private static int ratingY(int rating, int plotHeight) {
+        return TOP + plotHeight - (rating - 1) * plotHeight / 9;
+    }
+}
@@ -0,0 +1,218 @@
+import javax.swing.table.AbstractTableModel;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * MoodHistoryTableModel backs the mood history table. Dates and ratings come
+ * from a copy of the log's {@link MoodSeries}, so every row can be shown at
+ * once; only reasons are read from the mood log, a page at a time, when the
+ * table asks for them, and a small LRU window of pages is kept. Pages are read
+ * in the background; until a page arrives its reasons show a placeholder. The
+ * cached pages last for the whole login: new submissions are written through
+ * to them rather than re-reading the log.
+ */
+public class MoodHistoryTableModel extends AbstractTableModel {
+    private static final long serialVersionUID = 1L;
+
+    private static final String[] COLUMNS = {"Date", "Mood", "Reason"};
+    private static final int PAGE_SIZE = 100;
+    private static final int MAX_PAGES = 10;
+    private static final String LOADING = "Loading...";
+
+    private final PersistenceService persistence;
+    private final Set<Integer> pendingPages = new HashSet<>();
+    private final Map<Integer, String[]> pages = new LinkedHashMap<Integer, String[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, String[]> eldest) {
+            return size() > MAX_PAGES;
+        }
+    };
+    private MoodLog log;
+    private MoodSeries series = new MoodSeries();
+    private int[] chosenDays; // The days shown when filtered, in display order; null for the whole log
+    private int generation; // Drops pages that arrive after the model was reset
+
+    /**
+     * Creates an empty model.
+     *
+     * @param persistence The service used to read pages in the background.
+     */
+    public MoodHistoryTableModel(PersistenceService persistence) {
+        this.persistence = persistence;
+    }
+
+    /**
+     * Points the model at a mood log and forgets any cached reasons. Only
+     * the ratings are copied here; reasons load as they are displayed.
+     *
+     * @param log The mood log to show, or null to show nothing.
+     */
+    public void reset(MoodLog log) {
+        show(log, log == null ? new MoodSeries() : log.series(), null);
+    }
+
+    /**
+     * @return true if the model shows chosen days, such as search results,
+     *         rather than the whole log.
+     */
+    public boolean isFiltered() {
+        return chosenDays != null;
+    }
+
+    /**
+     * Folds a just-saved entry into the shown rows. An overwritten day is
+     * updated in place, and a new day is inserted at its position; cached
+     * reasons after it move down with it.
+     *
+     * @param entry The entry that was saved.
+     * @param log The mood log it was saved to.
+     */
+    public void entrySaved(MoodEntry entry, MoodLog log) {
+        if (chosenDays != null || log != this.log) {
+            reset(log);
+            return;
+        }
+        generation++; // Pages read before the save may be missing the entry
+        pendingPages.clear();
+
+        int day = (int) entry.getDate().toEpochDay();
+        boolean overwrite = series.contains(day);
+        series.put(day, entry.getRating());
+        int row = series.rank(day);
+        int page = row / PAGE_SIZE;
+        if (overwrite) {
+            String[] reasons = pages.get(page);
+            if (reasons != null) {
+                reasons[row % PAGE_SIZE] = entry.getReason();
+            }
+            fireTableRowsUpdated(row, row);
+            return;
+        }
+        // Pages from this one on have shifted; keep the first if the new row is its last
+        String[] reasons = pages.get(page);
+        pages.keySet().removeIf(cached -> cached >= page);
+        if (reasons != null && row % PAGE_SIZE == countOnPage(page) - 1) {
+            String[] grown = Arrays.copyOf(reasons, countOnPage(page));
+            grown[row % PAGE_SIZE] = entry.getReason();
+            pages.put(page, grown);
+        }
+        fireTableRowsInserted(row, row);
+    }
+
+    /**
+     * Points the model at a chosen set of days from a mood log, such as the
+     * results of a search. Reasons load as they are displayed.
+     *
+     * @param log The mood log the days come from.
+     * @param epochDays The days to show, in display order.
+     */
+    public void showDays(MoodLog log, int[] epochDays) {
+        show(log, log.series(), epochDays);
+    }
+
+    private void show(MoodLog log, MoodSeries series, int[] chosenDays) {
+        this.log = log;
+        this.series = series;
+        this.chosenDays = chosenDays;
+        generation++;
+        pages.clear();
+        pendingPages.clear();
+        fireTableDataChanged();
+    }
+
+    @Override
+    public int getRowCount() {
+        return chosenDays != null ? chosenDays.length : series.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        int day = dayAt(row);
+        switch (column) {
+            case 0:
+                return LocalDate.ofEpochDay(day).toString();
+            case 1:
+                return series.rating(day);
+            default:
+                String reason = reasonAt(row);
+                return reason == null ? LOADING : reason;
+        }
+    }
+
+    /**
+     * @param row The row number.
+     * @return The epoch day shown on the row.
+     */
+    public int dayAt(int row) {
+        return chosenDays != null ? chosenDays[row] : series.dayAt(row);
+    }
+
+    /**
+     * Returns a row's reason if its page is cached, otherwise starts loading the page.
+     *
+     * @param row The row number.
+     * @return The reason, or null while its page is loading.
+     */
+    public String reasonAt(int row) {
+        int page = row / PAGE_SIZE;
+        String[] reasons = pages.get(page);
+        if (reasons == null) {
+            requestPage(page);
+            return null;
+        }
+        int offset = row % PAGE_SIZE;
+        return offset < reasons.length ? reasons[offset] : null;
+    }
+
+    private int countOnPage(int page) {
+        return Math.min(PAGE_SIZE, getRowCount() - page * PAGE_SIZE);
+    }
+
+    private void requestPage(int page) {
+        if (log == null || !pendingPages.add(page)) {
+            return;
+        }
+        MoodLog pageLog = log;
+        int[] days = new int[Math.max(0, countOnPage(page))];
+        for (int i = 0; i < days.length; i++) {
+            days[i] = dayAt(page * PAGE_SIZE + i);
+        }
+        int requestGeneration = generation;
+        PersistenceService.onEdt(persistence.read(() -> {
+            String[] reasons = new String[days.length];
+            for (int i = 0; i < days.length; i++) {
+                MoodEntry entry = pageLog.get(LocalDate.ofEpochDay(days[i]));
+                reasons[i] = entry != null ? entry.getReason() : "";
+            }
+            return reasons;
+        }), reasons -> {
+            if (requestGeneration != generation) {
+                return;
+            }
+            pendingPages.remove(page);
+            pages.put(page, reasons);
+            int first = page * PAGE_SIZE;
+            int last = Math.min(getRowCount(), first + PAGE_SIZE) - 1;
+            if (first <= last) {
+                fireTableRowsUpdated(first, last);
+            }
+        }, error -> {
+            // The page stays marked as pending so a failing read is not retried on every repaint
+            System.out.println("Failed to load mood history: " + error.getMessage());
+        });
+    }
+}
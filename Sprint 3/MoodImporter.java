@@ -0,0 +1,651 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.LineNumberReader;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * MoodImporter loads a mood history exported from another tracker. Rows are
+ * streamed from a CSV, JSONL or native mood file, checked against the same 1-10
+ * rule as the mood form and the {@link MoodEntry#MIN_DATE} to
+ * {@link MoodEntry#MAX_DATE} date range, sorted and deduplicated by date, and handed to the
+ * {@link MoodRepository} as one ordered stream so the log is written in a
+ * single batched pass.
+ *
+ * <p>Sorting is done in runs of {@value #RUN_SIZE} rows. A file with more rows
+ * than that is sorted run by run into temporary files which are then merged,
+ * so memory use does not grow with the size of the file. When a day appears
+ * more than once, the row nearest the end of the file wins.
+ *
+ * <p>Accepted rows:
+ * <pre>
+ * CSV     date,rating,reason        an optional header row; reasons may be quoted ("a, ""b""")
+ * JSONL   {"date": "2024-03-14", "rating": 7, "reason": "..."}   "mood" is accepted for "rating"
+ * NATIVE  Date: 2024-03-14, Mood: 7, Reason: ...
+ * </pre>
+ */
+public class MoodImporter {
+    static final int RUN_SIZE = 100_000;
+    static final int MAX_REPORTED_LINES = 10;
+    private static final long PROGRESS_INTERVAL = 250_000;
+
+    private static final Comparator<MoodEntry> BY_DATE = Comparator.comparing(MoodEntry::getDate);
+
+    /**
+     * The file formats an import can read.
+     */
+    public enum Format {
+        CSV, JSONL, NATIVE;
+
+        /**
+         * Picks a format from a file name's extension.
+         *
+         * @param fileName The file name.
+         * @return CSV for ".csv", JSONL for ".jsonl", ".ndjson" or ".json", NATIVE otherwise.
+         */
+        public static Format forFile(String fileName) {
+            String name = fileName.toLowerCase(Locale.ROOT);
+            if (name.endsWith(".csv")) {
+                return CSV;
+            }
+            if (name.endsWith(".jsonl") || name.endsWith(".ndjson") || name.endsWith(".json")) {
+                return JSONL;
+            }
+            return NATIVE;
+        }
+    }
+
+    /**
+     * What an import did.
+     */
+    public static final class Report {
+        private long rows;
+        private long imported;
+        private long skipped;
+        private final List<Long> skippedLines = new ArrayList<>(); // The first few, to point at the bad rows
+        private long duplicates;
+        private long nanos;
+
+        /**
+         * @return The rows read, including skipped ones.
+         */
+        public long getRows() {
+            return rows;
+        }
+
+        /**
+         * @return The days written to the mood log.
+         */
+        public long getImported() {
+            return imported;
+        }
+
+        /**
+         * @return The rows with a missing or out-of-range date or a rating outside 1-10.
+         */
+        public long getSkipped() {
+            return skipped;
+        }
+
+        /**
+         * @return The line numbers of the first {@value MoodImporter#MAX_REPORTED_LINES} skipped rows.
+         */
+        public List<Long> getSkippedLines() {
+            return skippedLines;
+        }
+
+        /**
+         * @return The rows dropped because a later row had the same day.
+         */
+        public long getDuplicates() {
+            return duplicates;
+        }
+
+        /**
+         * @return The rows read per second over the whole import.
+         */
+        public double getRowsPerSecond() {
+            return nanos == 0 ? 0 : rows * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            String summary = String.format(Locale.ROOT,
+                    "Imported %d entries from %d rows, skipped %d, duplicates %d in %.1f s (%.0f rows/s).",
+                    imported, rows, skipped, duplicates, nanos / 1e9, getRowsPerSecond());
+            if (skippedLines.isEmpty()) {
+                return summary;
+            }
+            String lines = skippedLines.toString();
+            return summary + " Skipped lines: " + lines.substring(1, lines.length() - 1)
+                    + (skipped > skippedLines.size() ? ", ..." : "");
+        }
+    }
+
+    private final MoodRepository moods;
+    private final PrintStream progress;
+
+    /**
+     * Creates an importer.
+     *
+     * @param moods Where imported moods are saved.
+     * @param progress Where progress lines are printed, or null for none.
+     */
+    public MoodImporter(MoodRepository moods, PrintStream progress) {
+        this.moods = moods;
+        this.progress = progress;
+    }
+
+    /**
+     * Imports a file.
+     *
+     * @param username The user the moods belong to.
+     * @param file The file to read.
+     * @param format The file's format.
+     * @return What was imported.
+     * @throws IOException If the file cannot be read or the moods cannot be saved.
+     */
+    public Report importFile(String username, Path file, Format format) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return importFrom(username, reader, format);
+        }
+    }
+
+    /**
+     * Imports rows from a reader. The reader is not closed. Line numbers in
+     * the report count from the reader's current position.
+     *
+     * @param username The user the moods belong to.
+     * @param reader The rows to read.
+     * @param format The rows' format.
+     * @return What was imported.
+     * @throws IOException If the rows cannot be read or the moods cannot be saved.
+     */
+    public Report importFrom(String username, BufferedReader reader, Format format) throws IOException {
+        Report report = new Report();
+        long started = System.nanoTime();
+        List<MoodEntry> buffer = new ArrayList<>();
+        List<Path> runs = new ArrayList<>();
+        RunMerger merger = null;
+        LineNumberReader lines = new LineNumberReader(reader);
+        try {
+            String record;
+            boolean first = true;
+            long linesRead = 0;
+            while ((record = readRecord(lines, format)) != null) {
+                long line = linesRead + 1; // Where the record starts; a CSV record may span lines
+                linesRead = lines.getLineNumber();
+                if (record.trim().isEmpty()) {
+                    continue;
+                }
+                MoodEntry entry = parse(record, format);
+                boolean header = first && entry == null && format == Format.CSV;
+                first = false;
+                if (header) {
+                    continue;
+                }
+                report.rows++;
+                if (entry == null) {
+                    report.skipped++;
+                    if (report.skippedLines.size() < MAX_REPORTED_LINES) {
+                        report.skippedLines.add(line);
+                    }
+                    continue;
+                }
+                buffer.add(entry);
+                if (buffer.size() == RUN_SIZE) {
+                    runs.add(spill(sortRun(buffer, report)));
+                    buffer.clear();
+                }
+                if (report.rows % PROGRESS_INTERVAL == 0) {
+                    printProgress("Read", report.rows, started);
+                }
+            }
+
+            Iterator<MoodEntry> sorted;
+            if (runs.isEmpty()) {
+                sorted = sortRun(buffer, report).iterator();
+            } else {
+                if (!buffer.isEmpty()) {
+                    runs.add(spill(sortRun(buffer, report)));
+                    buffer.clear();
+                }
+                merger = new RunMerger(runs, report);
+                sorted = merger;
+            }
+            report.imported = moods.saveAll(username, new ProgressIterator(sorted, started));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            if (merger != null) {
+                merger.closeAll();
+            }
+            for (Path run : runs) {
+                Files.deleteIfExists(run);
+            }
+            report.nanos = System.nanoTime() - started;
+        }
+        return report;
+    }
+
+    /**
+     * Sorts a run by date in place, keeping only the last row for each day.
+     */
+    private static List<MoodEntry> sortRun(List<MoodEntry> run, Report report) {
+        run.sort(BY_DATE); // Stable, so rows for the same day stay in file order
+        int kept = 0;
+        for (int i = 0; i < run.size(); i++) {
+            if (i + 1 < run.size() && run.get(i + 1).getDate().equals(run.get(i).getDate())) {
+                report.duplicates++;
+                continue;
+            }
+            run.set(kept++, run.get(i));
+        }
+        run.subList(kept, run.size()).clear();
+        return run;
+    }
+
+    private static Path spill(List<MoodEntry> run) throws IOException {
+        Path file = Files.createTempFile("mood-import", ".run");
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (MoodEntry entry : run) {
+                writer.write(entry.toLine());
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        return file;
+    }
+
+    private void printProgress(String phase, long rows, long started) {
+        if (progress != null) {
+            double seconds = (System.nanoTime() - started) / 1e9;
+            progress.printf(Locale.ROOT, "%s %d rows (%.0f rows/s)%n", phase, rows, seconds == 0 ? 0 : rows / seconds);
+        }
+    }
+
+    /**
+     * Merges sorted run files into one date-ordered stream. When runs share a
+     * day, the entry from the later run wins.
+     */
+    private static final class RunMerger implements Iterator<MoodEntry> {
+        private final PriorityQueue<RunCursor> cursors = new PriorityQueue<>(
+                Comparator.comparing((RunCursor cursor) -> cursor.current.getDate()).thenComparingInt(cursor -> cursor.number));
+        private final Report report;
+
+        RunMerger(List<Path> runs, Report report) throws IOException {
+            this.report = report;
+            try {
+                for (int i = 0; i < runs.size(); i++) {
+                    RunCursor cursor = new RunCursor(i, Files.newBufferedReader(runs.get(i), StandardCharsets.UTF_8));
+                    if (cursor.advance()) {
+                        cursors.add(cursor);
+                    }
+                }
+            } catch (IOException e) {
+                closeAll();
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !cursors.isEmpty();
+        }
+
+        @Override
+        public MoodEntry next() {
+            if (cursors.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            try {
+                MoodEntry winner = take();
+                while (!cursors.isEmpty() && cursors.peek().current.getDate().equals(winner.getDate())) {
+                    winner = take();
+                    report.duplicates++;
+                }
+                return winner;
+            } catch (IOException e) {
+                closeAll();
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private MoodEntry take() throws IOException {
+            RunCursor cursor = cursors.poll();
+            MoodEntry entry = cursor.current;
+            if (cursor.advance()) {
+                cursors.add(cursor);
+            }
+            return entry;
+        }
+
+        private void closeAll() {
+            for (RunCursor cursor : cursors) {
+                try {
+                    cursor.reader.close();
+                } catch (IOException e) {
+                    // Nothing more to read from it anyway
+                }
+            }
+            cursors.clear();
+        }
+    }
+
+    /**
+     * The next unread entry of one run file.
+     */
+    private static final class RunCursor {
+        final int number;
+        final BufferedReader reader;
+        MoodEntry current;
+
+        RunCursor(int number, BufferedReader reader) {
+            this.number = number;
+            this.reader = reader;
+        }
+
+        /**
+         * Moves to the next entry, closing the file at its end.
+         */
+        boolean advance() throws IOException {
+            String line = reader.readLine();
+            if (line == null) {
+                reader.close();
+                return false;
+            }
+            current = MoodEntry.parse(line);
+            if (current == null) {
+                reader.close();
+                throw new IOException("Damaged import run file");
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Prints how many entries have been written as the repository pulls them.
+     */
+    private final class ProgressIterator implements Iterator<MoodEntry> {
+        private final Iterator<MoodEntry> entries;
+        private final long started;
+        private long written;
+
+        ProgressIterator(Iterator<MoodEntry> entries, long started) {
+            this.entries = entries;
+            this.started = started;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return entries.hasNext();
+        }
+
+        @Override
+        public MoodEntry next() {
+            MoodEntry entry = entries.next();
+            if (++written % PROGRESS_INTERVAL == 0) {
+                printProgress("Wrote", written, started);
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Reads one record. A CSV record may span lines inside a quoted reason.
+     */
+    private static String readRecord(BufferedReader reader, Format format) throws IOException {
+        String line = reader.readLine();
+        if (line == null || format != Format.CSV) {
+            return line;
+        }
+        StringBuilder record = null;
+        while (countQuotes(line) % 2 != 0) {
+            String next = reader.readLine();
+            if (next == null) {
+                break; // An unterminated quote; let the parser reject it
+            }
+            if (record == null) {
+                record = new StringBuilder(line);
+            }
+            record.append('\n').append(next);
+            line = record.toString();
+        }
+        return line;
+    }
+
+    private static int countQuotes(String text) {
+        int quotes = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '"') {
+                quotes++;
+            }
+        }
+        return quotes;
+    }
+
+    /**
+     * Parses one record.
+     *
+     * @return The entry, or null if the record has no valid date, a date
+     *         outside {@link MoodEntry#isValidDate}, or a rating outside 1-10.
+     */
+    static MoodEntry parse(String record, Format format) {
+        try {
+            MoodEntry entry;
+            switch (format) {
+                case CSV:
+                    entry = parseCsv(record);
+                    break;
+                case JSONL:
+                    entry = parseJson(record);
+                    break;
+                default:
+                    entry = MoodEntry.parse(record.endsWith("\r") ? record.substring(0, record.length() - 1) : record);
+                    break;
+            }
+            return entry != null && MoodEntry.isValidRating(entry.getRating()) && MoodEntry.isValidDate(entry.getDate())
+                    ? entry : null;
+        } catch (DateTimeParseException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static MoodEntry parseCsv(String record) {
+        List<String> fields = new ArrayList<>(3);
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < record.length(); i++) {
+            char c = record.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < record.length() && record.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',' && fields.size() < 2) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c != '\r' || i != record.length() - 1) {
+                field.append(c);
+            }
+        }
+        if (quoted) {
+            return null;
+        }
+        fields.add(field.toString());
+        if (fields.size() < 2) {
+            return null;
+        }
+        LocalDate date = LocalDate.parse(fields.get(0).trim());
+        if (!MoodEntry.isValidDate(date)) {
+            return null;
+        }
+        return new MoodEntry(date, Integer.parseInt(fields.get(1).trim()), fields.size() > 2 ? fields.get(2) : "");
+    }
+
+    /**
+     * Reads a flat JSON object. Nested objects and arrays are not expected in a
+     * mood row and make the row invalid.
+     */
+    private static MoodEntry parseJson(String record) {
+        Map<String, String> fields = readJsonObject(record);
+        String date = fields.get("date");
+        String rating = fields.containsKey("rating") ? fields.get("rating") : fields.get("mood");
+        String reason = fields.get("reason");
+        if (date == null || rating == null) {
+            return null;
+        }
+        LocalDate day = LocalDate.parse(date);
+        if (!MoodEntry.isValidDate(day)) {
+            return null;
+        }
+        return new MoodEntry(day, Integer.parseInt(rating), reason == null ? "" : reason);
+    }
+
+    /**
+     * Reads a flat JSON object into its fields. Also used for the bodies of
+     * requests to {@link MoodServer}.
+     *
+     * @param text The object.
+     * @return Each key with its value as text; null for a JSON null.
+     * @throws IllegalArgumentException If the text is not a flat JSON object.
+     */
+    static Map<String, String> readJsonObject(String text) {
+        JsonReader json = new JsonReader(text);
+        Map<String, String> fields = new HashMap<>();
+        json.expect('{');
+        if (!json.consumeIf('}')) {
+            do {
+                String key = json.readString();
+                json.expect(':');
+                fields.put(key, json.readValue());
+            } while (json.consumeIf(','));
+            json.expect('}');
+        }
+        return fields;
+    }
+
+    /**
+     * Just enough of a JSON reader for one flat object per line.
+     */
+    private static final class JsonReader {
+        private final String text;
+        private int position;
+
+        JsonReader(String text) {
+            this.text = text;
+        }
+
+        void expect(char c) {
+            if (!consumeIf(c)) {
+                throw new IllegalArgumentException("Expected " + c + " at " + position);
+            }
+        }
+
+        boolean consumeIf(char c) {
+            skipSpace();
+            if (position < text.length() && text.charAt(position) == c) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Reads a string, number, boolean or null.
+         *
+         * @return The value as text, or null for a JSON null.
+         */
+        String readValue() {
+            skipSpace();
+            if (position < text.length() && text.charAt(position) == '"') {
+                return readString();
+            }
+            int start = position;
+            while (position < text.length() && ",}] \t\r".indexOf(text.charAt(position)) < 0) {
+                position++;
+            }
+            String literal = text.substring(start, position);
+            if (literal.isEmpty() || literal.startsWith("{") || literal.startsWith("[")) {
+                throw new IllegalArgumentException("Unsupported value at " + start);
+            }
+            return literal.equals("null") ? null : literal;
+        }
+
+        String readString() {
+            expect('"');
+            StringBuilder value = new StringBuilder();
+            while (position < text.length()) {
+                char c = text.charAt(position++);
+                if (c == '"') {
+                    return value.toString();
+                }
+                if (c != '\\') {
+                    value.append(c);
+                    continue;
+                }
+                if (position >= text.length()) {
+                    break;
+                }
+                char escaped = text.charAt(position++);
+                switch (escaped) {
+                    case 'n':
+                        value.append('\n');
+                        break;
+                    case 't':
+                        value.append('\t');
+                        break;
+                    case 'r':
+                        value.append('\r');
+                        break;
+                    case 'b':
+                        value.append('\b');
+                        break;
+                    case 'f':
+                        value.append('\f');
+                        break;
+                    case 'u':
+                        if (position + 4 > text.length()) {
+                            throw new IllegalArgumentException("Bad escape at " + position);
+                        }
+                        value.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                        position += 4;
+                        break;
+                    default:
+                        value.append(escaped); // \" \\ \/
+                        break;
+                }
+            }
+            throw new IllegalArgumentException("Unterminated string");
+        }
+
+        private void skipSpace() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+    }
+}
@@ -0,0 +1,956 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * MoodLog is the storage engine behind a user's {@code <user>_mood.txt} file.
+ * New submissions are appended to the end of the file instead of rewriting it,
+ * and an in-memory date index (a {@link MoodSeries}) keeps each day's rating
+ * and where its record lives, so reasons stay on disk until read. When a
+ * day is submitted twice, a "Removed:" tombstone line is appended ahead of the
+ * new record; dead records are dropped later by a background compaction that
+ * rewrites the file in date order.
+ *
+ * Appends reach the operating system straight away; {@link #sync()} waits
+ * until they are on disk as the log's {@link Durability} policy requires.
+ * A log opened with a {@link WriteAheadLog} journals each write there first
+ * and never forces the file itself; {@link #sync()} then waits for the
+ * journal, and the journal's checkpoints force the file. While another
+ * process is journaling the data directory, a log opened with that journal
+ * is read-only and its writes throw.
+ *
+ * Only one open MoodLog may own a file at a time, in this process or any
+ * other: the in-memory index assumes nobody else appends. Ownership is held
+ * through a {@code .lock} file next to the log until the log is closed.
+ */
+public class MoodLog implements Closeable {
+    private static final String TOMBSTONE_PREFIX = "Removed: ";
+    private static final int COMPACT_MIN_DEAD_RECORDS = 64;
+    private static final int READ_CHUNK = 64 * 1024;
+    private static final int LENGTH_BITS = 26; // Records up to 64 MB; the offset takes the other 38 bits
+    private static final int MAX_RECORD_LENGTH = (1 << LENGTH_BITS) - 1;
+
+    // One shared daemon thread compacts logs for every open user
+    private static final ExecutorService COMPACTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "mood-log-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Path file;
+    private final GroupCommit commit;
+    private final WriteAheadLog journal; // Null when the log forces its own writes
+    private boolean readOnly; // Another process journals the directory, so a write here could be undone
+    private FileMutex owner;
+    private FileChannel channel;
+    private long end; // Where the next record is appended
+    private long appended; // Bytes appended since opening, across compactions
+    private long journaled; // The journal position covering the last write
+    private MoodSeries index = MoodSeries.withLocations();
+    private int deadRecords;
+    private boolean compacting;
+    private boolean compactionQueued;
+    private boolean compactionHeld; // Set while a journal replays into the log
+    private boolean closed;
+
+    private MoodLog(Path file, Durability durability, WriteAheadLog journal) {
+        this.file = file;
+        this.journal = journal;
+        this.commit = (journal != null ? Durability.OS : durability).newGroupCommit(this::force);
+    }
+
+    /**
+     * Opens (or creates) a mood log that forces every synced write to disk.
+     *
+     * @param file The user's mood file.
+     * @return The opened log.
+     * @throws IOException If the file cannot be read.
+     */
+    public static MoodLog open(Path file) throws IOException {
+        return open(file, Durability.SYNC);
+    }
+
+    /**
+     * Opens (or creates) a mood log and builds its date index.
+     * Files written by older versions of the app are read as-is; records that
+     * span several lines are folded onto one line first.
+     *
+     * @param file The user's mood file.
+     * @param durability When {@link #sync()} forces appends to disk.
+     * @return The opened log.
+     * @throws IOException If the file cannot be read, or is already open in another session.
+     */
+    public static MoodLog open(Path file, Durability durability) throws IOException {
+        return open(file, durability, null);
+    }
+
+    /**
+     * Opens (or creates) a mood log whose writes are journaled first, if the
+     * journal is open. If another process is journaling the data directory,
+     * the log is opened read-only.
+     *
+     * @param file The user's mood file.
+     * @param durability When {@link #sync()} forces appends to disk if the journal is not open.
+     * @param journal Where writes are recorded before they are appended, or null.
+     * @return The opened log.
+     * @throws IOException If the file cannot be read, or is already open in another session.
+     */
+    public static MoodLog open(Path file, Durability durability, WriteAheadLog journal) throws IOException {
+        MoodLog log = new MoodLog(file, durability, journal != null && journal.isOpen() ? journal : null);
+        log.readOnly = journal != null && journal.isHeldElsewhere();
+        log.owner = FileMutex.tryAcquire(file.resolveSibling(file.getFileName() + ".lock"));
+        if (log.owner == null) {
+            throw new IOException("Mood log is open in another session: " + file);
+        }
+        try {
+            log.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                log.load();
+            } catch (IOException e) {
+                log.channel.close();
+                throw e;
+            }
+        } catch (IOException | RuntimeException e) {
+            log.owner.close();
+            throw e;
+        }
+        return log;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Stops the log from compacting itself, as a journal replaying into it
+     * needs: replay compares each record with the file's length.
+     */
+    synchronized void holdCompaction() {
+        compactionHeld = true;
+    }
+
+    /**
+     * Checks whether a mood has been recorded for the given day.
+     *
+     * @param date The day to look up.
+     * @return true if the day has a live record.
+     */
+    public synchronized boolean contains(LocalDate date) {
+        return MoodEntry.isValidDate(date) && index.contains((int) date.toEpochDay());
+    }
+
+    /**
+     * Looks up the rating recorded for a day without reading the file.
+     *
+     * @param date The day to look up.
+     * @return The rating, or 0 if the day has no record.
+     */
+    public synchronized int rating(LocalDate date) {
+        return MoodEntry.isValidDate(date) ? index.rating((int) date.toEpochDay()) : 0;
+    }
+
+    /**
+     * @return The current length of the log file in bytes.
+     */
+    public synchronized long length() {
+        return end;
+    }
+
+    /**
+     * Describes the file as it is now, for the summaries saved next to it:
+     * its length, its identity and when it was last modified. A compaction
+     * moves a new file into place, so the identity changes even when appends
+     * bring the length back to where it was. Equal stamps mean the file has
+     * not changed.
+     *
+     * @return The stamp, without spaces.
+     * @throws IOException If the file's attributes cannot be read.
+     */
+    public synchronized String stamp() throws IOException {
+        return stamp(file);
+    }
+
+    /**
+     * @param file A mood log that may be open elsewhere.
+     * @return The file's stamp, as {@link #stamp()} describes it.
+     * @throws IOException If the file's attributes cannot be read.
+     */
+    static String stamp(Path file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        Object identity = attributes.fileKey() != null ? attributes.fileKey() : attributes.creationTime().toMillis();
+        return (attributes.size() + "/" + identity + "/" + attributes.lastModifiedTime().toMillis()).replaceAll("\\s", "");
+    }
+
+    /**
+     * @return The number of days with a live record.
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Reads the record for one day.
+     *
+     * @param date The day to read.
+     * @return The entry, or null if the day has no record.
+     * @throws IOException If the file cannot be read.
+     */
+    public synchronized MoodEntry get(LocalDate date) throws IOException {
+        if (!MoodEntry.isValidDate(date)) {
+            return null;
+        }
+        int day = (int) date.toEpochDay();
+        return index.contains(day) ? MoodEntry.parse(readLine(channel, index.location(day))) : null;
+    }
+
+    /**
+     * Appends a record. If the day already has one, a tombstone for the old
+     * record is written in the same append.
+     *
+     * @param entry The entry to store.
+     * @throws IOException If the append fails.
+     */
+    public synchronized void put(MoodEntry entry) throws IOException {
+        ensureOpen();
+        journaled(WriteAheadLog.MOODS, lines(Collections.singletonList(entry)), () -> appendEntry(entry));
+    }
+
+    private void appendEntry(MoodEntry entry) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        int day = (int) entry.getDate().toEpochDay();
+        boolean overwrite = index.contains(day);
+        if (overwrite) {
+            lines.append(TOMBSTONE_PREFIX).append(entry.getDate()).append('\n');
+        }
+        int recordStart = lines.length();
+        lines.append(entry.toLine()).append('\n');
+
+        byte[] prefix = lines.substring(0, recordStart).getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = lines.toString().getBytes(StandardCharsets.UTF_8);
+        checkLength(bytes.length - prefix.length - 1);
+        long start = append(bytes);
+        index.put(day, entry.getRating(), location(start + prefix.length, bytes.length - prefix.length - 1));
+        if (overwrite) {
+            deadRecords += 2; // The old record and its tombstone
+            maybeScheduleCompaction();
+        }
+    }
+
+    /**
+     * Appends a batch of records with a single write. Days that already have a
+     * record get a tombstone, as with {@link #put(MoodEntry)}. Batches in date
+     * order after the existing records keep the log sorted.
+     *
+     * @param entries The entries to store; a later entry for the same day wins.
+     * @throws IOException If the append fails. The index is left as it was.
+     */
+    public synchronized void putAll(List<MoodEntry> entries) throws IOException {
+        ensureOpen();
+        journaled(WriteAheadLog.MOODS, lines(entries), () -> appendEntries(entries));
+    }
+
+    private void appendEntries(List<MoodEntry> entries) throws IOException {
+        ByteArrayOutputStream batch = new ByteArrayOutputStream(entries.size() * 48);
+        MoodSeries added = MoodSeries.withLocations(); // Locations relative to the start of the batch
+        for (MoodEntry entry : entries) {
+            int day = (int) entry.getDate().toEpochDay();
+            if (index.contains(day) || added.contains(day)) {
+                batch.write((TOMBSTONE_PREFIX + entry.getDate() + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            byte[] record = entry.toLine().getBytes(StandardCharsets.UTF_8);
+            checkLength(record.length);
+            added.put(day, entry.getRating(), location(batch.size(), record.length));
+            batch.write(record);
+            batch.write('\n');
+        }
+
+        long start = append(batch.toByteArray());
+        int overwrites = 0;
+        MoodSeries.Cursor days = added.cursor();
+        while (days.next()) {
+            long relative = days.location();
+            boolean overwrite = index.contains(days.day());
+            index.put(days.day(), days.rating(), location(start + offsetOf(relative), lengthOf(relative)));
+            overwrites += overwrite ? 1 : 0;
+        }
+        deadRecords += 2 * overwrites;
+        deadRecords += 2 * (entries.size() - added.size()); // Days repeated inside the batch
+        if (overwrites > 0 || entries.size() > added.size()) {
+            maybeScheduleCompaction();
+        }
+    }
+
+    /**
+     * Waits until every record appended so far is on disk, as the durability
+     * policy requires. Call it after a write and outside any lock the caller
+     * holds, so that writers arriving together can share one force.
+     *
+     * @throws IOException If the force fails.
+     */
+    public void sync() throws IOException {
+        long position;
+        synchronized (this) {
+            position = journal != null ? journaled : appended;
+        }
+        if (journal != null) {
+            journal.awaitDurable(position);
+        } else {
+            commit.awaitDurable(position);
+        }
+    }
+
+    /**
+     * @return The number of times the log has been forced to disk for {@link #sync()}.
+     */
+    public long getForceCount() {
+        return commit.getForces();
+    }
+
+    /**
+     * Removes the record for one day by appending a tombstone.
+     *
+     * @param date The day to remove.
+     * @return true if a record was removed.
+     * @throws IOException If the append fails.
+     */
+    public synchronized boolean remove(LocalDate date) throws IOException {
+        ensureOpen();
+        if (!contains(date)) {
+            return false;
+        }
+        journaled(WriteAheadLog.REMOVAL, Collections.singletonList(date.toString()), () -> {
+            append((TOMBSTONE_PREFIX + date + "\n").getBytes(StandardCharsets.UTF_8));
+            index.remove((int) date.toEpochDay());
+            deadRecords += 2;
+            maybeScheduleCompaction();
+        });
+        return true;
+    }
+
+    /**
+     * Reads a page of records by position in date order. Only the records on
+     * the page are read from disk.
+     *
+     * @param from The position of the first record, 0 being the oldest.
+     * @param count The most records to read.
+     * @return The records, oldest first. Shorter than count at the end of the log,
+     *         or if a record cannot be parsed; such records are skipped.
+     * @throws IOException If the file cannot be read.
+     */
+    public synchronized List<MoodEntry> page(int from, int count) throws IOException {
+        int to = Math.min(index.size(), from + count);
+        List<MoodEntry> entries = new ArrayList<>(Math.max(0, to - from));
+        if (from >= to) {
+            return entries;
+        }
+        MoodSeries.Cursor days = index.cursor().range(index.dayAt(from), index.lastDay());
+        for (int i = from; i < to && days.next(); i++) {
+            MoodEntry entry = MoodEntry.parse(readLine(channel, days.location()));
+            if (entry != null) {
+                entries.add(entry);
+            } else {
+                System.out.println("Skipping unreadable mood record for " + LocalDate.ofEpochDay(days.day()) + " in " + file);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Copies the rating of every live record. Served from the index; the
+     * file is not read.
+     *
+     * @return The ratings, without the record locations.
+     */
+    public synchronized MoodSeries series() {
+        return index.copy();
+    }
+
+    /**
+     * Reads the ratings of a log file without opening it as a log, so it
+     * works while another session owns the file. Records appended during the
+     * read may be missed, and a half-written last record is skipped. While
+     * the binary copy next to the log (see {@link MoodBinaryFormat}) still
+     * matches it, the ratings come from that copy and no text is parsed.
+     *
+     * @param file The user's mood file.
+     * @return The live ratings, in date order.
+     * @throws IOException If the file cannot be read.
+     */
+    public static MoodPoints readPoints(Path file) throws IOException {
+        String stamp = stamp(file); // The copy must match the log as it is now
+        Path binaryFile = MoodBinaryFormat.binaryFileFor(file);
+        if (stamp.equals(MoodBinaryFormat.readStamp(binaryFile))) {
+            try (MappedMoodReader reader = MappedMoodReader.open(binaryFile)) {
+                if (stamp.equals(reader.getStamp())) { // Not replaced since its stamp was read
+                    int[] days = new int[reader.size()];
+                    byte[] ratings = new byte[reader.size()];
+                    for (int i = 0; i < days.length; i++) {
+                        days[i] = reader.epochDay(i);
+                        ratings[i] = (byte) reader.rating(i);
+                    }
+                    return new MoodPoints(days, ratings);
+                }
+            } catch (IOException e) {
+                System.out.println("Ignoring damaged binary mood file " + binaryFile + ": " + e.getMessage());
+            }
+        }
+        MoodSeries series = new MoodSeries();
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            scan(in, 0, in.size(), series);
+        }
+        int[] days = new int[series.size()];
+        byte[] ratings = new byte[series.size()];
+        MoodSeries.Cursor cursor = series.cursor();
+        for (int i = 0; cursor.next(); i++) {
+            days[i] = cursor.day();
+            ratings[i] = (byte) cursor.rating();
+        }
+        return new MoodPoints(days, ratings);
+    }
+
+    /**
+     * Receives records one at a time while a range is streamed.
+     */
+    public interface EntryVisitor {
+        void visit(MoodEntry entry) throws IOException;
+    }
+
+    /**
+     * Streams the records of a date range in date order, one record at a
+     * time, without collecting them into a list.
+     *
+     * @param from The first day, inclusive, or null for the oldest.
+     * @param to The last day, inclusive, or null for the newest.
+     * @param visitor Receives each record.
+     * @return The number of records visited.
+     * @throws IOException If the file cannot be read or the visitor fails.
+     */
+    public int forEach(LocalDate from, LocalDate to, EntryVisitor visitor) throws IOException {
+        return forEach(from, to, Integer.MAX_VALUE, visitor);
+    }
+
+    /**
+     * Streams at most a given number of the records of a date range, for
+     * reading a long range a page at a time.
+     *
+     * @param from The first day, inclusive, or null for the oldest.
+     * @param to The last day, inclusive, or null for the newest.
+     * @param limit The most records to visit.
+     * @param visitor Receives each record.
+     * @return The number of records visited.
+     * @throws IOException If the file cannot be read or the visitor fails.
+     */
+    public synchronized int forEach(LocalDate from, LocalDate to, int limit, EntryVisitor visitor) throws IOException {
+        MoodSeries.Cursor days = index.cursor().range(firstDay(from), lastDay(to));
+        int visited = 0;
+        while (visited < limit && days.next()) {
+            MoodEntry entry = MoodEntry.parse(readLine(channel, days.location()));
+            if (entry != null) {
+                visitor.visit(entry);
+                visited++;
+            }
+        }
+        return visited;
+    }
+
+    /**
+     * Copies the lines of a date range straight from the log file to a
+     * channel, without reading them into the JVM. This only works when the
+     * range's records sit back to back on disk in date order, as they do after
+     * a compaction or when every day was submitted once, in order.
+     *
+     * @param from The first day, inclusive, or null for the oldest.
+     * @param to The last day, inclusive, or null for the newest.
+     * @param target Where the lines are written.
+     * @return The number of records copied, or -1 if the range is not one
+     *         contiguous, ordered stretch of the file and nothing was written.
+     * @throws IOException If the copy fails.
+     */
+    public synchronized int transferTo(LocalDate from, LocalDate to, WritableByteChannel target) throws IOException {
+        ensureOpen();
+        MoodSeries.Cursor days = index.cursor().range(firstDay(from), lastDay(to));
+        long start = -1;
+        long next = -1;
+        int count = 0;
+        while (days.next()) {
+            long offset = offsetOf(days.location());
+            if (start < 0) {
+                start = offset;
+            } else if (offset != next) {
+                return -1; // A tombstone, an overwritten day or an out-of-order record is in the way
+            }
+            next = offset + lengthOf(days.location()) + 1;
+            count++;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long copied = 0;
+        long total = next - start;
+        while (copied < total) {
+            copied += channel.transferTo(start + copied, total - copied, target);
+        }
+        return count;
+    }
+
+    /**
+     * Reads every live record in date order.
+     *
+     * @return The entries, oldest first.
+     * @throws IOException If the file cannot be read.
+     */
+    public synchronized List<MoodEntry> entries() throws IOException {
+        List<MoodEntry> entries = new ArrayList<>(index.size());
+        MoodSeries.Cursor days = index.cursor();
+        while (days.next()) {
+            MoodEntry entry = MoodEntry.parse(readLine(channel, days.location()));
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Rewrites the file with only the live records, in date order. Records are
+     * copied without holding the lock; anything appended in the meantime is
+     * carried over before the new file replaces the old one. A journaled log
+     * checkpoints the journal first, since replay compares records with the
+     * file's length.
+     *
+     * @throws IOException If the rewrite fails. The original file is left untouched.
+     */
+    public void compact() throws IOException {
+        MoodSeries snapshot;
+        long snapshotEnd;
+        synchronized (this) {
+            if (compacting || closed) {
+                return;
+            }
+            compacting = true;
+            snapshot = index.copy(true);
+            snapshotEnd = end;
+        }
+
+        Path temp = file.resolveSibling(file.getFileName() + ".compact");
+        boolean swapped = false;
+        FileChannel out = null; // Closed by hand before the swap, since Windows will not replace an open file
+        try {
+            out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            MoodSeries rebuilt = MoodSeries.withLocations();
+            MoodSeries.Cursor days = snapshot.cursor();
+            long position = 0;
+            while (days.next()) {
+                int length = lengthOf(days.location());
+                ByteBuffer record = ByteBuffer.allocate(length + 1);
+                readFully(channel, record, offsetOf(days.location()), length);
+                record.put((byte) '\n').flip();
+                rebuilt.put(days.day(), days.rating(), location(position, length));
+                position += writeFully(out, record, position);
+            }
+
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                // Carry over records appended while the copy was running
+                long tail = end - snapshotEnd;
+                long copied = 0;
+                while (copied < tail) {
+                    copied += channel.transferTo(snapshotEnd + copied, tail - copied, out.position(position + copied));
+                }
+                ScanResult result = scan(out, position, position + tail, rebuilt);
+                out.force(true);
+                out.close(); // Windows will not replace a file that is still open
+                if (journal != null) {
+                    // Journal records hold offsets into this file, so retire them before it shrinks
+                    journal.checkpoint();
+                }
+
+                channel.close();
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                swapped = true;
+                forceDirectory(file.getParent()); // New records hold offsets into the new file
+                channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                end = position + tail;
+                index = rebuilt;
+                deadRecords = result.deadRecords;
+                commit.markDurable(appended); // The new file was forced before the swap
+            }
+        } finally {
+            if (out != null) {
+                out.close(); // Does nothing if the swap closed it
+            }
+            synchronized (this) {
+                compacting = false;
+            }
+            if (!swapped) {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    /**
+     * Closes the file, forcing it first unless the operating system is left
+     * to decide. Any compaction still running is abandoned.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            try {
+                if (appended > 0 && commit.forcesWrites()) {
+                    channel.force(false);
+                    commit.markDurable(appended);
+                }
+            } finally {
+                try {
+                    channel.close();
+                } finally {
+                    owner.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Forces the current file to disk for the group commit. Runs without the
+     * log's lock so appends can continue while the disk catches up.
+     */
+    private void force() throws IOException {
+        FileChannel current;
+        synchronized (this) {
+            if (closed) {
+                return; // Closing forced the file
+            }
+            current = channel;
+        }
+        try {
+            current.force(false); // File contents and size, which is all a reader needs
+        } catch (ClosedChannelException e) {
+            synchronized (this) {
+                if (!closed && channel == current) {
+                    throw e;
+                }
+                // Swapped by a compaction, which forced the new file itself
+            }
+        }
+    }
+
+    private static long firstDay(LocalDate from) {
+        return from == null ? Long.MIN_VALUE : from.toEpochDay();
+    }
+
+    private static long lastDay(LocalDate to) {
+        return to == null ? Long.MAX_VALUE : to.toEpochDay();
+    }
+
+    /**
+     * Packs where a record is into one long for the index.
+     */
+    private static long location(long offset, int length) {
+        return offset << LENGTH_BITS | length;
+    }
+
+    private static long offsetOf(long location) {
+        return location >>> LENGTH_BITS;
+    }
+
+    private static int lengthOf(long location) {
+        return (int) (location & MAX_RECORD_LENGTH);
+    }
+
+    private static void checkLength(int length) throws IOException {
+        if (length > MAX_RECORD_LENGTH) {
+            throw new IOException("Mood record too long: " + length + " bytes");
+        }
+    }
+
+    /**
+     * Makes a write, journaling it first if the log has a journal.
+     */
+    private void journaled(byte type, List<String> fields, WriteAheadLog.Change change) throws IOException {
+        if (readOnly) {
+            throw new IOException("Mood log is read-only while another process is using its data: " + file);
+        }
+        if (journal == null) {
+            change.apply();
+        } else {
+            journaled = journal.write(file, type, end, fields, change); // Replay skips it once the log is past end
+        }
+    }
+
+    /**
+     * Formats entries for the journal, checking their length first so a
+     * record that cannot be appended is never journaled.
+     */
+    private List<String> lines(List<MoodEntry> entries) throws IOException {
+        if (journal == null) {
+            return null; // Not journaled, and appending checks the length itself
+        }
+        List<String> lines = new ArrayList<>(entries.size());
+        for (MoodEntry entry : entries) {
+            String line = entry.toLine();
+            checkLength(line.getBytes(StandardCharsets.UTF_8).length);
+            lines.add(line);
+        }
+        return lines;
+    }
+
+    /**
+     * Forces a directory, so a file moved into it stays moved after a crash.
+     */
+    private static void forceDirectory(Path directory) {
+        try (FileChannel entries = FileChannel.open(directory, StandardOpenOption.READ)) {
+            entries.force(true);
+        } catch (IOException e) {
+            // Some platforms, Windows among them, cannot open a directory; the move is as durable as they make it
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Mood log is closed: " + file);
+        }
+    }
+
+    private long append(byte[] bytes) throws IOException {
+        long start = end;
+        int written = writeFully(channel, ByteBuffer.wrap(bytes), start);
+        end += written;
+        appended += written;
+        return start;
+    }
+
+    private void maybeScheduleCompaction() {
+        if (!compactionHeld && !compacting && !compactionQueued && deadRecords >= COMPACT_MIN_DEAD_RECORDS && deadRecords > index.size()) {
+            compactionQueued = true;
+            COMPACTOR.execute(() -> {
+                synchronized (this) {
+                    compactionQueued = false;
+                }
+                try {
+                    compact();
+                } catch (IOException e) {
+                    synchronized (this) {
+                        if (!closed) { // Closing the log mid-compaction abandons it on purpose
+                            System.out.println("Failed to compact " + file + ": " + e.getMessage());
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Builds the index from the file, repairing a torn last line and folding
+     * multi-line records written by older versions.
+     */
+    private void load() throws IOException {
+        long size = channel.size();
+        ScanResult result = scan(channel, 0, size, index);
+        if (result.continuationLines) {
+            foldLegacyRecords();
+            return;
+        }
+        index.trimToSize(); // Most logs are only read, so drop the room left for growth while scanning
+        end = size;
+        deadRecords = result.deadRecords;
+        if (result.unterminatedOffset >= 0) {
+            if (result.unterminatedRecord) {
+                append(new byte[] {'\n'}); // Finish the last record's line
+            } else {
+                channel.truncate(result.unterminatedOffset); // Drop a half-written record
+                end = result.unterminatedOffset;
+            }
+        }
+    }
+
+    /**
+     * Rewrites a file whose reasons were written across several lines so that
+     * every record fits on a single line.
+     */
+    private void foldLegacyRecords() throws IOException {
+        Map<LocalDate, MoodEntry> entries = new LinkedHashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            MoodEntry last = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                MoodEntry entry = MoodEntry.parse(line);
+                if (entry != null) {
+                    entries.remove(entry.getDate()); // Later submissions win
+                    entries.put(entry.getDate(), entry);
+                    last = entry;
+                } else if (line.startsWith(TOMBSTONE_PREFIX)) {
+                    entries.remove(LocalDate.parse(line.substring(TOMBSTONE_PREFIX.length()).trim()));
+                    last = null;
+                } else if (MoodEntry.isRecordLine(line)) {
+                    last = null; // An unreadable record is dropped, not folded into the one before
+                } else if (last != null && !line.isEmpty()) {
+                    last = new MoodEntry(last.getDate(), last.getRating(), last.getReason() + "\n" + line);
+                    entries.put(last.getDate(), last);
+                }
+            }
+        }
+
+        List<MoodEntry> sorted = new ArrayList<>(entries.values());
+        sorted.sort((a, b) -> a.getDate().compareTo(b.getDate()));
+        Path temp = file.resolveSibling(file.getFileName() + ".compact");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            for (MoodEntry entry : sorted) {
+                position += writeFully(out, ByteBuffer.wrap((entry.toLine() + "\n").getBytes(StandardCharsets.UTF_8)), position);
+            }
+            out.force(true);
+        }
+        channel.close();
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        index = MoodSeries.withLocations();
+        end = channel.size();
+        deadRecords = scan(channel, 0, end, index).deadRecords;
+    }
+
+    /**
+     * Outcome of scanning part of a log file.
+     */
+    private static final class ScanResult {
+        int deadRecords;
+        boolean continuationLines;
+        long unterminatedOffset = -1;
+        boolean unterminatedRecord;
+    }
+
+    /**
+     * Reads the lines between two offsets and applies them to an index.
+     */
+    private static ScanResult scan(FileChannel in, long from, long to, MoodSeries index) throws IOException {
+        ScanResult result = new ScanResult();
+        ByteBuffer chunk = ByteBuffer.allocate(READ_CHUNK);
+        byte[] line = new byte[256];
+        int lineLength = 0;
+        long lineStart = from;
+        long position = from;
+        while (position < to) {
+            chunk.clear();
+            if (to - position < chunk.capacity()) {
+                chunk.limit((int) (to - position));
+            }
+            int read = in.read(chunk, position);
+            if (read < 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                byte b = chunk.get(i);
+                if (b == '\n') {
+                    applyLine(new String(line, 0, lineLength, StandardCharsets.UTF_8), lineStart, lineLength, index, result);
+                    lineLength = 0;
+                    lineStart = position + i + 1;
+                } else {
+                    if (lineLength == line.length) {
+                        line = Arrays.copyOf(line, line.length * 2);
+                    }
+                    line[lineLength++] = b;
+                }
+            }
+            position += read;
+        }
+        if (lineLength > 0) {
+            String last = new String(line, 0, lineLength, StandardCharsets.UTF_8);
+            result.unterminatedOffset = lineStart;
+            result.unterminatedRecord = MoodEntry.parse(stripCarriageReturn(last)) != null;
+            if (result.unterminatedRecord) {
+                applyLine(last, lineStart, lineLength, index, result);
+            }
+        }
+        return result;
+    }
+
+    private static void applyLine(String line, long offset, int length, MoodSeries index, ScanResult result) {
+        String text = stripCarriageReturn(line);
+        if (text.trim().isEmpty()) {
+            return;
+        }
+        if (text.startsWith(TOMBSTONE_PREFIX)) {
+            try {
+                LocalDate date = LocalDate.parse(text.substring(TOMBSTONE_PREFIX.length()).trim());
+                int day = (int) date.toEpochDay();
+                if (MoodEntry.isValidDate(date) && index.contains(day)) {
+                    index.remove(day);
+                    result.deadRecords++;
+                }
+            } catch (RuntimeException e) {
+                // A damaged tombstone only hides nothing
+            }
+            result.deadRecords++;
+            return;
+        }
+        MoodEntry entry = MoodEntry.parse(text);
+        if (entry == null && MoodEntry.isRecordLine(text)) {
+            result.deadRecords++; // Unreadable, such as a date out of range; the next compaction drops it
+        } else if (entry == null) {
+            result.continuationLines = true;
+        } else if (length <= MAX_RECORD_LENGTH) { // Longer lines cannot be indexed and are left out
+            int day = (int) entry.getDate().toEpochDay();
+            if (index.contains(day)) {
+                result.deadRecords++;
+            }
+            index.put(day, entry.getRating(), location(offset, length));
+        }
+    }
+
+    private static String stripCarriageReturn(String line) {
+        return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+    }
+
+    private static String readLine(FileChannel in, long location) throws IOException {
+        int length = lengthOf(location);
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        readFully(in, buffer, offsetOf(location), length);
+        return stripCarriageReturn(new String(buffer.array(), 0, length, StandardCharsets.UTF_8));
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer buffer, long offset, int length) throws IOException {
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + length);
+        int done = 0;
+        while (done < length) {
+            int read = in.read(buffer, offset + done);
+            if (read < 0) {
+                throw new IOException("Unexpected end of mood log");
+            }
+            done += read;
+        }
+        buffer.limit(limit);
+    }
+
+    private static int writeFully(FileChannel out, ByteBuffer buffer, long offset) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += out.write(buffer, offset + written);
+        }
+        return written;
+    }
+}
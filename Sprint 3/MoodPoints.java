@@ -0,0 +1,52 @@
+/**
+ * MoodPoints is a snapshot of a user's ratings: parallel arrays of epoch days
+ * and ratings, sorted by day. It carries no reasons, so it is cheap to build
+ * from the mood log's index and cheap to keep around for charts.
+ */
+public final class MoodPoints {
+    private final int[] days;
+    private final byte[] ratings;
+
+    /**
+     * Creates a snapshot. The arrays are used as-is and must be sorted by day.
+     *
+     * @param days Epoch days, ascending.
+     * @param ratings The rating for each day.
+     */
+    public MoodPoints(int[] days, byte[] ratings) {
+        this.days = days;
+        this.ratings = ratings;
+    }
+
+    public int size() {
+        return days.length;
+    }
+
+    public int day(int index) {
+        return days[index];
+    }
+
+    public int rating(int index) {
+        return ratings[index];
+    }
+
+    /**
+     * Finds the first point on or after a day.
+     *
+     * @param epochDay The day to search for.
+     * @return The index of the first point on or after the day, or size() if there is none.
+     */
+    public int indexAtOrAfter(long epochDay) {
+        int low = 0;
+        int high = days.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (days[mid] < epochDay) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,109 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.time.LocalDate;
+import java.util.Iterator;
+
+/**
+ * MoodRepository is the mood storage logic behind submitting moods and
+ * viewing history, with no Swing attached. History is handed out as a stream
+ * of entries through a visitor, so batch jobs can walk any amount of it
+ * without holding it in memory.
+ */
+public interface MoodRepository extends Closeable {
+
+    /**
+     * Sets up storage for a newly registered user.
+     *
+     * @param username The new user.
+     * @throws IOException If the storage cannot be created.
+     */
+    void createUser(String username) throws IOException;
+
+    /**
+     * @param username The user.
+     * @param date The day to check.
+     * @return true if the user has a mood recorded for the day.
+     * @throws IOException If the user's moods cannot be read.
+     */
+    boolean hasEntry(String username, LocalDate date) throws IOException;
+
+    /**
+     * Saves a mood, replacing any earlier one for the same day.
+     *
+     * @param username The user.
+     * @param entry The mood to save.
+     * @throws IOException If the mood cannot be saved.
+     */
+    void save(String username, MoodEntry entry) throws IOException;
+
+    /**
+     * Saves many moods in as few writes as the storage allows. Used for bulk
+     * imports; entries are consumed from the iterator as they are written.
+     *
+     * @param username The user.
+     * @param entries The moods to save, ideally in date order; a later entry for the same day wins.
+     * @return The number of moods saved.
+     * @throws IOException If the moods cannot be saved.
+     */
+    long saveAll(String username, Iterator<MoodEntry> entries) throws IOException;
+
+    /**
+     * Streams a user's moods in date order.
+     *
+     * @param username The user.
+     * @param from The first day, inclusive, or null for the oldest.
+     * @param to The last day, inclusive, or null for the newest.
+     * @param visitor Receives each entry.
+     * @return The number of entries streamed.
+     * @throws IOException If the moods cannot be read or the visitor fails.
+     */
+    int forEach(String username, LocalDate from, LocalDate to, MoodLog.EntryVisitor visitor) throws IOException;
+
+    /**
+     * Streams at most a given number of a user's moods in date order, so a
+     * long history can be read a page at a time.
+     *
+     * @param username The user.
+     * @param from The first day, inclusive, or null for the oldest.
+     * @param to The last day, inclusive, or null for the newest.
+     * @param limit The most entries to stream.
+     * @param visitor Receives each entry.
+     * @return The number of entries streamed.
+     * @throws IOException If the moods cannot be read or the visitor fails.
+     */
+    int forEach(String username, LocalDate from, LocalDate to, int limit, MoodLog.EntryVisitor visitor)
+            throws IOException;
+
+    /**
+     * Copies a user's moods as native mood lines straight to a channel, if the
+     * storage can do so without decoding them.
+     *
+     * @param username The user.
+     * @param from The first day, inclusive, or null for the oldest.
+     * @param to The last day, inclusive, or null for the newest.
+     * @param target Where the lines are written.
+     * @return The number of moods copied, or -1 if nothing was written and the
+     *         caller should stream the moods through {@link #forEach} instead.
+     * @throws IOException If the copy fails.
+     */
+    int transferNative(String username, LocalDate from, LocalDate to, WritableByteChannel target) throws IOException;
+
+    /**
+     * Finds the days whose reason contains every word of a query, without
+     * reading the moods themselves.
+     *
+     * @param username The user.
+     * @param query The words to look for; the last one also matches words it begins.
+     * @return The matching days as epoch days, oldest first.
+     * @throws IOException If the search index cannot be loaded.
+     */
+    int[] searchReasons(String username, String query) throws IOException;
+
+    /**
+     * @param username The user.
+     * @return The number of days with a recorded mood.
+     * @throws IOException If the user's moods cannot be read.
+     */
+    int count(String username) throws IOException;
+}
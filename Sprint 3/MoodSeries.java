@@ -0,0 +1,600 @@
+import java.util.Arrays;
+
+/**
+ * MoodSeries holds one user's ratings keyed by epoch day: a byte per day,
+ * from a little before the first logged day to a little after the last, and
+ * a bitmap marking which of those days were logged. A rating costs about a
+ * byte, where a boxed map entry costs several dozen, and looking a day up is
+ * an array index.
+ *
+ * Reasons are not kept here. The series a {@link MoodLog} indexes itself
+ * with also keeps a location per day, where the day's record sits in the log
+ * file, so a reason is only read from disk when something shows it.
+ *
+ * Logged days are read in order through a {@link Cursor}, which skips
+ * unlogged days a bitmap word at a time and allocates nothing per day, or by
+ * position through {@link #dayAt(int)}, for tables. A series is not
+ * thread-safe, and must not change while a cursor walks it.
+ *
+ * A byte per day only pays while the days are close together, so a series
+ * whose days would span more than {@link #MAX_DENSE_DAYS} switches for good
+ * to sorted arrays of just the logged days, searched by binary search. A
+ * stray far-off date then costs a few bytes instead of a slot for every day
+ * in between.
+ */
+public final class MoodSeries {
+    private static final int WORD_DAYS = 64;
+    static final int MAX_DENSE_DAYS = 1 << 15; // About 90 years
+
+    private final boolean withLocations;
+    private int base; // The day of slot 0, a multiple of 64
+    private byte[] ratings = new byte[0];
+    private long[] logged = new long[0]; // Null once sparse
+    private long[] locations; // Null unless the series keeps locations
+    private int[] days; // The logged days in order once sparse, with their ratings and locations at the same index
+    private int size;
+    private int firstDay;
+    private int lastDay;
+    private int[] ranks; // Logged days before each bitmap word; null until asked for after a change
+
+    /**
+     * Creates an empty series of ratings.
+     */
+    public MoodSeries() {
+        this(false);
+    }
+
+    private MoodSeries(boolean withLocations) {
+        this.withLocations = withLocations;
+        locations = withLocations ? new long[0] : null;
+    }
+
+    /**
+     * @return An empty series that also keeps a location for every day.
+     */
+    static MoodSeries withLocations() {
+        return new MoodSeries(true);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return The earliest logged day. Only meaningful when the series is not empty.
+     */
+    public int firstDay() {
+        return firstDay;
+    }
+
+    /**
+     * @return The latest logged day. Only meaningful when the series is not empty.
+     */
+    public int lastDay() {
+        return lastDay;
+    }
+
+    /**
+     * @param epochDay The day to look up.
+     * @return true if the day was logged.
+     */
+    public boolean contains(int epochDay) {
+        if (days != null) {
+            return indexOf(epochDay) >= 0;
+        }
+        long slot = (long) epochDay - base;
+        return slot >= 0 && slot < ratings.length && (logged[(int) (slot >>> 6)] & (1L << slot)) != 0;
+    }
+
+    /**
+     * @param epochDay The day to look up.
+     * @return The day's rating, or 0 if the day was not logged.
+     */
+    public int rating(int epochDay) {
+        if (days != null) {
+            int index = indexOf(epochDay);
+            return index >= 0 ? ratings[index] : 0;
+        }
+        return contains(epochDay) ? ratings[epochDay - base] : 0;
+    }
+
+    /**
+     * @param epochDay A logged day.
+     * @return Where the day's record is, as given to {@link #put(int, int, long)}.
+     */
+    long location(int epochDay) {
+        return locations[days != null ? indexOf(epochDay) : epochDay - base];
+    }
+
+    /**
+     * Logs a rating for a day, replacing any rating it had.
+     *
+     * @param epochDay The day.
+     * @param rating The rating.
+     * @return The rating the day had before, or 0 if it was not logged.
+     */
+    public int put(int epochDay, int rating) {
+        return put(epochDay, rating, 0);
+    }
+
+    /**
+     * Logs a rating and its location for a day, replacing any it had.
+     *
+     * @param epochDay The day.
+     * @param rating The rating.
+     * @param location Where the day's record is; ignored unless the series keeps locations.
+     * @return The rating the day had before, or 0 if it was not logged.
+     */
+    int put(int epochDay, int rating, long location) {
+        if (days == null && size > 0
+                && (long) Math.max(lastDay, epochDay) - Math.min(firstDay, epochDay) >= MAX_DENSE_DAYS) {
+            makeSparse();
+        }
+        if (days != null) {
+            return putSparse(epochDay, rating, location);
+        }
+        int previous = rating(epochDay);
+        int slot = reserve(epochDay);
+        ratings[slot] = (byte) rating;
+        if (withLocations) {
+            locations[slot] = location;
+        }
+        long bit = 1L << slot;
+        if ((logged[slot >>> 6] & bit) == 0) {
+            logged[slot >>> 6] |= bit;
+            if (size == 0 || epochDay < firstDay) {
+                firstDay = epochDay;
+            }
+            if (size == 0 || epochDay > lastDay) {
+                lastDay = epochDay;
+            }
+            size++;
+            ranks = null;
+        }
+        return previous;
+    }
+
+    /**
+     * Removes a day.
+     *
+     * @param epochDay The day.
+     * @return The rating the day had, or 0 if it was not logged.
+     */
+    public int remove(int epochDay) {
+        if (!contains(epochDay)) {
+            return 0;
+        }
+        if (days != null) {
+            int index = indexOf(epochDay);
+            int rating = ratings[index];
+            removeSparse(index, 1);
+            return rating;
+        }
+        int slot = epochDay - base;
+        logged[slot >>> 6] &= ~(1L << slot);
+        size--;
+        ranks = null;
+        if (size > 0 && epochDay == firstDay) {
+            firstDay = next(slot + 1) + base;
+        }
+        if (size > 0 && epochDay == lastDay) {
+            lastDay = previous(slot - 1) + base;
+        }
+        return ratings[slot];
+    }
+
+    /**
+     * Removes every day before a given day.
+     *
+     * @param epochDay The first day to keep.
+     */
+    public void removeBefore(int epochDay) {
+        if (days != null) {
+            removeSparse(0, slotAtOrAfter(epochDay));
+            return;
+        }
+        while (size > 0 && firstDay < epochDay) {
+            remove(firstDay);
+        }
+    }
+
+    /**
+     * @param epochDay Any day.
+     * @return The number of logged days before it, which is its position if it is logged.
+     */
+    public int rank(long epochDay) {
+        int slot = slotAtOrAfter(epochDay);
+        if (days != null) {
+            return slot;
+        }
+        if (slot == ratings.length) {
+            return size;
+        }
+        int word = slot >>> 6;
+        return ranks()[word] + Long.bitCount(logged[word] & ((1L << slot) - 1));
+    }
+
+    /**
+     * @param index A position, 0 being the earliest logged day.
+     * @return The day at that position.
+     */
+    public int dayAt(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Day " + index + " of " + size);
+        }
+        if (days != null) {
+            return days[index];
+        }
+        int[] counts = ranks();
+        int low = 0;
+        int high = counts.length - 1;
+        while (low < high) { // The last word that starts at or before the position
+            int mid = (low + high + 1) >>> 1;
+            if (counts[mid] <= index) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        long bits = logged[low];
+        for (int skip = index - counts[low]; skip > 0; skip--) {
+            bits &= bits - 1;
+        }
+        return base + (low << 6) + Long.numberOfTrailingZeros(bits);
+    }
+
+    /**
+     * @return A cursor over every logged day.
+     */
+    public Cursor cursor() {
+        return new Cursor().range(Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return A copy of the ratings, without locations, sized to the logged days.
+     */
+    public MoodSeries copy() {
+        return copy(false);
+    }
+
+    /**
+     * @param keepLocations true to copy the locations too.
+     * @return A copy sized to the logged days.
+     */
+    MoodSeries copy(boolean keepLocations) {
+        MoodSeries copy = new MoodSeries(keepLocations && withLocations);
+        if (size == 0) {
+            return copy;
+        }
+        if (days != null) {
+            copy.logged = null;
+            copy.days = Arrays.copyOf(days, size);
+            copy.ratings = Arrays.copyOf(ratings, size);
+            if (copy.withLocations) {
+                copy.locations = Arrays.copyOf(locations, size);
+            }
+            copy.size = size;
+            copy.firstDay = firstDay;
+            copy.lastDay = lastDay;
+            return copy;
+        }
+        int from = (firstDay - base) & ~(WORD_DAYS - 1);
+        int to = ((lastDay - base) | (WORD_DAYS - 1)) + 1;
+        copy.base = base + from;
+        copy.ratings = Arrays.copyOfRange(ratings, from, to);
+        copy.logged = Arrays.copyOfRange(logged, from >>> 6, to >>> 6);
+        if (copy.withLocations) {
+            copy.locations = Arrays.copyOfRange(locations, from, to);
+        }
+        copy.size = size;
+        copy.firstDay = firstDay;
+        copy.lastDay = lastDay;
+        return copy;
+    }
+
+    /**
+     * Shrinks the arrays to the words between the first and last logged day,
+     * dropping the room left for growth, the way
+     * {@link java.util.ArrayList#trimToSize()} does.
+     */
+    public void trimToSize() {
+        if (days != null) {
+            days = Arrays.copyOf(days, size);
+            ratings = Arrays.copyOf(ratings, size);
+            if (withLocations) {
+                locations = Arrays.copyOf(locations, size);
+            }
+            return;
+        }
+        if (size == 0) {
+            resize(-logged.length, 0);
+            return;
+        }
+        int from = (firstDay - base) >>> 6;
+        int to = ((lastDay - base) >>> 6) + 1;
+        if (from > 0 || to < logged.length) {
+            resize(-from, to - from);
+        }
+    }
+
+    /**
+     * Makes sure a day has a slot, growing the arrays by at least half
+     * their size in whichever direction is needed. Growing upwards first
+     * drops the empty words below the first day if they are half the
+     * arrays, so a sliding window of days stays the same size.
+     *
+     * @return The day's slot.
+     */
+    private int reserve(int epochDay) {
+        if (size == 0) { // Nothing is logged, so the arrays can start anywhere
+            base = Math.floorDiv(epochDay, WORD_DAYS) * WORD_DAYS;
+            if (ratings.length == 0) {
+                resize(0, 1);
+            }
+            return epochDay - base;
+        }
+        long slot = (long) epochDay - base;
+        int words = logged.length;
+        if (slot < 0) {
+            int needed = (int) ((-slot + WORD_DAYS - 1) / WORD_DAYS);
+            int grow = Math.max(needed, words / 2 + 1);
+            resize(grow, words + grow);
+        } else if (slot >= ratings.length) {
+            int spare = (firstDay - base) / WORD_DAYS;
+            int drop = spare * 2 >= words ? spare : 0;
+            int needed = (int) (slot / WORD_DAYS) + 1 - drop;
+            resize(-drop, needed <= words ? words : Math.max(needed, words + words / 2 + 1));
+        }
+        return epochDay - base;
+    }
+
+    /**
+     * Moves the days into arrays of a given size. A positive shift makes
+     * room for that many words below the first slot; a negative one drops
+     * that many empty words from the bottom.
+     */
+    private void resize(int shiftWords, int words) {
+        int fromWord = Math.max(0, -shiftWords);
+        int toWord = Math.max(0, shiftWords);
+        int count = Math.min(logged.length - fromWord, words - toWord);
+        byte[] newRatings = new byte[words * WORD_DAYS];
+        System.arraycopy(ratings, fromWord * WORD_DAYS, newRatings, toWord * WORD_DAYS, count * WORD_DAYS);
+        ratings = newRatings;
+        long[] newLogged = new long[words];
+        System.arraycopy(logged, fromWord, newLogged, toWord, count);
+        logged = newLogged;
+        if (withLocations) {
+            long[] newLocations = new long[words * WORD_DAYS];
+            System.arraycopy(locations, fromWord * WORD_DAYS, newLocations, toWord * WORD_DAYS, count * WORD_DAYS);
+            locations = newLocations;
+        }
+        base -= shiftWords * WORD_DAYS;
+        ranks = null;
+    }
+
+    /**
+     * Moves the logged days out of the day-indexed arrays into sorted ones.
+     */
+    private void makeSparse() {
+        int[] sparseDays = new int[size + 1];
+        byte[] sparseRatings = new byte[size + 1];
+        long[] sparseLocations = withLocations ? new long[size + 1] : null;
+        Cursor all = cursor();
+        for (int i = 0; all.next(); i++) {
+            sparseDays[i] = all.day();
+            sparseRatings[i] = ratings[all.current];
+            if (withLocations) {
+                sparseLocations[i] = locations[all.current];
+            }
+        }
+        days = sparseDays;
+        ratings = sparseRatings;
+        locations = sparseLocations;
+        logged = null;
+        base = 0;
+        ranks = null;
+    }
+
+    private int putSparse(int epochDay, int rating, long location) {
+        int index = indexOf(epochDay);
+        int previous = 0;
+        if (index >= 0) {
+            previous = ratings[index];
+        } else {
+            index = -index - 1;
+            if (size == days.length) {
+                int capacity = size + size / 2 + 1;
+                days = Arrays.copyOf(days, capacity);
+                ratings = Arrays.copyOf(ratings, capacity);
+                if (withLocations) {
+                    locations = Arrays.copyOf(locations, capacity);
+                }
+            }
+            System.arraycopy(days, index, days, index + 1, size - index);
+            System.arraycopy(ratings, index, ratings, index + 1, size - index);
+            if (withLocations) {
+                System.arraycopy(locations, index, locations, index + 1, size - index);
+            }
+            days[index] = epochDay;
+            size++;
+            firstDay = days[0];
+            lastDay = days[size - 1];
+        }
+        ratings[index] = (byte) rating;
+        if (withLocations) {
+            locations[index] = location;
+        }
+        return previous;
+    }
+
+    /**
+     * Removes a run of positions from the sorted arrays.
+     */
+    private void removeSparse(int from, int count) {
+        if (count == 0) {
+            return;
+        }
+        int after = size - from - count;
+        System.arraycopy(days, from + count, days, from, after);
+        System.arraycopy(ratings, from + count, ratings, from, after);
+        if (withLocations) {
+            System.arraycopy(locations, from + count, locations, from, after);
+        }
+        size -= count;
+        if (size > 0) {
+            firstDay = days[0];
+            lastDay = days[size - 1];
+        }
+    }
+
+    /**
+     * @return The position of a day in the sorted arrays, or -(insertion point) - 1 if it is not logged.
+     */
+    private int indexOf(int epochDay) {
+        return Arrays.binarySearch(days, 0, size, epochDay);
+    }
+
+    /**
+     * @return The number of slots: days in the arrays, or logged days once sparse.
+     */
+    private int slots() {
+        return days != null ? size : ratings.length;
+    }
+
+    /**
+     * @return The slot of a day, clamped to the arrays; the arrays' length if the day is past them.
+     *         Once sparse, the position of the first logged day at or after it.
+     */
+    private int slotAtOrAfter(long epochDay) {
+        if (days != null) {
+            int clamped = (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, epochDay));
+            int index = indexOf(clamped);
+            return index >= 0 ? index : -index - 1;
+        }
+        if (epochDay <= base) {
+            return 0;
+        }
+        if (epochDay >= (long) base + ratings.length) {
+            return ratings.length;
+        }
+        return (int) (epochDay - base);
+    }
+
+    private int[] ranks() {
+        if (ranks == null) {
+            int[] counts = new int[logged.length];
+            int total = 0;
+            for (int word = 0; word < logged.length; word++) {
+                counts[word] = total;
+                total += Long.bitCount(logged[word]);
+            }
+            ranks = counts;
+        }
+        return ranks;
+    }
+
+    /**
+     * @return The first logged slot at or after a slot; the series must have one.
+     */
+    private int next(int slot) {
+        int word = slot >>> 6;
+        long bits = logged[word] & (-1L << slot);
+        while (bits == 0) {
+            bits = logged[++word];
+        }
+        return (word << 6) + Long.numberOfTrailingZeros(bits);
+    }
+
+    /**
+     * @return The last logged slot at or before a slot; the series must have one.
+     */
+    private int previous(int slot) {
+        int word = slot >>> 6;
+        long bits = logged[word] & (-1L >>> (63 - (slot & 63)));
+        while (bits == 0) {
+            bits = logged[--word];
+        }
+        return (word << 6) + 63 - Long.numberOfLeadingZeros(bits);
+    }
+
+    /**
+     * Walks the logged days of a range in date order. A cursor can be
+     * pointed at another range and reused.
+     *
+     * <pre>
+     * MoodSeries.Cursor days = series.cursor().range(from, to);
+     * while (days.next()) {
+     *     sum += days.rating();
+     * }
+     * </pre>
+     */
+    public final class Cursor {
+        private int slot;
+        private int end;
+        private int current = -1;
+
+        private Cursor() {
+        }
+
+        /**
+         * Points the cursor before the first logged day of a range.
+         *
+         * @param fromDay The first day, inclusive.
+         * @param toDay The last day, inclusive.
+         * @return This cursor.
+         */
+        public Cursor range(long fromDay, long toDay) {
+            slot = slotAtOrAfter(fromDay);
+            end = toDay >= Integer.MAX_VALUE ? slots() : slotAtOrAfter(toDay + 1);
+            current = -1;
+            return this;
+        }
+
+        /**
+         * Moves to the next logged day.
+         *
+         * @return false if the range has no more logged days.
+         */
+        public boolean next() {
+            if (days != null) {
+                if (slot < end) {
+                    current = slot++;
+                    return true;
+                }
+                return false;
+            }
+            while (slot < end) {
+                int word = slot >>> 6;
+                long bits = logged[word] & (-1L << slot);
+                if (bits != 0) {
+                    int found = (word << 6) + Long.numberOfTrailingZeros(bits);
+                    if (found >= end) {
+                        break;
+                    }
+                    current = found;
+                    slot = found + 1;
+                    return true;
+                }
+                slot = (word + 1) << 6;
+            }
+            slot = end;
+            return false;
+        }
+
+        public int day() {
+            return days != null ? days[current] : base + current;
+        }
+
+        public int rating() {
+            return ratings[current];
+        }
+
+        long location() {
+            return locations[current];
+        }
+    }
+}
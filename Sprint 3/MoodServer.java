@@ -0,0 +1,512 @@
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * MoodServer serves the app's accounts and moods as a small JSON API over
+ * HTTP, for web or mobile front ends working on the same data as the GUI. It
+ * runs on the JDK's built-in HTTP server and handles each request on its own
+ * virtual thread when the JVM has them (Java 21 and later), or on a fixed
+ * pool of threads before that.
+ *
+ * <pre>
+ * POST /api/register  {"username": "...", "password": "..."}          201, 400, 409
+ * POST /api/login     {"username": "...", "password": "..."}          200 {"token": "..."}, 401
+ * POST /api/logout                                                    204, 401 without a token
+ * POST /api/moods     {"rating": 7, "reason": "..."}                  201 the saved mood, for today
+ * GET  /api/moods?from=2024-01-01&amp;to=2024-12-31&amp;limit=100           200 {"entries": [...], "next": "..."}
+ * </pre>
+ *
+ * Everything but register and login needs an {@code Authorization: Bearer <token>}
+ * header with the token from login. History is returned a page at a time, in
+ * date order; {@code next} is the {@code from} of the following page, or null on
+ * the last one. Each page is streamed to the client as it is read, a few rows
+ * at a time, so a slow client never holds up writers to the same log. If
+ * reading fails after the first rows have been sent, the page still ends as
+ * valid JSON, with a null {@code next} and an {@code error} field, since the
+ * 200 status is already on its way.
+ *
+ * As in the GUI, moods can only be logged for the current day; a {@code date}
+ * field, kept for older clients, is refused unless it is today.
+ *
+ * Accounts and moods are kept by the storage backend configured for the data
+ * directory (see {@link StorageProvider}).
+ *
+ * Usage: {@code java MoodServer [--host 127.0.0.1] [--port 8080]}
+ *
+ * The launcher raises the JDK server's idle connection limit (see
+ * {@link #raiseIdleConnectionLimit()}); pass
+ * {@code -Dsun.net.httpserver.maxIdleConnections=<n>} to choose another.
+ */
+public class MoodServer {
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_PAGE_SIZE = 1_000;
+    private static final int READ_BATCH = 64;
+    private static final int MAX_BODY_BYTES = 64 * 1024;
+    private static final int PLATFORM_THREADS = 200;
+    private static final int BACKLOG = 4_096;
+    private static final long TOKEN_IDLE_NANOS = TimeUnit.MINUTES.toNanos(30);
+    private static final int SWEEP_EVERY = 1_024;
+
+    private final UserRepository users;
+    private final MoodRepository moods;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String, Login> logins = new ConcurrentHashMap<>();
+    private final AtomicInteger loginCount = new AtomicInteger();
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * A logged-in client.
+     */
+    private static final class Login {
+        final String username;
+        volatile long lastUsed = System.nanoTime();
+
+        Login(String username) {
+            this.username = username;
+        }
+    }
+
+    /**
+     * A request that cannot be served, answered with a status and message.
+     */
+    private static final class RequestException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        RequestException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    /**
+     * Creates a server. It does not accept requests until {@link #start()}.
+     *
+     * @param users The account storage.
+     * @param moods The mood storage; must be safe to share between threads.
+     * @param address The address to listen on; port 0 picks a free port.
+     * @throws IOException If the address cannot be bound.
+     */
+    public MoodServer(UserRepository users, MoodRepository moods, InetSocketAddress address) throws IOException {
+        this.users = users;
+        this.moods = moods;
+        this.server = HttpServer.create(address, BACKLOG);
+        this.executor = newRequestExecutor();
+        server.setExecutor(executor);
+        server.createContext("/api/", this::handle);
+    }
+
+    /**
+     * Main method to run the server until the process is stopped.
+     *
+     * @param args Command line arguments.
+     */
+    public static void main(String[] args) throws IOException {
+        String host = "127.0.0.1";
+        int port = 8080;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--host":
+                    host = args[i + 1];
+                    break;
+                case "--port":
+                    port = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    System.out.println("Unknown option: " + args[i]);
+                    return;
+            }
+        }
+        raiseIdleConnectionLimit();
+        DataLayout layout = DataLayout.standard();
+        StorageProvider storage = StorageProvider.open(layout); // Files replay what the last run had not checkpointed
+        MoodServer server = new MoodServer(storage.getUserRepository(), storage.getMoodRepository(),
+                new InetSocketAddress(host, port));
+        Metrics.configure(layout);
+        SnapshotCompactor compactor = new SnapshotCompactor(layout);
+        int snapshotMinutes = SnapshotCompactor.configuredMinutes(layout);
+        if (snapshotMinutes > 0) {
+            compactor.start(snapshotMinutes);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop(1);
+            compactor.close();
+            Metrics.stopDump();
+            try {
+                storage.close();
+            } catch (IOException e) {
+                System.out.println("Failed to close mood data: " + e.getMessage());
+            }
+        }));
+        server.start();
+        System.out.println("Listening on http://" + host + ":" + server.getPort() + "/api/ ("
+                + (server.usesVirtualThreads() ? "virtual threads" : PLATFORM_THREADS + " threads") + ")");
+    }
+
+    /**
+     * Raises the JDK server's limit on idle keep-alive connections from 200
+     * to the accept backlog; beyond the limit it drops connections, which
+     * clients holding many open see as failed requests. The limit is a
+     * JVM-wide system property read when the first server is created, so it
+     * is up to launchers, not the server, to set it, before creating one. A
+     * limit set on the command line is left alone.
+     */
+    static void raiseIdleConnectionLimit() {
+        if (System.getProperty("sun.net.httpserver.maxIdleConnections") == null) {
+            System.setProperty("sun.net.httpserver.maxIdleConnections", Integer.toString(BACKLOG));
+        }
+    }
+
+    /**
+     * Starts accepting requests.
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stops accepting requests and waits for running ones to finish.
+     *
+     * @param delaySeconds The longest time to wait for running requests.
+     */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.shutdown();
+    }
+
+    /**
+     * @return The port the server listens on.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return true if requests run on virtual threads.
+     */
+    public boolean usesVirtualThreads() {
+        return !(executor instanceof ThreadPoolExecutor);
+    }
+
+    /**
+     * Creates the executor requests run on: a virtual thread per request if
+     * the JVM has them, otherwise a fixed pool. Looked up by reflection so the
+     * app still builds and runs on Java 17.
+     */
+    private static ExecutorService newRequestExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(PLATFORM_THREADS); // Missing, or a preview feature on this JVM
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            String method = exchange.getRequestMethod();
+            switch (method + " " + path) {
+                case "POST /api/register":
+                    register(exchange);
+                    break;
+                case "POST /api/login":
+                    login(exchange);
+                    break;
+                case "POST /api/logout":
+                    logout(exchange);
+                    break;
+                case "POST /api/moods":
+                    submitMood(exchange, authorize(exchange));
+                    break;
+                case "GET /api/moods":
+                    history(exchange, authorize(exchange));
+                    break;
+                default:
+                    throw new RequestException(404, "No such endpoint: " + method + " " + path);
+            }
+        } catch (RequestException e) {
+            sendJson(exchange, e.status, "{\"error\": " + jsonString(e.getMessage()) + "}");
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Failed to serve " + exchange.getRequestURI() + ": " + e.getMessage());
+            if (exchange.getResponseCode() == -1) { // Nothing sent yet
+                sendJson(exchange, 500, "{\"error\": \"Internal error\"}");
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Creates an account and its mood storage, as the registration form does.
+     */
+    private void register(HttpExchange exchange) throws IOException, RequestException {
+        Map<String, String> body = readBody(exchange);
+        String username = require(body, "username");
+        String password = require(body, "password");
+        if (!UserRepository.isValidUsername(username) || !UserRepository.isValidPassword(password)) {
+            throw new RequestException(400, "Username and password must be at least 5 characters;"
+                    + " usernames may only use letters, digits, '.', '_' and '-'");
+        }
+        if (!users.register(username, password)) {
+            throw new RequestException(409, "Username already taken");
+        }
+        moods.createUser(username);
+        sendJson(exchange, 201, "{\"username\": " + jsonString(username) + "}");
+    }
+
+    /**
+     * Checks a login and hands out a token for the requests that follow.
+     */
+    private void login(HttpExchange exchange) throws IOException, RequestException {
+        Map<String, String> body = readBody(exchange);
+        String username = require(body, "username");
+        String password = require(body, "password");
+        if (!users.authenticate(username, password)) {
+            throw new RequestException(401, "Invalid username or password");
+        }
+        byte[] bytes = new byte[24];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        logins.put(token, new Login(username));
+        if (loginCount.incrementAndGet() % SWEEP_EVERY == 0) {
+            long now = System.nanoTime();
+            logins.values().removeIf(login -> now - login.lastUsed > TOKEN_IDLE_NANOS);
+        }
+        sendJson(exchange, 200, "{\"token\": \"" + token + "\"}");
+    }
+
+    /**
+     * Saves today's mood, replacing any earlier one for the day.
+     */
+    private void submitMood(HttpExchange exchange, String username) throws IOException, RequestException {
+        Map<String, String> body = readBody(exchange);
+        int rating;
+        try {
+            rating = Integer.parseInt(require(body, "rating"));
+        } catch (NumberFormatException e) {
+            throw new RequestException(400, "Rating must be a whole number");
+        }
+        if (!MoodEntry.isValidRating(rating)) {
+            throw new RequestException(400, "Rating must be between " + MoodEntry.MIN_RATING + " and " + MoodEntry.MAX_RATING);
+        }
+        LocalDate date = LocalDate.now();
+        if (body.get("date") != null && !parseDate(body.get("date")).equals(date)) {
+            throw new RequestException(400, "Moods can only be logged for today, " + date);
+        }
+        MoodEntry entry = new MoodEntry(date, rating, body.get("reason"));
+        moods.save(username, entry);
+        StringBuilder json = new StringBuilder();
+        appendEntry(json, entry);
+        sendJson(exchange, 201, json.toString());
+    }
+
+    /**
+     * Streams one page of a user's history. The page is read from the log in
+     * small batches, and each batch is written out before the next is read.
+     * The first batch is read before the status is sent, so a failure there
+     * is still answered with a 500.
+     */
+    private void history(HttpExchange exchange, String username) throws IOException, RequestException {
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        LocalDate from = query.get("from") == null ? null : parseDate(query.get("from"));
+        LocalDate to = query.get("to") == null ? null : parseDate(query.get("to"));
+        int limit = DEFAULT_PAGE_SIZE;
+        if (query.get("limit") != null) {
+            try {
+                limit = Integer.parseInt(query.get("limit"));
+            } catch (NumberFormatException e) {
+                throw new RequestException(400, "Limit must be a whole number");
+            }
+            if (limit < 1 || limit > MAX_PAGE_SIZE) {
+                throw new RequestException(400, "Limit must be between 1 and " + MAX_PAGE_SIZE);
+            }
+        }
+
+        List<MoodEntry> batch = new ArrayList<>(READ_BATCH);
+        int wanted = Math.min(READ_BATCH, limit + 1); // One extra tells whether another page follows
+        moods.forEach(username, from, to, wanted, batch::add);
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(200, 0); // Chunked: the length is not known up front
+        Writer writer = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8));
+        writer.write("{\"entries\": [");
+        StringBuilder json = new StringBuilder();
+        LocalDate next = null;
+        int remaining = limit;
+        boolean first = true;
+        boolean failed = false;
+        while (true) {
+            for (MoodEntry entry : batch) {
+                if (remaining == 0) {
+                    next = entry.getDate();
+                    break;
+                }
+                json.setLength(0);
+                json.append(first ? "\n  " : ",\n  ");
+                appendEntry(json, entry);
+                writer.write(json.toString());
+                first = false;
+                remaining--;
+            }
+            if (batch.size() < wanted || next != null) {
+                break;
+            }
+            LocalDate cursor = batch.get(batch.size() - 1).getDate().plusDays(1);
+            batch.clear();
+            wanted = Math.min(READ_BATCH, remaining + 1);
+            try {
+                moods.forEach(username, cursor, to, wanted, batch::add);
+            } catch (IOException | RuntimeException e) { // Too late for a 500, so the page says it is incomplete
+                System.out.println("Failed to serve " + exchange.getRequestURI() + ": " + e.getMessage());
+                failed = true;
+                break;
+            }
+        }
+        writer.write(first ? "], \"next\": " : "\n], \"next\": ");
+        writer.write(next == null ? "null" : "\"" + next + "\"");
+        if (failed) {
+            writer.write(", \"error\": \"Internal error; the page is incomplete\"");
+        }
+        writer.write("}\n");
+        writer.flush();
+    }
+
+    /**
+     * Finds the user a request's token belongs to.
+     *
+     * @return The username.
+     * @throws RequestException If the token is missing, unknown or expired.
+     */
+    private String authorize(HttpExchange exchange) throws RequestException {
+        String token = token(exchange);
+        Login login = token == null ? null : logins.get(token);
+        if (login == null) {
+            throw new RequestException(401, "Log in first");
+        }
+        long now = System.nanoTime();
+        if (now - login.lastUsed > TOKEN_IDLE_NANOS) {
+            logins.remove(token);
+            throw new RequestException(401, "Session expired");
+        }
+        login.lastUsed = now;
+        return login.username;
+    }
+
+    /**
+     * Ends a login. An unknown or expired token is already logged out, so
+     * only a missing one is refused.
+     */
+    private void logout(HttpExchange exchange) throws IOException, RequestException {
+        String token = token(exchange);
+        if (token == null) {
+            throw new RequestException(401, "Log in first");
+        }
+        logins.remove(token);
+        exchange.sendResponseHeaders(204, -1);
+    }
+
+    private static String token(HttpExchange exchange) {
+        String header = exchange.getRequestHeaders().getFirst("Authorization");
+        if (header == null || !header.startsWith("Bearer ")) {
+            return null;
+        }
+        return header.substring("Bearer ".length()).trim();
+    }
+
+    private static Map<String, String> readBody(HttpExchange exchange) throws IOException, RequestException {
+        byte[] bytes;
+        try (InputStream in = exchange.getRequestBody()) {
+            bytes = in.readNBytes(MAX_BODY_BYTES + 1);
+        }
+        if (bytes.length > MAX_BODY_BYTES) {
+            throw new RequestException(413, "Request body too large");
+        }
+        try {
+            return MoodImporter.readJsonObject(new String(bytes, StandardCharsets.UTF_8));
+        } catch (IllegalArgumentException e) {
+            throw new RequestException(400, "Body must be a flat JSON object");
+        }
+    }
+
+    private static String require(Map<String, String> fields, String key) throws RequestException {
+        String value = fields.get(key);
+        if (value == null || value.isEmpty()) {
+            throw new RequestException(400, "Missing " + key);
+        }
+        return value;
+    }
+
+    private static LocalDate parseDate(String text) throws RequestException {
+        try {
+            return LocalDate.parse(text);
+        } catch (DateTimeParseException e) {
+            throw new RequestException(400, "Dates must look like 2024-03-14");
+        }
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                query.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return query;
+    }
+
+    private static void appendEntry(StringBuilder json, MoodEntry entry) {
+        json.append("{\"date\": \"").append(entry.getDate()).append("\", \"rating\": ").append(entry.getRating())
+                .append(", \"reason\": ").append(jsonString(entry.getReason())).append('}');
+    }
+
+    private static String jsonString(String value) {
+        StringWriter writer = new StringWriter();
+        try {
+            MoodExporter.writeJsonString(writer, value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Writing to memory cannot fail
+        }
+        return writer.toString();
+    }
+
+    private static void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = (json + "\n").getBytes(StandardCharsets.UTF_8);
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+}
@@ -0,0 +1,206 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * MoodServerLoadTest starts a {@link MoodServer} on localhost over a fresh
+ * data directory and fires requests at it from many concurrent clients: mostly
+ * history pages, with submissions of the day's mood mixed in. It prints the
+ * throughput and the p50 and p99 latency of each kind of request, for each
+ * concurrency level.
+ *
+ * Usage: {@code java MoodServerLoadTest [--users 200] [--days 365] [--requests 20000]
+ * [--concurrency 100,1000,4000] [--durability group]}
+ */
+public class MoodServerLoadTest {
+    private static final LocalDate FIRST_DAY = LocalDate.of(2023, 1, 1);
+    private static final int SUBMIT_PERCENT = 20;
+
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(30))
+            .build();
+    private final String base;
+
+    MoodServerLoadTest(int port) {
+        this.base = "http://127.0.0.1:" + port + "/api/";
+    }
+
+    /**
+     * Main method to run the load test.
+     *
+     * @param args Command line arguments.
+     */
+    public static void main(String[] args) throws Exception {
+        int users = 200;
+        int days = 365;
+        int requests = 20_000;
+        int[] concurrencies = {100, 1_000, 4_000};
+        String durability = "group";
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--users":
+                    users = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--days":
+                    days = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--requests":
+                    requests = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--concurrency":
+                    concurrencies = Arrays.stream(args[i + 1].split(",")).mapToInt(Integer::parseInt).toArray();
+                    break;
+                case "--durability":
+                    durability = args[i + 1];
+                    break;
+                default:
+                    System.out.println("Unknown option: " + args[i]);
+                    return;
+            }
+        }
+
+        MoodServer.raiseIdleConnectionLimit(); // Before the server is created
+        Path root = Files.createTempDirectory("mha-load");
+        DataLayout layout = new DataLayout(root);
+        FileMoodRepository moods = new FileMoodRepository(layout, Durability.parse(durability, null));
+        MoodServer server = new MoodServer(new FileUserRepository(layout, new PasswordHasher(1_000)), moods,
+                new InetSocketAddress("127.0.0.1", 0));
+        server.start();
+        try {
+            MoodServerLoadTest test = new MoodServerLoadTest(server.getPort());
+            String[] tokens = test.setUp(users, days, moods);
+            System.out.printf("%d users with %d days each, %s durability, %s%n", users, days,
+                    durability, server.usesVirtualThreads() ? "virtual threads" : "platform thread pool");
+            System.out.printf("%-12s %10s %10s %10s %10s %10s %8s%n",
+                    "concurrency", "req/s", "hist p50", "hist p99", "save p50", "save p99", "errors");
+            test.run(tokens, days, Math.min(requests, 2_000), 50, false); // Warm up
+            for (int concurrency : concurrencies) {
+                test.run(tokens, days, requests, concurrency, true);
+            }
+        } finally {
+            server.stop(0);
+            moods.close();
+        }
+    }
+
+    /**
+     * Registers and logs in the users through the API and gives each a
+     * history to page through.
+     *
+     * @return The login token of each user.
+     */
+    private String[] setUp(int users, int days, MoodRepository moods) throws IOException, InterruptedException {
+        String[] tokens = new String[users];
+        for (int u = 0; u < users; u++) {
+            String username = "loaduser" + u;
+            String credentials = "{\"username\": \"" + username + "\", \"password\": \"password" + u + "\"}";
+            HttpResponse<String> registered = client.send(post("register", null, credentials),
+                    HttpResponse.BodyHandlers.ofString());
+            if (registered.statusCode() != 201) {
+                throw new IOException("Register failed: " + registered.body());
+            }
+            HttpResponse<String> login = client.send(post("login", null, credentials), HttpResponse.BodyHandlers.ofString());
+            tokens[u] = MoodImporter.readJsonObject(login.body()).get("token");
+            List<MoodEntry> history = new ArrayList<>(days);
+            for (int d = 0; d < days; d++) {
+                history.add(new MoodEntry(FIRST_DAY.plusDays(d), 1 + (u + d) % 10, "seeded day " + d));
+            }
+            moods.saveAll(username, history.iterator());
+        }
+        return tokens;
+    }
+
+    /**
+     * Sends a number of requests, keeping a given number in flight, and
+     * prints one row of results unless it is a warm-up.
+     */
+    private void run(String[] tokens, int days, int requests, int concurrency, boolean report)
+            throws InterruptedException {
+        Random random = new Random(concurrency);
+        long[] historyNanos = new long[requests];
+        long[] saveNanos = new long[requests];
+        AtomicInteger histories = new AtomicInteger();
+        AtomicInteger saves = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+        Semaphore inFlight = new Semaphore(concurrency);
+        List<CompletableFuture<?>> pending = new ArrayList<>(requests);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            String token = tokens[random.nextInt(tokens.length)];
+            LocalDate day = FIRST_DAY.plusDays(random.nextInt(days));
+            boolean submit = random.nextInt(100) < SUBMIT_PERCENT;
+            HttpRequest request = submit
+                    ? post("moods", token, "{\"rating\": " + (1 + random.nextInt(10)) + ", \"reason\": \"load test\"}")
+                    : HttpRequest.newBuilder(URI.create(base + "moods?from=" + day + "&limit=100"))
+                            .header("Authorization", "Bearer " + token).GET().build();
+            inFlight.acquire();
+            long sent = System.nanoTime();
+            pending.add(client.sendAsync(request, HttpResponse.BodyHandlers.ofString()).whenComplete((response, failure) -> {
+                long elapsed = System.nanoTime() - sent;
+                inFlight.release();
+                if (failure != null || response.statusCode() != (submit ? 201 : 200)) {
+                    if (errors.getAndIncrement() == 0) {
+                        System.out.println("First error: "
+                                + (failure != null ? failure : response.statusCode() + " " + response.body()));
+                    }
+                } else if (submit) {
+                    saveNanos[saves.getAndIncrement()] = elapsed;
+                } else {
+                    historyNanos[histories.getAndIncrement()] = elapsed;
+                }
+            }));
+        }
+        for (CompletableFuture<?> future : pending) {
+            future.exceptionally(failure -> null).join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long[] history = Arrays.copyOf(historyNanos, histories.get());
+        long[] save = Arrays.copyOf(saveNanos, saves.get());
+        Arrays.sort(history);
+        Arrays.sort(save);
+        if (!report) {
+            return;
+        }
+        System.out.printf("%-12d %10.0f %10s %10s %10s %10s %8d%n", concurrency, requests / (elapsed / 1e9),
+                millis(percentile(history, 50)), millis(percentile(history, 99)),
+                millis(percentile(save, 50)), millis(percentile(save, 99)), errors.get());
+    }
+
+    private HttpRequest post(String endpoint, String token, String json) {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(base + endpoint))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(json));
+        if (token != null) {
+            request.header("Authorization", "Bearer " + token);
+        }
+        return request.build();
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) {
+            return -1;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(sorted.length * percent / 100.0) - 1)];
+    }
+
+    private static String millis(long nanos) {
+        return nanos < 0 ? "-" : String.format("%.2f ms", nanos / 1e6);
+    }
+}
@@ -0,0 +1,215 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * MoodSession holds everything opened for the logged-in user: the mood log,
+ * the running summaries kept next to it and, once first needed, the reason
+ * search index. Submissions go through the session so all of them are updated
+ * together. When the session closes, the log's binary copy (see
+ * {@link MoodBinaryFormat}) is rewritten if the log changed since it was made.
+ */
+public class MoodSession implements Closeable {
+    private static final int BATCH_SIZE = 4096;
+
+    private final String username;
+    private final MoodLog log;
+    private final MoodAggregates aggregates;
+    private final Path aggregatesFile;
+    private final Path reasonIndexFile;
+    private final Path binaryFile;
+    private ReasonIndex reasons; // Loaded on first search or submission
+
+    private MoodSession(String username, MoodLog log, MoodAggregates aggregates, Path aggregatesFile, Path reasonIndexFile,
+            Path binaryFile) {
+        this.username = username;
+        this.log = log;
+        this.aggregates = aggregates;
+        this.aggregatesFile = aggregatesFile;
+        this.reasonIndexFile = reasonIndexFile;
+        this.binaryFile = binaryFile;
+    }
+
+    /**
+     * Opens a user's mood log and summaries.
+     *
+     * @param layout Where the user's files live.
+     * @param username The user to open.
+     * @param durability When submissions are forced to disk.
+     * @return The session.
+     * @throws IOException If the mood log cannot be opened.
+     */
+    public static MoodSession open(DataLayout layout, String username, Durability durability) throws IOException {
+        return open(layout, username, durability, null);
+    }
+
+    /**
+     * Opens a user's mood log, journaling its writes, and summaries.
+     *
+     * @param layout Where the user's files live.
+     * @param username The user to open.
+     * @param durability When submissions are forced to disk if the journal is not open.
+     * @param journal Where writes are recorded first, or null.
+     * @return The session.
+     * @throws IOException If the mood log cannot be opened.
+     */
+    public static MoodSession open(DataLayout layout, String username, Durability durability, WriteAheadLog journal)
+            throws IOException {
+        Files.createDirectories(layout.moodDirectory(username));
+        MoodLog log = MoodLog.open(layout.moodFile(username), durability, journal);
+        Path aggregatesFile = layout.aggregatesFile(username);
+        return new MoodSession(username, log, MoodAggregates.load(aggregatesFile, log), aggregatesFile,
+                layout.reasonIndexFile(username), layout.binaryFile(username));
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public MoodLog getLog() {
+        return log;
+    }
+
+    public MoodAggregates getAggregates() {
+        return aggregates;
+    }
+
+    /**
+     * Returns the reason search index, loading it the first time it is needed.
+     *
+     * @return The index.
+     * @throws IOException If the index has to be rebuilt and the log cannot be read.
+     */
+    public synchronized ReasonIndex getReasonIndex() throws IOException {
+        if (reasons == null) {
+            reasons = ReasonIndex.load(reasonIndexFile, log);
+        }
+        return reasons;
+    }
+
+    /**
+     * Finds the days whose reason contains every word of a query.
+     *
+     * @param query The words to look for.
+     * @return The matching days, oldest first.
+     * @throws IOException If the index cannot be loaded.
+     */
+    public int[] searchReasons(String query) throws IOException {
+        return getReasonIndex().search(query);
+    }
+
+    /**
+     * Saves a mood entry and folds it into the summaries and the reason index.
+     * Returns once the entry is as durable as the log's policy requires;
+     * submissions from several threads share a force while they wait.
+     *
+     * @param entry The entry to save.
+     * @throws IOException If the entry cannot be written to the log.
+     */
+    public void submit(MoodEntry entry) throws IOException {
+        apply(entry);
+        log.sync(); // Outside the session lock so concurrent submits can share one force
+    }
+
+    private synchronized void apply(MoodEntry entry) throws IOException {
+        LocalDate date = entry.getDate();
+        int epochDay = (int) date.toEpochDay();
+        ReasonIndex index = getReasonIndex(); // Loaded before the append so its stamp still matches the log
+        int previousRating = log.rating(date);
+        MoodEntry previous = previousRating == 0 ? null : log.get(date);
+        log.put(entry);
+        aggregates.record(epochDay, entry.getRating(), previousRating);
+        if (previous != null) {
+            index.remove(epochDay, previous.getReason());
+        }
+        index.add(epochDay, entry.getReason());
+    }
+
+    /**
+     * Saves many mood entries, appending them to the log in batches. Entries are pulled from the
+     * iterator as they are written, so the whole import is never in memory.
+     * The reason index is dropped and rebuilt on its next use, which is
+     * cheaper than updating it entry by entry.
+     *
+     * @param entries The entries to save, ideally in date order.
+     * @return The number of entries saved.
+     * @throws IOException If a batch cannot be written to the log.
+     */
+    public long submitAll(Iterator<MoodEntry> entries) throws IOException {
+        long saved = applyAll(entries);
+        log.sync(); // One force for the whole import
+        return saved;
+    }
+
+    private synchronized long applyAll(Iterator<MoodEntry> entries) throws IOException {
+        List<MoodEntry> batch = new ArrayList<>(BATCH_SIZE);
+        long saved = 0;
+        reasons = null;
+        while (entries.hasNext()) {
+            batch.add(entries.next());
+            if (batch.size() == BATCH_SIZE || !entries.hasNext()) {
+                submitBatch(batch);
+                saved += batch.size();
+                batch.clear();
+            }
+        }
+        return saved;
+    }
+
+    private void submitBatch(List<MoodEntry> batch) throws IOException {
+        Map<LocalDate, Integer> earlier = new HashMap<>(); // Ratings replaced by entries earlier in the same batch
+        int[] previousRatings = new int[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            MoodEntry entry = batch.get(i);
+            Integer inBatch = earlier.put(entry.getDate(), entry.getRating());
+            previousRatings[i] = inBatch != null ? inBatch : log.rating(entry.getDate());
+        }
+        log.putAll(batch);
+        for (int i = 0; i < batch.size(); i++) {
+            MoodEntry entry = batch.get(i);
+            aggregates.record((int) entry.getDate().toEpochDay(), entry.getRating(), previousRatings[i]);
+        }
+    }
+
+    /**
+     * Saves the summaries, the reason index and the binary copy if they
+     * changed, stamped with the log's {@link MoodLog#stamp()}, then closes
+     * the mood log. A session that never closes leaves stale stamps behind,
+     * so all three are rebuilt on the next open or close.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (aggregates.isDirty()) {
+            try {
+                aggregates.save(aggregatesFile, log.stamp());
+            } catch (IOException e) {
+                // The log is the source of truth; the summaries are rebuilt on next login
+                System.out.println("Failed to save mood summary: " + e.getMessage());
+            }
+        }
+        if (reasons != null && reasons.isDirty()) {
+            try {
+                reasons.save(reasonIndexFile, log.stamp());
+            } catch (IOException e) {
+                // Rebuilt from the log on next use
+                System.out.println("Failed to save reason index: " + e.getMessage());
+            }
+        }
+        try {
+            if (!log.stamp().equals(MoodBinaryFormat.readStamp(binaryFile))) {
+                MoodBinaryFormat.write(binaryFile, log);
+            }
+        } catch (IOException e) {
+            // Readers fall back to the log until the next session writes it
+            System.out.println("Failed to save binary mood file: " + e.getMessage());
+        }
+        log.close();
+    }
+}
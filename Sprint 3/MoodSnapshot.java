@@ -0,0 +1,570 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.Arrays;
+
+/**
+ * MoodSnapshot runs queries across every user on a columnar snapshot (see
+ * {@link MoodSnapshotFormat}) through a memory-mapped buffer. Only the day
+ * runs are decoded when the snapshot is opened; a query reads just the
+ * columns its filters and aggregation use, and only the rows of the days it
+ * asks for:
+ *
+ * <pre>
+ * try (MoodSnapshot snapshot = MoodSnapshot.open(layout.snapshotFile())) {
+ *     MoodSnapshot.Groups days = snapshot.query().from(start).ratingsBetween(1, 3).byDay();
+ * }
+ * </pre>
+ *
+ * Rows are decoded a block at a time into plain arrays, filtered into a
+ * selection of row numbers, and aggregated in tight loops over those arrays.
+ * A snapshot can be shared between threads; each query belongs to one.
+ */
+public class MoodSnapshot implements Closeable {
+    private static final int BLOCK = 4096;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int users;
+    private final int rows;
+    private final long createdMillis;
+    private final int[] runDays;
+    private final int[] runStarts; // Row of each run's first mood, then the row count
+    private final int usernamesOffset;
+    private final int usernamesLength;
+    private final LongBuffer idWords;
+    private final int idBits;
+    private final int ratingsOffset;
+    private String[] usernames; // Decoded on first use
+
+    private MoodSnapshot(FileChannel channel, MappedByteBuffer buffer) throws IOException {
+        this.channel = channel;
+        this.buffer = buffer;
+        users = buffer.getInt(8);
+        rows = buffer.getInt(12);
+        int runs = buffer.getInt(16);
+        int firstDay = buffer.getInt(20);
+        createdMillis = buffer.getLong(24);
+        int[] offsets = new int[MoodSnapshotFormat.COLUMNS];
+        int[] lengths = new int[MoodSnapshotFormat.COLUMNS];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = buffer.getInt(32 + i * 8);
+            lengths[i] = buffer.getInt(36 + i * 8);
+            if (offsets[i] < MoodSnapshotFormat.HEADER_SIZE || lengths[i] < 0
+                    || (long) offsets[i] + lengths[i] > buffer.capacity()) {
+                throw new IOException("Corrupt snapshot header");
+            }
+        }
+        idBits = MoodSnapshotFormat.bitsFor(users - 1);
+        if (users < 0 || rows < 0 || runs < 0 || runs > rows
+                || lengths[MoodSnapshotFormat.USER_IDS] != ((long) rows * idBits + 63) / 64 * 8
+                || lengths[MoodSnapshotFormat.RATINGS] != (rows + 1) / 2) {
+            throw new IOException("Corrupt snapshot header");
+        }
+        usernamesOffset = offsets[MoodSnapshotFormat.USERNAMES];
+        usernamesLength = lengths[MoodSnapshotFormat.USERNAMES];
+        ratingsOffset = offsets[MoodSnapshotFormat.RATINGS];
+        ByteBuffer ids = buffer.duplicate();
+        ids.position(offsets[MoodSnapshotFormat.USER_IDS]).limit(offsets[MoodSnapshotFormat.USER_IDS]
+                + lengths[MoodSnapshotFormat.USER_IDS]);
+        idWords = ids.slice().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+
+        // The day runs are a few bytes per day, so they are decoded up front
+        runDays = new int[runs];
+        runStarts = new int[runs + 1];
+        int position = offsets[MoodSnapshotFormat.DAYS];
+        int end = position + lengths[MoodSnapshotFormat.DAYS];
+        int day = firstDay;
+        long[] value = new long[1];
+        for (int run = 0; run < runs; run++) {
+            position = readVarint(position, end, value);
+            day += (int) value[0];
+            runDays[run] = day;
+            position = readVarint(position, end, value);
+            runStarts[run + 1] = runStarts[run] + (int) value[0];
+        }
+        if (runStarts[runs] != rows) {
+            throw new IOException("Corrupt snapshot: day runs do not add up to the row count");
+        }
+    }
+
+    /**
+     * Maps a snapshot and checks its header.
+     *
+     * @param file The snapshot file.
+     * @return The snapshot.
+     * @throws IOException If the file cannot be read or is not a supported snapshot.
+     */
+    public static MoodSnapshot open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < MoodSnapshotFormat.HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("Not a mood snapshot: " + file);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt(0) != MoodSnapshotFormat.MAGIC) {
+                throw new IOException("Not a mood snapshot: " + file);
+            }
+            short version = buffer.getShort(4);
+            if (version != MoodSnapshotFormat.VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + ": " + file);
+            }
+            return new MoodSnapshot(channel, buffer);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The number of users in the snapshot, with or without moods.
+     */
+    public int users() {
+        return users;
+    }
+
+    /**
+     * @return The number of moods in the snapshot.
+     */
+    public int rows() {
+        return rows;
+    }
+
+    /**
+     * @return When the snapshot was written, in milliseconds since the epoch.
+     */
+    public long getCreatedMillis() {
+        return createdMillis;
+    }
+
+    /**
+     * @param id A user id, 0 to users() - 1.
+     * @return The user's name.
+     */
+    public String username(int id) {
+        return usernames()[id];
+    }
+
+    /**
+     * @param username The username.
+     * @return The user's id, or -1 if the user is not in the snapshot.
+     */
+    public int userId(String username) {
+        int id = Arrays.binarySearch(usernames(), username);
+        return id < 0 ? -1 : id;
+    }
+
+    /**
+     * Starts a query over every mood in the snapshot.
+     *
+     * @return The query; add filters, then call one aggregation.
+     */
+    public Query query() {
+        return new Query();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private synchronized String[] usernames() {
+        if (usernames == null) {
+            String[] names = new String[users];
+            int position = usernamesOffset;
+            for (int id = 0; id < users; id++) {
+                int length = buffer.getShort(position) & 0xFFFF;
+                byte[] bytes = new byte[length];
+                buffer.get(position + 2, bytes);
+                names[id] = new String(bytes, StandardCharsets.UTF_8);
+                position += 2 + length;
+            }
+            if (position > usernamesOffset + usernamesLength) {
+                throw new IllegalStateException("Corrupt snapshot: usernames overrun their column");
+            }
+            usernames = names;
+        }
+        return usernames;
+    }
+
+    private int readVarint(int position, int end, long[] value) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (position >= end) {
+                break;
+            }
+            byte b = buffer.get(position++);
+            result |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                value[0] = result;
+                return position;
+            }
+        }
+        throw new IOException("Corrupt snapshot: bad day run");
+    }
+
+    /**
+     * @return The first run on or after a day, or the number of runs if there is none.
+     */
+    private int runAtOrAfter(long epochDay) {
+        int low = 0;
+        int high = runDays.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (runDays[mid] < epochDay) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Unpacks the 4-bit ratings of a range of rows.
+     */
+    private void readRatings(int firstRow, int count, byte[] packed, byte[] ratings) {
+        int firstByte = firstRow >>> 1;
+        buffer.get(ratingsOffset + firstByte, packed, 0, ((firstRow + count - 1) >>> 1) - firstByte + 1);
+        int odd = firstRow & 1;
+        for (int i = 0; i < count; i++) {
+            int row = i + odd;
+            ratings[i] = (byte) ((packed[row >>> 1] >>> ((row & 1) << 2)) & 0xF);
+        }
+    }
+
+    /**
+     * Unpacks the bit-packed user ids of a range of rows.
+     */
+    private void readUserIds(int firstRow, int count, long[] words, int[] ids) {
+        long firstBit = (long) firstRow * idBits;
+        int firstWord = (int) (firstBit >>> 6);
+        int lastWord = (int) (((long) (firstRow + count) * idBits - 1) >>> 6);
+        idWords.get(firstWord, words, 0, lastWord - firstWord + 1);
+        long mask = (1L << idBits) - 1;
+        long bit = firstBit - ((long) firstWord << 6);
+        for (int i = 0; i < count; i++, bit += idBits) {
+            int word = (int) (bit >>> 6);
+            int shift = (int) (bit & 63);
+            long value = words[word] >>> shift;
+            if (shift + idBits > 64) {
+                value |= words[word + 1] << (64 - shift);
+            }
+            ids[i] = (int) (value & mask);
+        }
+    }
+
+    /**
+     * Counts and rating sums grouped by a key: a day for {@link Query#byDay()},
+     * a user id for {@link Query#byUser()}. Groups without moods are left out.
+     */
+    public static final class Groups {
+        private final int[] keys;
+        private final long[] counts;
+        private final long[] sums;
+
+        private Groups(int[] keys, long[] counts, long[] sums) {
+            this.keys = keys;
+            this.counts = counts;
+            this.sums = sums;
+        }
+
+        private static Groups of(int[] keys, long[] counts, long[] sums) {
+            int size = 0;
+            for (long count : counts) {
+                if (count > 0) {
+                    size++;
+                }
+            }
+            Groups groups = new Groups(new int[size], new long[size], new long[size]);
+            for (int i = 0, j = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    groups.keys[j] = keys == null ? i : keys[i];
+                    groups.counts[j] = counts[i];
+                    groups.sums[j++] = sums[i];
+                }
+            }
+            return groups;
+        }
+
+        public int size() {
+            return keys.length;
+        }
+
+        /**
+         * @param index The group number, in key order.
+         * @return The group's epoch day or user id.
+         */
+        public int key(int index) {
+            return keys[index];
+        }
+
+        public long count(int index) {
+            return counts[index];
+        }
+
+        public long sum(int index) {
+            return sums[index];
+        }
+
+        public double average(int index) {
+            return (double) sums[index] / counts[index];
+        }
+    }
+
+    /**
+     * A query over the snapshot: filters narrow the moods, then one
+     * aggregation runs. Filters left unset match everything.
+     */
+    public final class Query {
+        private int fromDay = Integer.MIN_VALUE;
+        private int toDay = Integer.MAX_VALUE;
+        private int minRating = 0;
+        private int maxRating = MoodSnapshotFormat.MAX_RATING;
+        private boolean[] selectedUsers; // Null for every user
+
+        private Query() {
+        }
+
+        /**
+         * @param date The first day, inclusive.
+         * @return This query.
+         */
+        public Query from(LocalDate date) {
+            fromDay = (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, date.toEpochDay()));
+            return this;
+        }
+
+        /**
+         * @param date The last day, inclusive.
+         * @return This query.
+         */
+        public Query to(LocalDate date) {
+            toDay = (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, date.toEpochDay()));
+            return this;
+        }
+
+        /**
+         * @param lowest The lowest rating, inclusive.
+         * @param highest The highest rating, inclusive.
+         * @return This query.
+         */
+        public Query ratingsBetween(int lowest, int highest) {
+            minRating = lowest;
+            maxRating = highest;
+            return this;
+        }
+
+        /**
+         * Limits the query to some users. Names not in the snapshot match nothing.
+         *
+         * @param names The usernames.
+         * @return This query.
+         */
+        public Query users(String... names) {
+            if (selectedUsers == null) {
+                selectedUsers = new boolean[users];
+            }
+            for (String name : names) {
+                int id = userId(name);
+                if (id >= 0) {
+                    selectedUsers[id] = true;
+                }
+            }
+            return this;
+        }
+
+        /**
+         * @return The number of matching moods. Without rating or user
+         *     filters this only reads the day runs.
+         */
+        public long count() {
+            if (!filtersRatings() && selectedUsers == null) {
+                int first = runAtOrAfter(fromDay);
+                int end = runAtOrAfter(toDay + 1L);
+                return runStarts[Math.max(first, end)] - runStarts[first];
+            }
+            long[] total = new long[1];
+            scan(false, false, (run, block) -> total[0] += block.selected);
+            return total[0];
+        }
+
+        /**
+         * @return How many matching moods have each rating, indexed by rating.
+         */
+        public long[] ratingCounts() {
+            long[] counts = new long[MoodSnapshotFormat.MAX_RATING + 1];
+            scan(true, false, (run, block) -> {
+                byte[] ratings = block.ratings;
+                if (block.selection == null) {
+                    for (int i = 0; i < block.selected; i++) {
+                        counts[ratings[i]]++;
+                    }
+                } else {
+                    int[] selection = block.selection;
+                    for (int i = 0; i < block.selected; i++) {
+                        counts[ratings[selection[i]]]++;
+                    }
+                }
+            });
+            return counts;
+        }
+
+        /**
+         * @return The count and rating sum of the matching moods of each day, by epoch day.
+         */
+        public Groups byDay() {
+            long[] counts = new long[runDays.length];
+            long[] sums = new long[runDays.length];
+            scan(true, false, (run, block) -> {
+                counts[run] += block.selected;
+                sums[run] += block.sum();
+            });
+            return Groups.of(runDays, counts, sums);
+        }
+
+        /**
+         * @return The count and rating sum of the matching moods of each user, by user id.
+         */
+        public Groups byUser() {
+            long[] counts = new long[users];
+            long[] sums = new long[users];
+            scan(true, true, (run, block) -> {
+                byte[] ratings = block.ratings;
+                int[] ids = block.ids;
+                if (block.selection == null) {
+                    for (int i = 0; i < block.selected; i++) {
+                        counts[ids[i]]++;
+                        sums[ids[i]] += ratings[i];
+                    }
+                } else {
+                    int[] selection = block.selection;
+                    for (int i = 0; i < block.selected; i++) {
+                        int row = selection[i];
+                        counts[ids[row]]++;
+                        sums[ids[row]] += ratings[row];
+                    }
+                }
+            });
+            return Groups.of(null, counts, sums);
+        }
+
+        private boolean filtersRatings() {
+            return minRating > 0 || maxRating < MoodSnapshotFormat.MAX_RATING;
+        }
+
+        /**
+         * Decodes the rows of the day range a block at a time, reading only
+         * the columns asked for plus those the filters need, and hands each
+         * filtered block to the sink. A block never spans two days.
+         */
+        private void scan(boolean needRatings, boolean needIds, BlockSink sink) {
+            boolean ratingFilter = filtersRatings();
+            boolean userFilter = selectedUsers != null;
+            Block block = new Block(needRatings || ratingFilter, needIds || userFilter, ratingFilter || userFilter);
+            int first = runAtOrAfter(fromDay);
+            int end = runAtOrAfter(toDay + 1L);
+            for (int run = first; run < end; run++) {
+                for (int row = runStarts[run]; row < runStarts[run + 1]; row += BLOCK) {
+                    int count = Math.min(BLOCK, runStarts[run + 1] - row);
+                    if (block.ratings != null) {
+                        readRatings(row, count, block.packedRatings, block.ratings);
+                    }
+                    if (block.ids != null) {
+                        readUserIds(row, count, block.packedIds, block.ids);
+                    }
+                    block.selected = count;
+                    if (ratingFilter) {
+                        block.selectRatings(count, minRating, maxRating);
+                    }
+                    if (userFilter) {
+                        block.selectUsers(ratingFilter ? block.selected : count, !ratingFilter, selectedUsers);
+                    }
+                    sink.accept(run, block);
+                }
+            }
+        }
+    }
+
+    /**
+     * Receives the decoded blocks of a scan.
+     */
+    private interface BlockSink {
+        void accept(int run, Block block);
+    }
+
+    /**
+     * One block of decoded rows. When a filter is set, the first
+     * {@code selected} entries of {@code selection} are the rows that passed
+     * it; otherwise {@code selection} is null and every row passed.
+     */
+    private static final class Block {
+        final byte[] packedRatings;
+        final byte[] ratings;
+        final long[] packedIds;
+        final int[] ids;
+        final int[] selection;
+        int selected;
+
+        Block(boolean ratings, boolean ids, boolean filtered) {
+            this.packedRatings = ratings ? new byte[BLOCK / 2 + 1] : null;
+            this.ratings = ratings ? new byte[BLOCK] : null;
+            this.packedIds = ids ? new long[BLOCK / 2 + 2] : null; // At most 32 bits an id
+            this.ids = ids ? new int[BLOCK] : null;
+            this.selection = filtered ? new int[BLOCK] : null;
+        }
+
+        /**
+         * Selects the rows whose rating is in range, without branching on
+         * the rating so the loop stays tight.
+         */
+        void selectRatings(int count, int min, int max) {
+            int kept = 0;
+            for (int i = 0; i < count; i++) {
+                int rating = ratings[i];
+                selection[kept] = i;
+                kept += (rating >= min & rating <= max) ? 1 : 0;
+            }
+            selected = kept;
+        }
+
+        /**
+         * Narrows the selection to rows of the chosen users.
+         *
+         * @param count The rows selected so far, or the block size if nothing is yet.
+         * @param all true if nothing has been selected yet.
+         */
+        void selectUsers(int count, boolean all, boolean[] chosen) {
+            int kept = 0;
+            for (int i = 0; i < count; i++) {
+                int row = all ? i : selection[i];
+                selection[kept] = row;
+                kept += chosen[ids[row]] ? 1 : 0;
+            }
+            selected = kept;
+        }
+
+        long sum() {
+            long sum = 0;
+            if (selection == null) {
+                for (int i = 0; i < selected; i++) {
+                    sum += ratings[i];
+                }
+            } else {
+                for (int i = 0; i < selected; i++) {
+                    sum += ratings[selection[i]];
+                }
+            }
+            return sum;
+        }
+    }
+}
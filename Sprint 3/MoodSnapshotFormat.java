@@ -0,0 +1,185 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * MoodSnapshotFormat describes and writes the columnar snapshot of every
+ * user's ratings that cross-user queries run on (see {@link MoodSnapshot}).
+ * Rows are sorted by day, then by user, and each column is stored on its own
+ * so a query only reads the columns it needs:
+ *
+ * <pre>
+ * header    : int magic "MCOL", short version, short reserved, int users, int rows, int runs,
+ *             int firstDay, long createdMillis
+ * directory : 4 x (int offset, int length) for the columns below, in this order
+ * usernames : users x (short length, UTF-8 bytes), sorted, so a user's id is their position
+ * days      : runs x (varint days since the previous run, varint rows), one run per day with moods
+ * user ids  : one id per row, bit-packed with as few bits as the highest id needs, in little-endian longs
+ * ratings   : one rating per row in 4 bits, two to a byte, the first in the low half
+ * </pre>
+ *
+ * Every column starts on an 8-byte boundary. Since every user logs at most
+ * one mood a day and most days have many users, the day column is a few
+ * bytes per day however many users there are.
+ */
+public final class MoodSnapshotFormat {
+    static final int MAGIC = 0x4D434F4C; // "MCOL"
+    static final short VERSION = 1;
+    static final int COLUMNS = 4;
+    static final int HEADER_SIZE = 32 + COLUMNS * 8;
+    static final int USERNAMES = 0;
+    static final int DAYS = 1;
+    static final int USER_IDS = 2;
+    static final int RATINGS = 3;
+    static final int MAX_RATING = 15; // What fits in 4 bits
+
+    private MoodSnapshotFormat() {
+    }
+
+    /**
+     * Writes a snapshot. The file is written to a temp file first and moved
+     * into place so readers never see a half-written file.
+     *
+     * @param file The file to write.
+     * @param usernames Every user, sorted.
+     * @param points Each user's ratings, in the same order; null for a user with none.
+     * @return The number of rows written.
+     * @throws IOException If the file cannot be written or a rating does not fit in 4 bits.
+     */
+    public static int write(Path file, List<String> usernames, List<MoodPoints> points) throws IOException {
+        long total = 0;
+        int firstDay = Integer.MAX_VALUE;
+        int lastDay = Integer.MIN_VALUE;
+        for (MoodPoints userPoints : points) {
+            if (userPoints != null && userPoints.size() > 0) {
+                total += userPoints.size();
+                firstDay = Math.min(firstDay, userPoints.day(0));
+                lastDay = Math.max(lastDay, userPoints.day(userPoints.size() - 1));
+            }
+        }
+        if (total > Integer.MAX_VALUE / 8) {
+            throw new IOException("Too many moods for one snapshot: " + total);
+        }
+        int rows = (int) total;
+        if (rows == 0) {
+            firstDay = 0;
+            lastDay = -1;
+        }
+
+        // Counting sort by day; users are visited in id order, so each day's rows stay sorted by user
+        int[] next = new int[lastDay - firstDay + 2];
+        for (MoodPoints userPoints : points) {
+            for (int i = 0; userPoints != null && i < userPoints.size(); i++) {
+                next[userPoints.day(i) - firstDay + 1]++;
+            }
+        }
+        int runs = 0;
+        ByteArrayOutputStream days = new ByteArrayOutputStream();
+        int previousDay = firstDay;
+        for (int day = 0; day + 1 < next.length; day++) {
+            if (next[day + 1] > 0) {
+                writeVarint(days, firstDay + day - previousDay);
+                writeVarint(days, next[day + 1]);
+                previousDay = firstDay + day;
+                runs++;
+            }
+            next[day + 1] += next[day];
+        }
+
+        int idBits = bitsFor(usernames.size() - 1);
+        long[] idWords = new long[(int) (((long) rows * idBits + 63) >>> 6)];
+        byte[] ratings = new byte[(rows + 1) / 2];
+        for (int id = 0; id < points.size(); id++) {
+            MoodPoints userPoints = points.get(id);
+            for (int i = 0; userPoints != null && i < userPoints.size(); i++) {
+                int rating = userPoints.rating(i);
+                if (rating < 0 || rating > MAX_RATING) {
+                    throw new IOException("Rating " + rating + " of " + usernames.get(id) + " does not fit in a snapshot");
+                }
+                int row = next[userPoints.day(i) - firstDay]++;
+                ratings[row >>> 1] |= (byte) (rating << ((row & 1) << 2));
+                long bit = (long) row * idBits;
+                int word = (int) (bit >>> 6);
+                int shift = (int) (bit & 63);
+                idWords[word] |= (long) id << shift;
+                if (shift + idBits > 64) {
+                    idWords[word + 1] |= (long) id >>> (64 - shift);
+                }
+            }
+        }
+
+        ByteArrayOutputStream names = new ByteArrayOutputStream();
+        for (String username : usernames) {
+            byte[] bytes = username.getBytes(StandardCharsets.UTF_8);
+            names.write(bytes.length >>> 8);
+            names.write(bytes.length);
+            names.write(bytes, 0, bytes.length);
+        }
+        ByteBuffer ids = ByteBuffer.allocate(idWords.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+        ids.asLongBuffer().put(idWords);
+
+        ByteBuffer[] columns = {
+            ByteBuffer.wrap(names.toByteArray()), ByteBuffer.wrap(days.toByteArray()), ids, ByteBuffer.wrap(ratings)
+        };
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putShort(VERSION).putShort((short) 0).putInt(usernames.size()).putInt(rows).putInt(runs)
+                .putInt(firstDay).putLong(System.currentTimeMillis());
+        long offset = HEADER_SIZE;
+        for (ByteBuffer column : columns) {
+            if (offset + column.remaining() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot too large");
+            }
+            header.putInt((int) offset).putInt(column.remaining());
+            offset = align(offset + column.remaining());
+        }
+        header.flip();
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = writeFully(out, header, 0);
+            for (ByteBuffer column : columns) {
+                position = align(position + writeFully(out, column, position));
+            }
+            out.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return rows;
+    }
+
+    /**
+     * @param highest The highest value to store; negative if there are none.
+     * @return The bits a bit-packed column needs per value, at least 1.
+     */
+    static int bitsFor(int highest) {
+        return Math.max(1, 32 - Integer.numberOfLeadingZeros(Math.max(0, highest)));
+    }
+
+    static long align(long offset) {
+        return (offset + 7) & ~7L;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int writeFully(FileChannel out, ByteBuffer buffer, long position) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += out.write(buffer, position + written);
+        }
+        return written;
+    }
+}
@@ -0,0 +1,114 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * OperationMetrics times one kind of operation, such as saving a mood: how
+ * often it ran, how often it failed, and a {@link LatencyHistogram} of how
+ * long it took. Created through {@link Metrics#operation(String)}.
+ *
+ * <pre>
+ * long start = SAVES.start();
+ * try {
+ *     ...
+ *     SAVES.succeeded(start);
+ * } catch (IOException e) {
+ *     SAVES.failed(start);
+ *     throw e;
+ * }
+ * </pre>
+ */
+public final class OperationMetrics implements OperationMetricsMXBean {
+    private static final double NANOS_PER_MILLI = 1_000_000.0;
+
+    private final String name;
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final LongAdder errors = new LongAdder();
+
+    OperationMetrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Marks the start of one run.
+     *
+     * @return The start time to hand to {@link #succeeded} or {@link #failed}; 0 if metrics are off.
+     */
+    public long start() {
+        return Metrics.ENABLED ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records a run that finished normally.
+     *
+     * @param start The value {@link #start()} returned.
+     */
+    public void succeeded(long start) {
+        if (Metrics.ENABLED) {
+            latencies.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Records a run that failed. Its time still counts towards the latencies.
+     *
+     * @param start The value {@link #start()} returned.
+     */
+    public void failed(long start) {
+        if (Metrics.ENABLED) {
+            latencies.record(System.nanoTime() - start);
+            errors.increment();
+        }
+    }
+
+    /**
+     * @return The latencies recorded so far.
+     */
+    public LatencyHistogram.Snapshot snapshot() {
+        return latencies.snapshot();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getCount() {
+        return latencies.snapshot().getCount();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public double getMeanMillis() {
+        return latencies.snapshot().mean() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getP50Millis() {
+        return latencies.snapshot().percentile(50) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getP90Millis() {
+        return latencies.snapshot().percentile(90) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getP99Millis() {
+        return latencies.snapshot().percentile(99) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return latencies.snapshot().max() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public void reset() {
+        latencies.reset();
+        errors.reset();
+    }
+}
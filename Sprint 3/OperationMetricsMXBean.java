@@ -0,0 +1,29 @@
+/**
+ * OperationMetricsMXBean is how one timed operation appears over JMX, for
+ * example in JConsole or VisualVM under {@code MentalHealthApp/Operation}.
+ * Latencies are in milliseconds and cover everything since start-up or the
+ * last reset.
+ */
+public interface OperationMetricsMXBean {
+
+    String getName();
+
+    long getCount();
+
+    long getErrors();
+
+    double getMeanMillis();
+
+    double getP50Millis();
+
+    double getP90Millis();
+
+    double getP99Millis();
+
+    double getMaxMillis();
+
+    /**
+     * Clears the counts and latencies, to measure from now on.
+     */
+    void reset();
+}
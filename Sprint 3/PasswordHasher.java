@@ -0,0 +1,211 @@
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Properties;
+
+/**
+ * PasswordHasher salts and hashes passwords with PBKDF2-HMAC-SHA256 from the
+ * JDK. Stored hashes look like {@code pbkdf2$iterations$salt$hash} and carry
+ * their own iteration count, so the cost can be raised per deployment without
+ * breaking existing accounts. Hashes are compared in constant time.
+ *
+ * The iteration count comes from {@code security.properties} in the data
+ * directory, written by {@code java PasswordHasher calibrate <millis>}, which
+ * measures this machine and picks the count that makes one check take about
+ * that long.
+ */
+public class PasswordHasher {
+    public static final int DEFAULT_ITERATIONS = 600_000;
+    private static final String PREFIX = "pbkdf2$";
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final String ITERATIONS_KEY = "password.iterations";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+
+    private final int iterations;
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * Creates a hasher with a fixed cost.
+     *
+     * @param iterations The PBKDF2 iteration count for new hashes.
+     */
+    public PasswordHasher(int iterations) {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("Iterations must be positive");
+        }
+        this.iterations = iterations;
+    }
+
+    /**
+     * Creates a hasher with the cost configured for a deployment.
+     *
+     * @param layout The data layout holding security.properties.
+     * @return The hasher, using {@link #DEFAULT_ITERATIONS} if nothing is configured.
+     */
+    public static PasswordHasher configured(DataLayout layout) {
+        Properties settings = layout.settings(DataLayout.SECURITY_SETTINGS); // Empty until calibrated
+        return new PasswordHasher(DataLayout.intSetting(settings, ITERATIONS_KEY, DEFAULT_ITERATIONS, 1));
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Hashes a password with a fresh random salt.
+     *
+     * @param password The password.
+     * @return The encoded hash.
+     */
+    public String hash(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        Base64.Encoder base64 = Base64.getEncoder().withoutPadding();
+        return PREFIX + iterations + "$" + base64.encodeToString(salt) + "$"
+                + base64.encodeToString(pbkdf2(password, salt, iterations));
+    }
+
+    /**
+     * Checks a password against a stored value. Values stored before hashing
+     * was added are plain passwords and are compared directly, still in
+     * constant time.
+     *
+     * @param password The password entered.
+     * @param stored The stored hash or old plain password.
+     * @return true if the password matches.
+     */
+    public boolean verify(String password, String stored) {
+        if (!isHash(stored)) {
+            return MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8), stored.getBytes(StandardCharsets.UTF_8));
+        }
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4) {
+            return false;
+        }
+        try {
+            Base64.Decoder base64 = Base64.getDecoder();
+            byte[] expected = base64.decode(parts[3]);
+            byte[] actual = pbkdf2(password, base64.decode(parts[2]), Integer.parseInt(parts[1]));
+            return MessageDigest.isEqual(expected, actual);
+        } catch (IllegalArgumentException e) {
+            return false; // Damaged hash
+        }
+    }
+
+    /**
+     * Checks whether a stored value should be replaced after a successful
+     * login: it is still a plain password, or was hashed at a lower cost.
+     *
+     * @param stored The stored hash or old plain password.
+     * @return true if the password should be hashed again.
+     */
+    public boolean needsRehash(String stored) {
+        if (!isHash(stored)) {
+            return true;
+        }
+        String[] parts = stored.split("\\$");
+        try {
+            return parts.length != 4 || Integer.parseInt(parts[1]) < iterations;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Finds the iteration count that makes one hash take about the target
+     * time on this machine.
+     *
+     * @param targetMillis The wanted time per login check.
+     * @return The iteration count, rounded to a thousand.
+     */
+    public static int calibrate(long targetMillis) {
+        byte[] salt = new byte[SALT_BYTES];
+        int probe = 10_000;
+        pbkdf2("warm-up", salt, probe); // Let the JIT compile the hash loop first
+        long elapsed;
+        do {
+            long start = System.nanoTime();
+            pbkdf2("calibration", salt, probe);
+            elapsed = System.nanoTime() - start;
+            if (elapsed < 50_000_000L) {
+                probe *= 2; // Measure for at least 50 ms so timer noise does not dominate
+            }
+        } while (elapsed < 50_000_000L);
+        for (int run = 0; run < 2; run++) {
+            long start = System.nanoTime();
+            pbkdf2("calibration", salt, probe);
+            elapsed = Math.min(elapsed, System.nanoTime() - start); // The fastest run has the least noise
+        }
+        long iterations = probe * (targetMillis * 1_000_000L) / elapsed;
+        return (int) Math.max(1_000, Math.min(Integer.MAX_VALUE, iterations / 1_000 * 1_000));
+    }
+
+    /**
+     * Saves an iteration count for a deployment.
+     *
+     * @param layout The data layout holding security.properties.
+     * @param iterations The iteration count.
+     * @throws IOException If the settings cannot be written.
+     */
+    public static void saveIterations(DataLayout layout, int iterations) throws IOException {
+        Path file = layout.getRoot().resolve(DataLayout.SECURITY_SETTINGS);
+        Files.createDirectories(file.getParent());
+        Properties settings = new Properties();
+        settings.setProperty(ITERATIONS_KEY, String.valueOf(iterations));
+        try (OutputStream out = Files.newOutputStream(file)) {
+            settings.store(out, "Password hashing cost");
+        }
+    }
+
+    /**
+     * @param stored A stored password.
+     * @return true if it is a hash written by this class rather than plain text.
+     */
+    static boolean isHash(String stored) {
+        return stored.startsWith(PREFIX);
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    /**
+     * Calibrates the hashing cost for this machine.
+     * Usage: {@code java PasswordHasher calibrate [targetMillis]}
+     *
+     * @param args Command line arguments.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0 || !args[0].equals("calibrate")) {
+            System.out.println("Usage: java PasswordHasher calibrate [targetMillis]");
+            return;
+        }
+        long target = args.length > 1 ? Long.parseLong(args[1]) : 250;
+        int iterations = calibrate(target);
+        DataLayout layout = DataLayout.standard();
+        saveIterations(layout, iterations);
+
+        PasswordHasher hasher = new PasswordHasher(iterations);
+        String hash = hasher.hash("calibration");
+        long start = System.nanoTime();
+        hasher.verify("calibration", hash);
+        System.out.println("Using " + iterations + " iterations; one login check takes "
+                + (System.nanoTime() - start) / 1_000_000 + " ms (target " + target + " ms).");
+    }
+}
@@ -0,0 +1,435 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+import java.util.stream.Stream;
+
+/**
+ * PersistenceBenchmark times the persistence hot paths without a display:
+ * saving a mood, loading mood history, looking up and saving users, and the
+ * line parsing behind them. Each path is timed for several history sizes and
+ * user counts, next to a copy of the original flat-file code so the numbers
+ * can be compared against the old behavior.
+ *
+ * Every measurement warms up first and then runs for a fixed time; the mean
+ * time per operation is printed as a table. A second table compares the
+ * {@link Durability} policies: submits per second and latency percentiles for
+ * a durable submit, with one or more threads submitting to the same log,
+ * and then with each thread submitting for its own user, with and without
+ * a {@link WriteAheadLog}.
+ *
+ * Usage: {@code java PersistenceBenchmark [--entries 10,1000,100000,1000000] [--users 10,1000,100000]
+ * [--threads 1,8] [--millis 1000]}
+ */
+public class PersistenceBenchmark {
+    private static final LocalDate FIRST_DAY = LocalDate.of(1000, 1, 1);
+
+    private final long measureNanos;
+    private final Path directory;
+
+    /**
+     * A timed operation.
+     */
+    interface Operation {
+        void run() throws IOException;
+    }
+
+    /**
+     * The latencies of operations run on several threads at once.
+     */
+    private static final class Latencies {
+        final long[] sorted; // Nanoseconds
+        final long elapsed;
+
+        Latencies(long[] sorted, long elapsed) {
+            this.sorted = sorted;
+            this.elapsed = elapsed;
+        }
+    }
+
+    PersistenceBenchmark(long measureMillis, Path directory) {
+        this.measureNanos = measureMillis * 1_000_000L;
+        this.directory = directory;
+    }
+
+    /**
+     * Main method to run the benchmarks.
+     *
+     * @param args Command line arguments.
+     */
+    public static void main(String[] args) throws IOException {
+        int[] entryCounts = {10, 1_000, 100_000, 1_000_000};
+        int[] userCounts = {10, 1_000, 100_000};
+        int[] threadCounts = {1, 8};
+        long millis = 1_000;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--entries":
+                    entryCounts = parseCounts(args[i + 1]);
+                    break;
+                case "--users":
+                    userCounts = parseCounts(args[i + 1]);
+                    break;
+                case "--threads":
+                    threadCounts = parseCounts(args[i + 1]);
+                    break;
+                case "--millis":
+                    millis = Long.parseLong(args[i + 1]);
+                    break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    return;
+            }
+        }
+
+        Path directory = Files.createTempDirectory("mood-benchmark");
+        try {
+            PersistenceBenchmark benchmark = new PersistenceBenchmark(millis, directory);
+            System.out.printf("%-28s %10s %14s %10s%n", "benchmark", "size", "us/op", "ops");
+            for (int entries : entryCounts) {
+                benchmark.moodBenchmarks(entries);
+            }
+            for (int users : userCounts) {
+                benchmark.userBenchmarks(users);
+            }
+            benchmark.parseBenchmarks();
+
+            System.out.println();
+            System.out.printf("%-28s %10s %14s %10s %10s %10s%n", "durability", "threads", "submits/s", "p50 us", "p99 us", "forces/op");
+            Durability[] policies = {Durability.OS, Durability.SYNC, Durability.group(2), Durability.group(10)};
+            for (Durability policy : policies) {
+                for (int threads : threadCounts) {
+                    benchmark.durabilityBenchmark(policy, threads);
+                }
+            }
+            for (Durability policy : new Durability[] {Durability.SYNC, Durability.group(2)}) {
+                for (boolean journaled : new boolean[] {false, true}) {
+                    for (int threads : threadCounts) {
+                        benchmark.journalBenchmark(policy, journaled, threads);
+                    }
+                }
+            }
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    /**
+     * Mood file benchmarks for one history size.
+     */
+    void moodBenchmarks(int entries) throws IOException {
+        Path file = directory.resolve("bench_mood.txt");
+        writeHistory(file, entries);
+
+        measure("loadMoodHistory.openIndex", entries, () -> MoodLog.open(file).close());
+        try (MoodLog log = MoodLog.open(file)) {
+            // Reads first, while the log still holds exactly the generated history
+            measure("loadMoodHistory.firstPage", entries, () -> log.page(0, 100));
+            measure("loadMoodHistory.all", entries, log::entries);
+            int[] nextDay = {entries};
+            measure("saveMoodData.append", entries, () ->
+                    log.put(new MoodEntry(FIRST_DAY.plusDays(nextDay[0]++), 5, "benchmark entry")));
+            LocalDate last = FIRST_DAY.plusDays(nextDay[0] - 1);
+            measure("saveMoodData.overwrite", entries, () -> log.put(new MoodEntry(last, 6, "overwritten")));
+        }
+
+        writeHistory(file, entries);
+        measure("legacy.saveMoodData", entries, () -> LegacyFlatFiles.saveMoodData(file.toString(), 7, "benchmark"));
+        measure("legacy.loadMoodHistory", entries, () -> LegacyFlatFiles.loadMoodHistory(file.toString()));
+        Files.delete(file);
+    }
+
+    /**
+     * User file benchmarks for one user count.
+     */
+    void userBenchmarks(int users) throws IOException {
+        DataLayout layout = new DataLayout(directory.resolve("bench_data_" + users));
+        AccountIndex seed = new AccountIndex(layout);
+        Map<String, String> flat = new HashMap<>();
+        for (int i = 0; i < users; i++) {
+            seed.register(username(i), "password" + i);
+            flat.put(username(i), "password" + i);
+        }
+        String legacyFile = directory.resolve("bench_users.txt").toString();
+        LegacyFlatFiles.saveUserData(legacyFile, flat);
+
+        int[] probe = {0};
+        measure("loadUserData.coldLookup", users, () ->
+                new AccountIndex(layout).lookup(username(probe[0]++ % users)));
+        AccountIndex warm = new AccountIndex(layout);
+        measure("loadUserData.warmLookup", users, () -> warm.lookup(username(probe[0]++ % users)));
+        int[] next = {users};
+        measure("saveUserData.register", users, () -> warm.register(username(next[0]++), "password"));
+
+        measure("legacy.loadUserData", users, () -> LegacyFlatFiles.loadUserData(legacyFile));
+        measure("legacy.saveUserData", users, () -> LegacyFlatFiles.saveUserData(legacyFile, flat));
+        deleteRecursively(layout.getRoot());
+    }
+
+    /**
+     * Line parsing benchmarks.
+     */
+    void parseBenchmarks() throws IOException {
+        String moodLine = new MoodEntry(LocalDate.of(2024, 3, 14), 7, "Slept well, went for a run").toLine();
+        String userLine = UserStore.format("someuser", "pbkdf2$600000$c2FsdA$aGFzaA");
+        Object[] sink = new Object[1]; // Keeps results alive so the JIT cannot drop the work
+        measure("parse.moodLine", 1, () -> sink[0] = MoodEntry.parse(moodLine));
+        measure("parse.userLine", 1, () -> sink[0] = UserStore.parse(userLine));
+        measure("legacy.parse.userLine", 1, () -> sink[0] = userLine.split(":"));
+    }
+
+    /**
+     * Durable submits under one policy: each thread appends a new day and
+     * waits for {@link MoodLog#sync()}, as a submission does.
+     */
+    void durabilityBenchmark(Durability policy, int threads) throws IOException {
+        Path file = directory.resolve("bench_durable_mood.txt");
+        Files.deleteIfExists(file);
+        AtomicInteger nextDay = new AtomicInteger();
+        try (MoodLog log = MoodLog.open(file, policy)) {
+            Operation submit = () -> {
+                log.put(new MoodEntry(FIRST_DAY.plusDays(nextDay.getAndIncrement()), 5, "benchmark entry"));
+                log.sync();
+            };
+            runFor(measureNanos / 4, submit); // Warm up on one thread
+            long forcesBefore = log.getForceCount();
+            Latencies latencies = runThreads(threads, thread -> submit);
+            printLatencies(policy.toString(), threads, latencies, log.getForceCount() - forcesBefore);
+        }
+        Files.delete(file);
+    }
+
+    /**
+     * Durable submits with every thread on its own user, as a server sees
+     * them: each user's log forcing itself under a policy, against the same
+     * policy applied to one {@link WriteAheadLog} shared by all the logs.
+     */
+    void journalBenchmark(Durability policy, boolean journaled, int threads) throws IOException {
+        DataLayout layout = new DataLayout(directory.resolve("bench_journal"));
+        WriteAheadLog journal = new WriteAheadLog(layout, policy);
+        if (journaled && !journal.open()) {
+            return; // Turned off in the storage settings
+        }
+        AtomicInteger[] nextDays = new AtomicInteger[threads];
+        try (FileMoodRepository moods = new FileMoodRepository(layout, policy, journal)) {
+            for (int t = 0; t < threads; t++) {
+                nextDays[t] = new AtomicInteger();
+                runFor(measureNanos / (4 * threads), submitter(moods, t, nextDays[t])); // Warm up each user
+            }
+            long forcesBefore = forces(moods, journal, threads);
+            Latencies latencies = runThreads(threads, thread -> submitter(moods, thread, nextDays[thread]));
+            String label = (journaled ? "journal " : "per-log ") + policy;
+            printLatencies(label, threads, latencies, forces(moods, journal, threads) - forcesBefore);
+        } finally {
+            journal.close();
+            deleteRecursively(layout.getRoot());
+        }
+    }
+
+    private static Operation submitter(FileMoodRepository moods, int thread, AtomicInteger nextDay) {
+        String username = username(thread);
+        return () -> moods.save(username, new MoodEntry(FIRST_DAY.plusDays(nextDay.getAndIncrement()), 5,
+                "benchmark entry"));
+    }
+
+    private static long forces(FileMoodRepository moods, WriteAheadLog journal, int threads) throws IOException {
+        if (journal.isOpen()) {
+            return journal.getForceCount();
+        }
+        long forces = 0;
+        for (int t = 0; t < threads; t++) {
+            forces += moods.session(username(t)).getLog().getForceCount();
+        }
+        return forces;
+    }
+
+    /**
+     * Runs an operation on several threads at once for the measurement time.
+     *
+     * @return Every operation's latency.
+     */
+    private Latencies runThreads(int threads, IntFunction<Operation> operations) throws IOException {
+        long[][] latencies = new long[threads][];
+        int[] counts = new int[threads];
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> done = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            Operation operation = operations.apply(t);
+            done.add(pool.submit(() -> {
+                long[] samples = new long[1 << 16];
+                int count = 0;
+                while (System.nanoTime() - start < measureNanos) {
+                    long before = System.nanoTime();
+                    operation.run();
+                    if (count == samples.length) {
+                        samples = Arrays.copyOf(samples, count * 2);
+                    }
+                    samples[count++] = System.nanoTime() - before;
+                }
+                latencies[thread] = samples;
+                counts[thread] = count;
+                return null;
+            }));
+        }
+        try {
+            for (Future<?> future : done) {
+                future.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Durability benchmark failed", e);
+        } finally {
+            pool.shutdown();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        int total = 0;
+        for (int count : counts) {
+            total += count;
+        }
+        long[] all = new long[total];
+        int filled = 0;
+        for (int t = 0; t < threads; t++) {
+            System.arraycopy(latencies[t], 0, all, filled, counts[t]);
+            filled += counts[t];
+        }
+        Arrays.sort(all);
+        return new Latencies(all, elapsed);
+    }
+
+    private static void printLatencies(String label, int threads, Latencies latencies, long forces) {
+        long[] sorted = latencies.sorted;
+        int total = sorted.length;
+        System.out.printf("%-28s %10d %14.0f %10.1f %10.1f %10.3f%n", label, threads, total * 1e9 / latencies.elapsed,
+                sorted[total / 2] / 1_000.0, sorted[Math.min(total - 1, (int) (total * 0.99))] / 1_000.0,
+                (double) forces / total);
+    }
+
+    /**
+     * Warms up, then runs an operation repeatedly for the measurement time.
+     */
+    void measure(String name, int size, Operation operation) throws IOException {
+        runFor(measureNanos / 4, operation);
+        long[] result = runFor(measureNanos, operation);
+        System.out.printf("%-28s %10d %14.3f %10d%n", name, size, result[1] / 1_000.0 / result[0], result[0]);
+    }
+
+    private static long[] runFor(long nanos, Operation operation) throws IOException {
+        long start = System.nanoTime();
+        long elapsed;
+        long count = 0;
+        do {
+            operation.run();
+            count++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < nanos);
+        return new long[] {count, elapsed};
+    }
+
+    private static void writeHistory(Path file, int entries) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < entries; i++) {
+                writer.write(new MoodEntry(FIRST_DAY.plusDays(i), 1 + i % 10, "Reason number " + i).toLine());
+                writer.newLine();
+            }
+        }
+    }
+
+    private static String username(int i) {
+        return "user" + i;
+    }
+
+    private static int[] parseCounts(String list) {
+        return Stream.of(list.split(",")).mapToInt(Integer::parseInt).toArray();
+    }
+
+    private static void deleteRecursively(Path root) throws IOException {
+        if (!Files.exists(root)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(root)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * The persistence code as it was before the storage rewrite, kept only as
+     * a baseline for the benchmark.
+     */
+    static final class LegacyFlatFiles {
+
+        private LegacyFlatFiles() {
+        }
+
+        static Map<String, String> loadUserData(String file) throws IOException {
+            Map<String, String> users = new HashMap<>();
+            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split(":");
+                    if (parts.length == 2) {
+                        users.put(parts[0], parts[1]);
+                    }
+                }
+            }
+            return users;
+        }
+
+        static void saveUserData(String file, Map<String, String> users) throws IOException {
+            try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+                for (Map.Entry<String, String> entry : users.entrySet()) {
+                    writer.write(entry.getKey() + ":" + entry.getValue());
+                    writer.newLine();
+                }
+            }
+        }
+
+        static String loadMoodHistory(String file) throws IOException {
+            StringBuilder history = new StringBuilder();
+            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    history.append(line).append("\n");
+                }
+            }
+            return history.toString();
+        }
+
+        static void saveMoodData(String file, int moodRating, String description) throws IOException {
+            String today = LocalDate.now().toString();
+            StringBuilder history = new StringBuilder();
+            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.startsWith("Date: " + today)) {
+                        history.append(line).append("\n");
+                    }
+                }
+            }
+            try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+                writer.write(history.toString());
+                writer.write("Date: " + today + ", Mood: " + moodRating + ", Reason: " + description + "\n");
+            }
+        }
+    }
+}
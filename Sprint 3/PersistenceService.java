@@ -0,0 +1,140 @@
+import javax.swing.*;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * PersistenceService runs file I/O away from the Swing event dispatch thread.
+ * Reads go to a pool (virtual threads when the JDK has them); writes go to a
+ * single thread so they reach the disk in the order they were submitted.
+ * Results come back as CompletableFutures, and {@link #onEdt} hands them back
+ * to Swing.
+ */
+public class PersistenceService {
+    private final ExecutorService readExecutor;
+    private final ExecutorService writeExecutor;
+
+    /**
+     * A piece of file work that may fail with an IOException.
+     *
+     * @param <T> The result type.
+     */
+    public interface IOTask<T> {
+        T call() throws IOException;
+    }
+
+    /**
+     * A piece of file work with no result.
+     */
+    public interface IOAction {
+        void run() throws IOException;
+    }
+
+    /**
+     * Creates the service and its executors.
+     */
+    public PersistenceService() {
+        readExecutor = newReadExecutor();
+        writeExecutor = Executors.newSingleThreadExecutor(daemonThreads("persistence-writer"));
+    }
+
+    /**
+     * Runs a read in the background.
+     *
+     * @param task The read to run.
+     * @return A future holding the result, or failing with the IOException.
+     */
+    public <T> CompletableFuture<T> read(IOTask<T> task) {
+        return CompletableFuture.supplyAsync(() -> call(task), readExecutor);
+    }
+
+    /**
+     * Queues a write behind every write submitted before it.
+     *
+     * @param task The write to run.
+     * @return A future holding the result, or failing with the IOException.
+     */
+    public <T> CompletableFuture<T> write(IOTask<T> task) {
+        return CompletableFuture.supplyAsync(() -> call(task), writeExecutor);
+    }
+
+    /**
+     * Queues a write with no result behind every write submitted before it.
+     *
+     * @param action The write to run.
+     * @return A future that completes once the write is done.
+     */
+    public CompletableFuture<Void> write(IOAction action) {
+        return write(() -> {
+            action.run();
+            return null;
+        });
+    }
+
+    /**
+     * Stops accepting work and waits briefly for queued writes to finish.
+     */
+    public void shutdown() {
+        readExecutor.shutdown();
+        writeExecutor.shutdown();
+        try {
+            writeExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Delivers the outcome of a future on the event dispatch thread.
+     *
+     * @param future The background work.
+     * @param onSuccess Called with the result.
+     * @param onFailure Called with the underlying error.
+     */
+    public static <T> void onEdt(CompletableFuture<T> future, Consumer<T> onSuccess, Consumer<Throwable> onFailure) {
+        future.whenComplete((result, error) -> SwingUtilities.invokeLater(() -> {
+            if (error == null) {
+                onSuccess.accept(result);
+            } else {
+                onFailure.accept(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+            }
+        }));
+    }
+
+    private static <T> T call(IOTask<T> task) {
+        try {
+            return task.call();
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Uses a virtual thread per task when running on a JDK that supports it,
+     * otherwise a small pool of daemon threads.
+     */
+    private static ExecutorService newReadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(2, daemonThreads("persistence-reader"));
+        }
+    }
+
+    static ThreadFactory daemonThreads(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,313 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * ReasonIndex is an inverted index of the words in a user's mood reasons:
+ * for each word, the sorted list of days whose reason contains it. Searches
+ * intersect those lists and never touch the mood log. Submissions update the
+ * index in place; it is saved to {@code <user>_mood.idx} with the
+ * {@link MoodLog#stamp()} of the log it matches, and rebuilt from the log only
+ * when that stamp is out of date.
+ */
+public class ReasonIndex {
+    private static final int FORMAT_VERSION = 2; // 1 stamped files with the log length alone
+
+    private final TreeMap<String, Postings> terms = new TreeMap<>();
+    private boolean dirty;
+
+    /**
+     * The days one word appears on, kept sorted. Days are nearly always added
+     * in order, so adding is usually a plain append.
+     */
+    private static final class Postings {
+        int[] days = new int[4];
+        int size;
+
+        void add(int day) {
+            if (size > 0 && day <= days[size - 1]) {
+                int at = Arrays.binarySearch(days, 0, size, day);
+                if (at >= 0) {
+                    return;
+                }
+                insertAt(-at - 1, day);
+                return;
+            }
+            insertAt(size, day);
+        }
+
+        boolean remove(int day) {
+            int at = Arrays.binarySearch(days, 0, size, day);
+            if (at < 0) {
+                return false;
+            }
+            System.arraycopy(days, at + 1, days, at, size - at - 1);
+            size--;
+            return true;
+        }
+
+        boolean contains(int day) {
+            return Arrays.binarySearch(days, 0, size, day) >= 0;
+        }
+
+        private void insertAt(int at, int day) {
+            if (size == days.length) {
+                days = Arrays.copyOf(days, size * 2);
+            }
+            System.arraycopy(days, at, days, at + 1, size - at);
+            days[at] = day;
+            size++;
+        }
+    }
+
+    /**
+     * Splits text into the lower-case words the index stores. Anything that is
+     * not a letter or digit separates words.
+     *
+     * @param text The text to split.
+     * @return The distinct words, in the order they first appear.
+     */
+    public static Set<String> terms(String text) {
+        Set<String> words = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Indexes a day's reason.
+     *
+     * @param epochDay The day.
+     * @param reason The reason submitted for it.
+     */
+    public synchronized void add(int epochDay, String reason) {
+        for (String term : terms(reason)) {
+            terms.computeIfAbsent(term, t -> new Postings()).add(epochDay);
+        }
+        dirty = true;
+    }
+
+    /**
+     * Removes a day's reason from the index.
+     *
+     * @param epochDay The day.
+     * @param reason The reason that was indexed for it.
+     */
+    public synchronized void remove(int epochDay, String reason) {
+        for (String term : terms(reason)) {
+            Postings postings = terms.get(term);
+            if (postings != null && postings.remove(epochDay) && postings.size == 0) {
+                terms.remove(term);
+            }
+        }
+        dirty = true;
+    }
+
+    /**
+     * Finds the days whose reason contains every word of a query. The last
+     * word also matches longer words it begins, so results can follow typing.
+     *
+     * @param query The words to look for.
+     * @return The matching days, oldest first. Empty if the query has no words.
+     */
+    public synchronized int[] search(String query) {
+        List<String> words = new ArrayList<>(terms(query));
+        if (words.isEmpty()) {
+            return new int[0];
+        }
+        String prefix = words.remove(words.size() - 1);
+
+        // Walk the shortest list and check each day against the others
+        List<Postings> exact = new ArrayList<>(words.size());
+        for (String word : words) {
+            Postings postings = terms.get(word);
+            if (postings == null) {
+                return new int[0];
+            }
+            exact.add(postings);
+        }
+        exact.sort((a, b) -> Integer.compare(a.size, b.size));
+        int[] candidates = exact.isEmpty() ? prefixDays(prefix) : Arrays.copyOf(exact.get(0).days, exact.get(0).size);
+        SortedMap<String, Postings> prefixed = exact.isEmpty() ? null : terms.subMap(prefix, prefix + Character.MAX_VALUE);
+
+        int matches = 0;
+        for (int day : candidates) {
+            if (matchesAll(day, exact, prefixed)) {
+                candidates[matches++] = day;
+            }
+        }
+        return Arrays.copyOf(candidates, matches);
+    }
+
+    /**
+     * @return The number of distinct words indexed.
+     */
+    public synchronized int termCount() {
+        return terms.size();
+    }
+
+    /**
+     * @return true if the index changed since it was loaded or saved.
+     */
+    public synchronized boolean isDirty() {
+        return dirty;
+    }
+
+    private int[] prefixDays(String prefix) {
+        SortedMap<String, Postings> prefixed = terms.subMap(prefix, prefix + Character.MAX_VALUE);
+        if (prefixed.size() == 1) {
+            Postings only = prefixed.values().iterator().next();
+            return Arrays.copyOf(only.days, only.size);
+        }
+        int total = 0;
+        for (Postings postings : prefixed.values()) {
+            total += postings.size;
+        }
+        int[] days = new int[total];
+        int filled = 0;
+        for (Postings postings : prefixed.values()) {
+            System.arraycopy(postings.days, 0, days, filled, postings.size);
+            filled += postings.size;
+        }
+        Arrays.sort(days);
+        int distinct = 0;
+        for (int i = 0; i < days.length; i++) {
+            if (i == 0 || days[i] != days[i - 1]) {
+                days[distinct++] = days[i];
+            }
+        }
+        return Arrays.copyOf(days, distinct);
+    }
+
+    private static boolean matchesAll(int day, List<Postings> exact, SortedMap<String, Postings> prefixed) {
+        for (int i = 1; i < exact.size(); i++) {
+            if (!exact.get(i).contains(day)) {
+                return false;
+            }
+        }
+        if (prefixed == null) {
+            return true;
+        }
+        for (Postings postings : prefixed.values()) {
+            if (postings.contains(day)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Loads a saved index, rebuilding it from the log if the saved copy is
+     * missing, damaged or does not match the log.
+     *
+     * @param file The {@code <user>_mood.idx} file.
+     * @param log The user's mood log.
+     * @return The index.
+     * @throws IOException If the log cannot be read for a rebuild.
+     */
+    public static ReasonIndex load(Path file, MoodLog log) throws IOException {
+        ReasonIndex index = new ReasonIndex();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            if (index.read(reader, log.stamp())) {
+                return index;
+            }
+        } catch (NoSuchFileException e) {
+            // First search since the index was added
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Reason index is damaged, rebuilding: " + e.getMessage());
+        }
+        return rebuild(log);
+    }
+
+    /**
+     * Builds an index from scratch by streaming the log once.
+     *
+     * @param log The user's mood log.
+     * @return The index, marked as changed so it is saved.
+     * @throws IOException If the log cannot be read.
+     */
+    public static ReasonIndex rebuild(MoodLog log) throws IOException {
+        ReasonIndex index = new ReasonIndex();
+        log.forEach(null, null, entry -> index.add((int) entry.getDate().toEpochDay(), entry.getReason()));
+        return index;
+    }
+
+    /**
+     * Saves the index through a temp file so a crash leaves the old copy intact.
+     * Each word's days are written as gaps from the previous day.
+     *
+     * @param file The {@code <user>_mood.idx} file.
+     * @param logStamp The {@link MoodLog#stamp()} of the log this index matches.
+     * @throws IOException If the file cannot be written.
+     */
+    public synchronized void save(Path file, String logStamp) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            writer.write("version " + FORMAT_VERSION + " " + logStamp);
+            writer.newLine();
+            StringBuilder line = new StringBuilder();
+            for (Map.Entry<String, Postings> term : terms.entrySet()) {
+                Postings postings = term.getValue();
+                line.setLength(0);
+                line.append(term.getKey());
+                int previous = 0;
+                for (int i = 0; i < postings.size; i++) {
+                    line.append(' ').append(postings.days[i] - previous);
+                    previous = postings.days[i];
+                }
+                writer.write(line.toString());
+                writer.newLine();
+            }
+            writer.write("end");
+            writer.newLine();
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        dirty = false;
+    }
+
+    private boolean read(BufferedReader reader, String logStamp) throws IOException {
+        String[] header = reader.readLine().split(" ");
+        if (!header[0].equals("version") || Integer.parseInt(header[1]) != FORMAT_VERSION
+                || !header[2].equals(logStamp)) {
+            return false;
+        }
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.equals("end")) {
+                return true;
+            }
+            String[] parts = line.split(" ");
+            Postings postings = new Postings();
+            postings.days = new int[Math.max(1, parts.length - 1)];
+            int day = 0;
+            for (int i = 1; i < parts.length; i++) {
+                day += Integer.parseInt(parts[i]);
+                postings.days[postings.size++] = day;
+            }
+            terms.put(parts[0], postings);
+        }
+        return false; // A file without its end marker was cut short
+    }
+}
@@ -0,0 +1,107 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SnapshotCompactor rewrites the columnar snapshot ({@link MoodSnapshotFormat})
+ * from every user's mood file, so cross-user queries never scan the
+ * row-oriented logs. Like {@link MoodAnalytics} it reads the files without
+ * opening the logs, so it runs next to logged-in users.
+ *
+ * The server compacts every {@code snapshot.minutes} from
+ * {@code storage.properties} (or the {@code mha.snapshot.minutes} system
+ * property); it is off unless set. {@code java MentalHealthApp snapshot}
+ * compacts once by hand. Queries see the moods as of the last compaction.
+ */
+public class SnapshotCompactor implements Closeable {
+    private static final String PERIOD_KEY = "snapshot.minutes";
+
+    private final DataLayout layout;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Creates a compactor for a data directory.
+     *
+     * @param layout The data layout.
+     */
+    public SnapshotCompactor(DataLayout layout) {
+        this.layout = layout;
+    }
+
+    /**
+     * Reads the compaction period configured for a deployment.
+     *
+     * @param layout The data layout holding storage.properties.
+     * @return The minutes between compactions; 0 if compaction is off.
+     */
+    public static int configuredMinutes(DataLayout layout) {
+        return DataLayout.intSetting(layout.settings(DataLayout.STORAGE_SETTINGS), PERIOD_KEY, 0, 0);
+    }
+
+    /**
+     * Writes a new snapshot of every user's moods, replacing the old one.
+     *
+     * @return The number of moods written.
+     * @throws IOException If an account or mood file cannot be read or the snapshot cannot be written.
+     */
+    public int compact() throws IOException {
+        List<String> usernames = new ArrayList<>();
+        for (int shard = 0; shard < DataLayout.SHARDS; shard++) {
+            usernames.addAll(new UserStore(layout.accountFile(shard)).usernames());
+        }
+        Collections.sort(usernames);
+        List<MoodPoints> points = new ArrayList<>(usernames.size());
+        for (String username : usernames) {
+            try {
+                points.add(MoodLog.readPoints(layout.moodFile(username)));
+            } catch (NoSuchFileException e) {
+                points.add(null); // Registered, but never opened their mood log
+            }
+        }
+        Files.createDirectories(layout.getRoot());
+        return MoodSnapshotFormat.write(layout.snapshotFile(), usernames, points);
+    }
+
+    /**
+     * Compacts now and then at a fixed delay on a background thread. Replaces
+     * any earlier schedule.
+     *
+     * @param periodMinutes The minutes between the end of one compaction and the start of the next.
+     */
+    public synchronized void start(long periodMinutes) {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "snapshot-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                compact();
+            } catch (IOException | RuntimeException e) { // An escaped exception would cancel the schedule
+                System.out.println("Failed to write mood snapshot: " + e);
+            }
+        }, 0, periodMinutes, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Stops the schedule. A compaction already running is interrupted; the
+     * old snapshot stays in place.
+     */
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * StartupTimer reports how long the GUI takes to start, measured from the
+ * moment the JVM started, so class loading is included. It is off unless
+ * {@code mha.startup.timing} is set, since reading the JVM start time loads
+ * the management classes, which itself costs a few milliseconds:
+ *
+ * <ul>
+ * <li>{@code -Dmha.startup.timing=print} prints each start-up step to stderr.</li>
+ * <li>{@code -Dmha.startup.timing=exit} also exits once the first frame is up
+ *     and the background loading is done, so start-up can be timed in a loop
+ *     or recorded into a class-data sharing archive (see {@link MentalHealthApp}).</li>
+ * </ul>
+ */
+final class StartupTimer {
+    private static final String MODE = System.getProperty("mha.startup.timing");
+    static final boolean ENABLED = MODE != null;
+    private static final boolean EXIT = "exit".equals(MODE);
+    private static final long LAUNCHED_MILLIS = ENABLED ? ManagementFactory.getRuntimeMXBean().getStartTime() : 0;
+    private static final AtomicInteger WAITING = new AtomicInteger(2); // The first frame and the user data
+
+    private StartupTimer() {
+    }
+
+    /**
+     * Prints how long after launch a step was reached.
+     *
+     * @param step What just happened.
+     */
+    static void mark(String step) {
+        if (ENABLED) {
+            System.err.printf("startup: %-22s %5d ms%n", step, System.currentTimeMillis() - LAUNCHED_MILLIS);
+        }
+    }
+
+    /**
+     * Marks one of the steps start-up waits for. After the last one, the
+     * exit mode ends the process.
+     *
+     * @param step What just finished.
+     */
+    static void ready(String step) {
+        if (!ENABLED) {
+            return;
+        }
+        mark(step);
+        if (WAITING.decrementAndGet() == 0) {
+            mark("started");
+            if (EXIT) {
+                System.exit(0);
+            }
+        }
+    }
+}
@@ -0,0 +1,234 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+/**
+ * StorageBenchmark runs the same workloads against each
+ * {@link StorageProvider} backend and prints the mean time per operation
+ * side by side: a bulk import, logging in, full and ranged history reads,
+ * day lookups, reason searches, single submits and registering. Passwords
+ * are hashed with a single iteration so the hashing does not hide the
+ * storage.
+ *
+ * Both backends start empty in a temp directory and are seeded the same way.
+ * The JDBC backend needs its driver on the class path and is skipped without
+ * one. Files use the {@code os} durability policy by default, since embedded
+ * databases usually do not force every commit either; pass
+ * {@code --durability sync} to compare against forced submits.
+ *
+ * Usage: {@code java -cp .:h2.jar StorageBenchmark [--users 100] [--days 365] [--millis 1000]
+ * [--durability os] [--jdbc jdbc:h2:file:/tmp/bench]}
+ */
+public class StorageBenchmark {
+    private static final LocalDate FIRST_DAY = LocalDate.of(2000, 1, 1);
+    private static final String[] REASONS = {
+        "Slept well", "Long walk in the park", "Work deadline", "Dinner with friends", "Rainy day inside",
+        "Argument at home", "Went for a run", "Too much coffee"
+    };
+    private static final String[] BACKENDS = {FileStorageProvider.NAME, JdbcStorageProvider.NAME};
+
+    private final int users;
+    private final int days;
+    private final long measureNanos;
+    private final Map<String, double[]> results = new LinkedHashMap<>(); // Microseconds per op, one per backend
+
+    StorageBenchmark(int users, int days, long measureMillis) {
+        this.users = users;
+        this.days = days;
+        this.measureNanos = measureMillis * 1_000_000L;
+    }
+
+    /**
+     * Main method to run the benchmark.
+     *
+     * @param args Command line arguments.
+     */
+    public static void main(String[] args) throws IOException {
+        int users = 100;
+        int days = 365;
+        long millis = 1_000;
+        Durability durability = Durability.OS;
+        String url = null;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--users":
+                    users = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--days":
+                    days = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--millis":
+                    millis = Long.parseLong(args[i + 1]);
+                    break;
+                case "--durability":
+                    durability = Durability.parse(args[i + 1], null);
+                    break;
+                case "--jdbc":
+                    url = args[i + 1];
+                    break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    return;
+            }
+        }
+
+        Path directory = Files.createTempDirectory("storage-benchmark");
+        if (url == null) {
+            url = "jdbc:h2:file:" + directory.resolve("db").resolve("moodtracker").toAbsolutePath();
+        }
+        PasswordHasher hasher = new PasswordHasher(1); // So logins and registrations time the storage, not the hash
+        StorageBenchmark benchmark = new StorageBenchmark(users, days, millis);
+        try {
+            try (StorageProvider files = FileStorageProvider.open(new DataLayout(directory.resolve("data")), durability,
+                    hasher)) {
+                benchmark.run(0, files);
+            }
+            try (StorageProvider database = JdbcStorageProvider.open(url, new Properties(), 4, hasher)) {
+                benchmark.run(1, database);
+            } catch (IOException e) {
+                System.out.println("Skipping " + JdbcStorageProvider.NAME + ": " + e.getMessage());
+            }
+            System.out.println(users + " users, " + days + " days each; files with durability " + durability + ", "
+                    + JdbcStorageProvider.NAME + " on " + url);
+            benchmark.print();
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    /**
+     * Seeds one backend, then times every workload on it.
+     */
+    void run(int backend, StorageProvider storage) throws IOException {
+        UserRepository accounts = storage.getUserRepository();
+        MoodRepository moods = storage.getMoodRepository();
+
+        for (int u = 0; u < users; u++) {
+            accounts.register(username(u), "password" + u);
+            moods.createUser(username(u));
+        }
+        moods.saveAll("warmup", history(0)); // So whichever backend runs first is not timed cold
+        long start = System.nanoTime();
+        for (int u = 0; u < users; u++) {
+            moods.saveAll(username(u), history(u));
+        }
+        record("saveMoodData.import", backend, (System.nanoTime() - start) / 1_000.0 / ((long) users * days));
+
+        int[] probe = {0};
+        Object[] sink = new Object[1]; // Keeps results alive so the JIT cannot drop the work
+        measure("loadUserData.login", backend, () -> {
+            int u = probe[0]++ % users;
+            sink[0] = accounts.authenticate(username(u), "password" + u);
+        });
+        measure("loadMoodHistory.all", backend, () ->
+                moods.forEach(username(probe[0]++ % users), null, null, entry -> sink[0] = entry));
+        measure("loadMoodHistory.firstPage", backend, () ->
+                moods.forEach(username(probe[0]++ % users), null, null, 100, entry -> sink[0] = entry));
+        LocalDate monthStart = FIRST_DAY.plusDays(days / 2);
+        measure("loadMoodHistory.month", backend, () -> moods.forEach(username(probe[0]++ % users), monthStart,
+                monthStart.plusDays(29), entry -> sink[0] = entry));
+        measure("hasEntry", backend, () ->
+                sink[0] = moods.hasEntry(username(probe[0]++ % users), FIRST_DAY.plusDays(probe[0] % days)));
+        measure("count", backend, () -> sink[0] = moods.count(username(probe[0]++ % users)));
+        measure("searchReasons", backend, () -> sink[0] = moods.searchReasons(username(probe[0]++ % users), "walk pa"));
+
+        // Writes last, so the reads above all see the seeded histories
+        int[] nextDay = new int[users];
+        Arrays.fill(nextDay, days);
+        measure("saveMoodData.submit", backend, () -> {
+            int u = probe[0]++ % users;
+            moods.save(username(u), new MoodEntry(FIRST_DAY.plusDays(nextDay[u]++), 5, "benchmark entry"));
+        });
+        int[] nextUser = {users};
+        measure("saveUserData.register", backend, () -> {
+            String username = username(nextUser[0]++);
+            accounts.register(username, "password");
+            moods.createUser(username);
+        });
+        measure("saveMoodData.overwrite", backend, () ->
+                moods.save(username(probe[0]++ % users), new MoodEntry(FIRST_DAY, 6, "overwritten")));
+    }
+
+    /**
+     * Warms up, then runs an operation repeatedly for the measurement time.
+     */
+    private void measure(String name, int backend, PersistenceBenchmark.Operation operation) throws IOException {
+        runFor(measureNanos / 4, operation);
+        long[] result = runFor(measureNanos, operation);
+        record(name, backend, result[1] / 1_000.0 / result[0]);
+    }
+
+    private void record(String name, int backend, double micros) {
+        double[] row = results.computeIfAbsent(name, n -> {
+            double[] empty = new double[BACKENDS.length];
+            Arrays.fill(empty, Double.NaN);
+            return empty;
+        });
+        row[backend] = micros;
+    }
+
+    private void print() {
+        System.out.printf("%-28s %14s %14s%n", "workload (us/op)", BACKENDS[0], BACKENDS[1]);
+        for (Map.Entry<String, double[]> row : results.entrySet()) {
+            System.out.printf("%-28s %14.3f %14.3f%n", row.getKey(), row.getValue()[0], row.getValue()[1]);
+        }
+    }
+
+    private static long[] runFor(long nanos, PersistenceBenchmark.Operation operation) throws IOException {
+        long start = System.nanoTime();
+        long elapsed;
+        long count = 0;
+        do {
+            operation.run();
+            count++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < nanos);
+        return new long[] {count, elapsed};
+    }
+
+    /**
+     * A user's seeded history: one mood a day, with reasons varying by user
+     * so searches match some days and not others.
+     */
+    private Iterator<MoodEntry> history(int user) {
+        return new Iterator<MoodEntry>() {
+            private int day;
+
+            @Override
+            public boolean hasNext() {
+                return day < days;
+            }
+
+            @Override
+            public MoodEntry next() {
+                MoodEntry entry = new MoodEntry(FIRST_DAY.plusDays(day), 1 + (day + user) % 10,
+                        REASONS[(day * 7 + user) % REASONS.length] + " on day " + day);
+                day++;
+                return entry;
+            }
+        };
+    }
+
+    private static String username(int i) {
+        return "user" + i;
+    }
+
+    private static void deleteRecursively(Path root) throws IOException {
+        if (!Files.exists(root)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(root)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+}
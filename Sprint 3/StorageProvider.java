@@ -0,0 +1,62 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * StorageProvider is the storage service-provider interface: a backend opens
+ * the account and mood repositories that every front end works through, so
+ * the GUI, the server and the command line do not care where the data lives.
+ * The operations the app has always had map onto the repositories like this:
+ *
+ * <pre>
+ * loadUserData       {@link UserRepository#authenticate}, {@link UserRepository#exists}
+ * saveUserData       {@link UserRepository#register}
+ * createUserMoodFile {@link MoodRepository#createUser}
+ * saveMoodData       {@link MoodRepository#save}, {@link MoodRepository#saveAll}
+ * loadMoodHistory    {@link MoodRepository#forEach}
+ * </pre>
+ *
+ * The backend comes from {@code storage.properties} in the data directory
+ * ({@code storage=file} or {@code storage=jdbc}), and can be overridden with the
+ * {@code mha.storage} system property. Files are the default; see
+ * {@link FileStorageProvider} and {@link JdbcStorageProvider}.
+ */
+public interface StorageProvider extends Closeable {
+    String BACKEND_KEY = "storage";
+
+    /**
+     * @return The backend's name, as written in storage.properties.
+     */
+    String name();
+
+    /**
+     * @return The accounts; owned by the provider.
+     */
+    UserRepository getUserRepository();
+
+    /**
+     * @return The moods; owned by the provider, and closed with it.
+     */
+    MoodRepository getMoodRepository();
+
+    /**
+     * Opens the backend configured for a deployment.
+     *
+     * @param layout The data layout holding storage.properties.
+     * @return The open provider; the caller closes it.
+     * @throws IOException If the backend is unknown or cannot be opened.
+     */
+    static StorageProvider open(DataLayout layout) throws IOException {
+        Properties settings = layout.settings(DataLayout.STORAGE_SETTINGS);
+        String backend = DataLayout.setting(settings, BACKEND_KEY, FileStorageProvider.NAME);
+        switch (backend.trim().toLowerCase(Locale.ROOT)) {
+            case FileStorageProvider.NAME:
+                return FileStorageProvider.open(layout);
+            case JdbcStorageProvider.NAME:
+                return JdbcStorageProvider.open(layout, settings);
+            default:
+                throw new IOException("Unknown storage backend: " + backend);
+        }
+    }
+}
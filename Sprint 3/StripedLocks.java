@@ -0,0 +1,34 @@
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * StripedLocks maps keys such as usernames onto a fixed set of read-write
+ * locks. Work on different keys rarely shares a lock and so runs in
+ * parallel, while work on the same key always does, without keeping a lock
+ * object per key alive.
+ */
+public final class StripedLocks {
+    private final ReentrantReadWriteLock[] stripes;
+
+    /**
+     * Creates a set of locks.
+     *
+     * @param count The number of stripes; more stripes mean fewer unrelated keys sharing a lock.
+     */
+    public StripedLocks(int count) {
+        stripes = new ReentrantReadWriteLock[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * @param key The key.
+     * @return The lock guarding the key.
+     */
+    public ReadWriteLock forKey(Object key) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16; // Spread the high bits so similar names land on different stripes
+        return stripes[Math.floorMod(hash, stripes.length)];
+    }
+}
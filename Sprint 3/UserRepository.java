@@ -0,0 +1,67 @@
+import java.io.IOException;
+
+/**
+ * UserRepository is the account logic behind registering and logging in,
+ * with no Swing attached, so it can be used from the GUI, the command line or
+ * a batch job alike.
+ */
+public interface UserRepository {
+    int MIN_LENGTH = 5;
+    int MAX_USERNAME_LENGTH = 64;
+
+    /**
+     * Checks a new username. Names become file names and account file keys,
+     * so only letters, digits, '.', '_' and '-' are allowed, and not a
+     * leading '.'.
+     *
+     * @param username The username to check.
+     * @return true if the name can be registered.
+     */
+    static boolean isValidUsername(String username) {
+        if (username.length() < MIN_LENGTH || username.length() > MAX_USERNAME_LENGTH || username.startsWith(".")) {
+            return false;
+        }
+        for (int i = 0; i < username.length(); i++) {
+            char c = username.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '.' && c != '_' && c != '-') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param password The password to check.
+     * @return true if the password is long enough to register with.
+     */
+    static boolean isValidPassword(String password) {
+        return password.length() >= MIN_LENGTH;
+    }
+
+    /**
+     * Creates an account.
+     *
+     * @param username The new username.
+     * @param password The new password, in plain text; implementations decide how it is stored.
+     * @return true if the account was created, false if the username is taken.
+     * @throws IOException If the account cannot be saved.
+     */
+    boolean register(String username, String password) throws IOException;
+
+    /**
+     * Checks a username and password.
+     *
+     * @param username The username.
+     * @param password The password entered.
+     * @return true if the account exists and the password matches.
+     * @throws IOException If the account cannot be read.
+     */
+    boolean authenticate(String username, String password) throws IOException;
+
+    /**
+     * @param username The username.
+     * @return true if the account exists.
+     * @throws IOException If the account cannot be read.
+     */
+    boolean exists(String username) throws IOException;
+}
@@ -0,0 +1,271 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * UserStore keeps the {@code user_data.txt} account file. A registration
+ * appends one {@code username:password:checksum} line instead of rewriting
+ * the file, and every line carries a CRC32 so a line torn by a crash is
+ * spotted and skipped on load; so is a last line without its newline, which
+ * a crash cut short mid-append. When the file needs cleaning up (old lines
+ * without checksums, or damaged lines) it is rewritten through a temp file
+ * and an atomic move, so a crash mid-write can never leave it half written.
+ */
+public class UserStore {
+    private final Path file;
+
+    /**
+     * Creates a store for an account file.
+     *
+     * @param file The account file.
+     */
+    public UserStore(Path file) {
+        this.file = file;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Reads every account and cleans up the file. Lines from older versions
+     * without a checksum are accepted; if any are found, or any line fails
+     * its checksum or was torn, the file is rewritten in the current format.
+     * Callers that share the file with other processes hold {@link #lock()}.
+     *
+     * @return The accounts, username to password.
+     * @throws IOException If the file exists but cannot be read or rewritten.
+     */
+    public Map<String, String> load() throws IOException {
+        Map<String, String> users = new LinkedHashMap<>();
+        if (read(users, true)) {
+            rewrite(users);
+        }
+        return users;
+    }
+
+    /**
+     * Reads every account without changing the file. Damaged lines are
+     * skipped, and so is a torn last line, which may be another process's
+     * append still under way.
+     *
+     * @param users Receives the accounts, username to password.
+     * @return true if the file needs a rewrite to clean it up (see {@link #load()}).
+     * @throws IOException If the file exists but cannot be read.
+     */
+    boolean read(Map<String, String> users) throws IOException {
+        return read(users, false);
+    }
+
+    private boolean read(Map<String, String> users, boolean report) throws IOException {
+        List<String> lines = new ArrayList<>();
+        boolean needsRewrite;
+        try {
+            needsRewrite = readLines(lines);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        if (needsRewrite && report) {
+            System.out.println("Dropping torn account record at the end of " + file);
+        }
+        for (String line : lines) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] record = parse(line);
+            if (record == null) {
+                if (report) {
+                    System.out.println("Skipping damaged account record in " + file);
+                }
+                needsRewrite = true;
+            } else {
+                users.put(record[0], record[1]);
+                needsRewrite |= record[2] == null;
+            }
+        }
+        return needsRewrite;
+    }
+
+    /**
+     * Lists the usernames in the file without changing it, for read-only
+     * scans such as {@link MoodAnalytics}. Damaged lines are skipped.
+     *
+     * @return The usernames, in file order.
+     * @throws IOException If the file exists but cannot be read.
+     */
+    public List<String> usernames() throws IOException {
+        List<String> names = new ArrayList<>();
+        List<String> lines = new ArrayList<>();
+        try {
+            readLines(lines);
+        } catch (NoSuchFileException e) {
+            return names; // No accounts in this shard yet
+        }
+        for (String line : lines) {
+            String[] record = line.isEmpty() ? null : parse(line);
+            if (record != null) {
+                names.add(record[0]);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Appends one account and forces it to disk.
+     *
+     * @param username The username.
+     * @param password The stored password.
+     * @throws IOException If the append fails.
+     */
+    public void append(String username, String password) throws IOException {
+        append(username, password, true);
+    }
+
+    /**
+     * Appends one account.
+     *
+     * @param username The username.
+     * @param password The stored password.
+     * @param force true to force it to disk before returning; false when a journal holds it.
+     * @throws IOException If the append fails.
+     */
+    public void append(String username, String password, boolean force) throws IOException {
+        byte[] line = (format(username, password) + "\n").getBytes(StandardCharsets.UTF_8);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            ByteBuffer buffer = ByteBuffer.wrap(line);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (force) {
+                channel.force(false);
+            }
+        }
+    }
+
+    /**
+     * Replaces the whole file with the given accounts, atomically.
+     *
+     * @param users The accounts, username to password.
+     * @throws IOException If the file cannot be written.
+     */
+    public void rewrite(Map<String, String> users) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, String> entry : users.entrySet()) {
+                writer.write(format(entry.getKey(), entry.getValue()));
+                writer.newLine();
+            }
+        }
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Locks the account file against writers in this and other processes.
+     * The lock lives in a separate {@code .lock} file because a rewrite
+     * replaces the account file itself.
+     *
+     * @return The held lock; close it to release.
+     * @throws IOException If the lock cannot be taken.
+     */
+    FileMutex lock() throws IOException {
+        return FileMutex.acquire(file.resolveSibling(file.getFileName() + ".lock"));
+    }
+
+    /**
+     * Describes the file's current contents by size and modification time, so
+     * a cached copy can tell that another process has changed it.
+     *
+     * @return The version; equal versions mean the file is unchanged.
+     * @throws IOException If the file's attributes cannot be read.
+     */
+    String version() throws IOException {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return attributes.size() + "@" + attributes.lastModifiedTime().toMillis();
+        } catch (NoSuchFileException e) {
+            return "missing";
+        }
+    }
+
+    /**
+     * Formats one account line.
+     *
+     * @return The line, without a newline.
+     */
+    static String format(String username, String password) {
+        String body = username + ":" + password;
+        return body + ":" + checksum(body);
+    }
+
+    /**
+     * Parses one complete account line; a line cut short by a crash is
+     * dropped before it gets here.
+     *
+     * @param line The line, without its newline.
+     * @return {username, password, checksum}; the checksum is null for an
+     *         old-format line. Null if the line is damaged.
+     */
+    static String[] parse(String line) {
+        String[] parts = line.split(":");
+        if (parts.length == 2) {
+            if (PasswordHasher.isHash(parts[1])) {
+                return null; // Hashes came with checksums, so this line lost its checksum to damage
+            }
+            return new String[] {parts[0], parts[1], null}; // Written before checksums were added
+        }
+        int checksumAt = line.lastIndexOf(':');
+        int passwordAt = line.indexOf(':');
+        if (parts.length < 3 || passwordAt == checksumAt) {
+            return null;
+        }
+        String body = line.substring(0, checksumAt);
+        String checksum = line.substring(checksumAt + 1);
+        if (!checksum.equals(checksum(body))) {
+            return null;
+        }
+        return new String[] {body.substring(0, passwordAt), body.substring(passwordAt + 1), checksum};
+    }
+
+    private static String checksum(String body) {
+        CRC32 crc = new CRC32();
+        crc.update(body.getBytes(StandardCharsets.UTF_8));
+        return Long.toHexString(crc.getValue());
+    }
+
+    /**
+     * Reads the file's complete lines. Every version ends each line with a
+     * newline, so a last line without one was torn mid-append and is left
+     * out; the next append would otherwise be glued onto it.
+     *
+     * @param lines Receives the complete lines, without line endings.
+     * @return true if a torn last line was left out.
+     */
+    private boolean readLines(List<String> lines) throws IOException {
+        String text = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        int start = 0;
+        int newline;
+        while ((newline = text.indexOf('\n', start)) >= 0) {
+            int end = newline > start && text.charAt(newline - 1) == '\r' ? newline - 1 : newline;
+            lines.add(text.substring(start, end));
+            start = newline + 1;
+        }
+        return start < text.length();
+    }
+}
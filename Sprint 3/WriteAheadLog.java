@@ -0,0 +1,746 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * WriteAheadLog journals every write to the account shards and mood logs of
+ * a data directory in one file, ahead of the write to the store itself. A
+ * write waits for its journal record to reach disk, as the
+ * {@link Durability} policy requires, and the stores are never forced on
+ * their own, so writers for every user share the same group-committed
+ * forces.
+ *
+ * Records go into numbered segment files under {@code wal/}:
+ *
+ * <pre>
+ * header : int magic "MWAL", short version, short reserved, long sequence
+ * record : int length, int CRC32 of the body, then the body:
+ *          byte type, file relative to the data directory, long target, int fields, the fields
+ * </pre>
+ *
+ * with every string written as an int length and its UTF-8 bytes. A mood
+ * record holds whole mood lines, a removal the day removed, and an account
+ * record a username and stored password. Mood records and removals also
+ * hold their target, the length of the mood log before the write; replay
+ * skips a record whose log is already longer than that, since the write
+ * reached the log, so a restart does not append the same lines again.
+ * Since a compaction shrinks the log, a journaled log checkpoints before
+ * compacting, and replay holds compaction off.
+ * Account records replace a whole entry, so replaying one twice does no
+ * harm. When a write's change fails after its record was appended, an abort
+ * record naming the failed record's segment and offset is appended, and
+ * replay skips the failed record. Segments written before targets were
+ * added (version 1) replay as they always did.
+ *
+ * A checkpoint runs every {@code wal.checkpoint.seconds} (60) and whenever
+ * the current segment passes {@code wal.segment.megabytes} (16). It starts a
+ * new segment, forces every store written since the last checkpoint and
+ * deletes the older segments. Opening the journal replays whatever segments
+ * are left, so a restart after a crash only reads the writes since the last
+ * checkpoint, however much data the stores hold. The settings come from
+ * {@code storage.properties} or {@code mha.} system properties;
+ * {@code wal=off} leaves the stores to force their own writes.
+ *
+ * One process journals a data directory at a time. In a second process,
+ * such as the command line next to the app, the stores are read-only and
+ * refuse writes: the first process's next replay could otherwise put back a
+ * mood the second one had replaced. The same goes for a process that has
+ * the journal turned off while another is journaling.
+ */
+public class WriteAheadLog implements Closeable {
+    static final int MAGIC = 0x4D57414C; // "MWAL"
+    static final short VERSION = 2;
+    private static final short UNTARGETED_VERSION = 1; // Records without targets
+    static final int HEADER_SIZE = 16;
+    static final byte MOODS = 'M';
+    static final byte REMOVAL = 'R';
+    static final byte ACCOUNT = 'A';
+    static final byte ABORT = 'X';
+    private static final String ENABLED_KEY = "wal";
+    private static final String PERIOD_KEY = "wal.checkpoint.seconds";
+    private static final String SEGMENT_KEY = "wal.segment.megabytes";
+    private static final int DEFAULT_PERIOD_SECONDS = 60;
+    private static final int DEFAULT_SEGMENT_MEGABYTES = 16;
+    private static final int MAX_REPLAY_LOGS = 64;
+    private static final OperationMetrics CHECKPOINTS = Metrics.operation("checkpoint");
+
+    private final DataLayout layout;
+    private final Durability durability;
+    private final Path directory;
+    // Held for reading from a record's append until its store is written, so a checkpoint never splits the two
+    private final ReentrantReadWriteLock barrier = new ReentrantReadWriteLock();
+    private final Object checkpointLock = new Object();
+    private final List<Path> retired = new ArrayList<>(); // Segments whose stores are not yet forced
+    private volatile boolean open;
+    private volatile boolean heldElsewhere; // Another process journals the directory, so writes here are refused
+    private FileMutex owner;
+    private GroupCommit commit;
+    private ScheduledExecutorService checkpointer;
+    private long segmentBytes;
+    private long sequence;
+    private Path segment;
+    private FileChannel channel;
+    private long size; // Bytes in the current segment
+    private long appended; // Record bytes appended since opening, across segments
+    private Set<Path> dirty = new HashSet<>(); // Stores written since the last checkpoint
+    private boolean checkpointQueued;
+
+    /**
+     * A write to a store, run once its record is journaled.
+     */
+    interface Change {
+        void apply() throws IOException;
+    }
+
+    /**
+     * Creates a journal for a data directory, forced as its storage settings
+     * say. Nothing is read or written until {@link #open()}.
+     *
+     * @param layout The data layout.
+     */
+    public WriteAheadLog(DataLayout layout) {
+        this(layout, Durability.configured(layout));
+    }
+
+    /**
+     * Creates a journal for a data directory. Nothing is read or written
+     * until {@link #open()}.
+     *
+     * @param layout The data layout.
+     * @param durability When journaled writes are forced to disk.
+     */
+    public WriteAheadLog(DataLayout layout, Durability durability) {
+        this.layout = layout;
+        this.durability = durability;
+        this.directory = layout.getRoot().resolve("wal");
+    }
+
+    /**
+     * Replays the segments left by the last run into the stores, then starts
+     * journaling. Until this returns, and if it returns false because the
+     * journal is turned off, stores that are handed this journal force their
+     * own writes. If it returns false because another process is journaling
+     * the directory, they refuse writes instead (see {@link #checkWritable()}).
+     *
+     * @return true if writes are journaled; false if the journal is turned
+     *         off or another process is journaling the directory.
+     * @throws IOException If the journal cannot be replayed or a new segment cannot be created.
+     */
+    public synchronized boolean open() throws IOException {
+        if (open) {
+            return true;
+        }
+        Properties settings = layout.settings(DataLayout.STORAGE_SETTINGS);
+        String enabled = DataLayout.setting(settings, ENABLED_KEY, "on");
+        if (enabled.trim().equalsIgnoreCase("off")) {
+            if (Files.isDirectory(directory)) { // Writes without the journal are only safe if nobody is journaling
+                FileMutex probe = FileMutex.tryAcquire(directory.resolve("wal.lock"));
+                heldElsewhere = probe == null;
+                if (probe != null) {
+                    probe.close();
+                }
+            }
+            return false;
+        }
+        Files.createDirectories(directory);
+        owner = FileMutex.tryAcquire(directory.resolve("wal.lock"));
+        if (owner == null) {
+            heldElsewhere = true;
+            System.out.println("Another process is journaling " + layout.getRoot() + "; its data is read-only here");
+            return false;
+        }
+        try {
+            List<Path> segments = segments();
+            long start = System.nanoTime();
+            int replayed = replay(segments);
+            if (replayed > 0) {
+                System.out.printf("Replayed %d journal record(s) in %d ms%n", replayed,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+            for (Path replayedSegment : segments) {
+                Files.delete(replayedSegment);
+            }
+            sequence = segments.isEmpty() ? 0 : sequenceOf(segments.get(segments.size() - 1)) + 1;
+            startSegment();
+        } catch (IOException | RuntimeException e) {
+            owner.close();
+            throw e;
+        }
+        segmentBytes = DataLayout.intSetting(settings, SEGMENT_KEY, DEFAULT_SEGMENT_MEGABYTES, 1) * 1024L * 1024L;
+        int periodSeconds = DataLayout.intSetting(settings, PERIOD_KEY, DEFAULT_PERIOD_SECONDS, 1);
+        commit = durability.newGroupCommit(this::force);
+        checkpointer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "journal-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checkpointer.scheduleWithFixedDelay(this::checkpointQuietly, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+        open = true;
+        return true;
+    }
+
+    /**
+     * @return true if writes are being journaled.
+     */
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * @return true if another process is journaling the data directory, so
+     *         its stores are read-only in this one.
+     */
+    public boolean isHeldElsewhere() {
+        return heldElsewhere;
+    }
+
+    /**
+     * Refuses a write made without this journal while another process is
+     * journaling the directory, since that process's next replay could undo it.
+     *
+     * @throws IOException If another process is journaling the directory.
+     */
+    void checkWritable() throws IOException {
+        if (heldElsewhere) {
+            throw new IOException("The data in " + layout.getRoot()
+                    + " is read-only here while another process is using it");
+        }
+    }
+
+    /**
+     * Journals a write and then makes it. The record is appended but not
+     * forced; call {@link #awaitDurable(long)} with the returned position,
+     * outside any lock, before acknowledging the write. A change that fails
+     * is cancelled before the failure is thrown, so the next replay does not
+     * make it after all.
+     *
+     * @param file The store written.
+     * @param type What kind of write it is.
+     * @param target The length of a mood log before the write, or -1 for an account shard.
+     * @param fields The record's fields.
+     * @param change Writes the store.
+     * @return The journal position that covers the record.
+     * @throws IOException If the journal is closed, the record cannot be appended or the change fails.
+     */
+    long write(Path file, byte type, long target, List<String> fields, Change change) throws IOException {
+        byte[] record = encode(type, relativize(file), target, fields);
+        boolean locked = true;
+        barrier.readLock().lock();
+        try {
+            long position;
+            long recordSequence;
+            long recordOffset;
+            synchronized (this) {
+                recordSequence = sequence;
+                recordOffset = size;
+                position = append(record, file);
+            }
+            try {
+                change.apply();
+            } catch (IOException | RuntimeException e) {
+                barrier.readLock().unlock(); // Cancelling may need a checkpoint, which waits for the barrier
+                locked = false;
+                cancel(file, recordSequence, recordOffset, e);
+                throw e;
+            }
+            return position;
+        } finally {
+            if (locked) {
+                barrier.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Appends a record to the current segment, queuing a checkpoint once the
+     * segment is full.
+     *
+     * @return The journal position that covers the record.
+     */
+    private synchronized long append(byte[] record, Path file) throws IOException {
+        if (!open) {
+            throw new IOException("Journal is closed");
+        }
+        writeFully(channel, ByteBuffer.wrap(record), size);
+        size += record.length;
+        appended += record.length;
+        dirty.add(file);
+        if (size >= segmentBytes && !checkpointQueued) {
+            checkpointQueued = true;
+            checkpointer.execute(this::checkpointQuietly);
+        }
+        return appended;
+    }
+
+    /**
+     * Makes sure a record whose change failed is never replayed: an abort
+     * record cancels it, or, if that cannot be journaled either, a
+     * checkpoint retires the segment holding it.
+     */
+    private void cancel(Path file, long recordSequence, long recordOffset, Exception failure) {
+        try {
+            List<String> fields = Arrays.asList(Long.toString(recordSequence), Long.toString(recordOffset));
+            commit.awaitDurable(append(encode(ABORT, relativize(file), -1, fields), file));
+            return;
+        } catch (IOException e) {
+            failure.addSuppressed(e);
+        }
+        try {
+            checkpoint();
+        } catch (IOException e) {
+            failure.addSuppressed(e);
+            System.out.println("Failed to cancel a journaled write to " + file + "; the next replay may make it: "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Waits until the journal is on disk up to a position, as the durability
+     * policy requires; writers waiting together share one force.
+     *
+     * @param position A position returned by a write.
+     * @throws IOException If the force fails.
+     */
+    void awaitDurable(long position) throws IOException {
+        commit.awaitDurable(position);
+    }
+
+    /**
+     * @return The number of times the journal has been forced to disk for waiting writes.
+     */
+    public long getForceCount() {
+        return commit == null ? 0 : commit.getForces();
+    }
+
+    /**
+     * Starts a new segment, forces every store written before it and deletes
+     * the older segments. Writes wait only while the segment is switched.
+     *
+     * @throws IOException If a store cannot be forced; its segments are kept for the next checkpoint.
+     */
+    public void checkpoint() throws IOException {
+        synchronized (checkpointLock) {
+            long start = CHECKPOINTS.start();
+            Set<Path> stores;
+            barrier.writeLock().lock();
+            try {
+                synchronized (this) {
+                    checkpointQueued = false;
+                    if (!open) {
+                        return;
+                    }
+                    if (size > HEADER_SIZE) {
+                        if (commit.forcesWrites()) {
+                            channel.force(false);
+                            commit.markDurable(appended);
+                        }
+                        channel.close();
+                        retired.add(segment);
+                        sequence++;
+                        startSegment();
+                    }
+                    stores = dirty;
+                    dirty = new HashSet<>();
+                }
+            } finally {
+                barrier.writeLock().unlock();
+            }
+            try {
+                for (Path store : stores) {
+                    forceFile(store);
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    dirty.addAll(stores);
+                }
+                CHECKPOINTS.failed(start);
+                throw e;
+            }
+            List<Path> done;
+            synchronized (this) {
+                done = new ArrayList<>(retired);
+                retired.clear();
+            }
+            for (Path old : done) {
+                Files.deleteIfExists(old);
+            }
+            CHECKPOINTS.succeeded(start);
+        }
+    }
+
+    /**
+     * Checkpoints one last time and stops journaling. Stores that still hold
+     * this journal fail their next write.
+     */
+    @Override
+    public void close() throws IOException {
+        ScheduledExecutorService scheduler;
+        synchronized (this) {
+            if (!open) {
+                return;
+            }
+            scheduler = checkpointer;
+        }
+        scheduler.shutdownNow();
+        try {
+            checkpoint();
+        } finally {
+            synchronized (this) {
+                open = false;
+                try {
+                    channel.close();
+                } finally {
+                    owner.close();
+                }
+            }
+        }
+    }
+
+    private void checkpointQuietly() {
+        try {
+            checkpoint();
+        } catch (IOException e) {
+            System.out.println("Failed to checkpoint the journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Forces the current segment for the group commit. Runs without the
+     * journal's lock so appends continue while the disk catches up.
+     */
+    private void force() throws IOException {
+        FileChannel current;
+        synchronized (this) {
+            if (!open) {
+                return;
+            }
+            current = channel;
+        }
+        try {
+            current.force(false);
+        } catch (ClosedChannelException e) {
+            synchronized (this) {
+                if (open && channel == current) {
+                    throw e;
+                }
+                // Retired by a checkpoint, which forced it first
+            }
+        }
+    }
+
+    private void startSegment() throws IOException {
+        segment = directory.resolve(String.format("%016x.wal", sequence));
+        channel = FileChannel.open(segment, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putShort(VERSION).putShort((short) 0).putLong(sequence).flip();
+        size = writeFully(channel, header, 0);
+    }
+
+    /**
+     * One record read back from a segment.
+     */
+    private interface RecordVisitor {
+        void visit(long segmentSequence, long offset, short version, byte[] body) throws IOException;
+    }
+
+    /**
+     * Applies every record of the given segments in order, except the ones
+     * cancelled by an abort record, then forces the stores they touched.
+     * Replay stops at the first torn or damaged record: a torn record is the
+     * write a crash interrupted, which was never acknowledged.
+     *
+     * @return The number of records applied.
+     */
+    private int replay(List<Path> segments) throws IOException {
+        Set<String> aborted = new HashSet<>();
+        readRecords(segments, false, (segmentSequence, offset, version, body) -> {
+            if (body[0] == ABORT) {
+                String[] fields = decode(body, version).fields;
+                aborted.add(fields[0] + ":" + fields[1]);
+            }
+        });
+        Map<Path, MoodLog> logs = new LinkedHashMap<>(16, 0.75f, true);
+        Map<Path, Map<String, String>> accounts = new HashMap<>();
+        Set<Path> touched = new HashSet<>();
+        int[] records = {0};
+        try {
+            readRecords(segments, true, (segmentSequence, offset, version, body) -> {
+                if (body[0] != ABORT && !aborted.contains(segmentSequence + ":" + offset)) {
+                    Path store = apply(decode(body, version), logs, accounts);
+                    if (store != null) {
+                        touched.add(store);
+                        records[0]++;
+                    }
+                }
+            });
+        } finally {
+            for (MoodLog log : logs.values()) {
+                log.close();
+            }
+        }
+        for (Map.Entry<Path, Map<String, String>> shard : accounts.entrySet()) {
+            new UserStore(shard.getKey()).rewrite(shard.getValue());
+            touched.remove(shard.getKey()); // Rewriting forced it
+        }
+        for (Path store : touched) {
+            forceFile(store);
+        }
+        return records[0];
+    }
+
+    /**
+     * Reads every record of the given segments in order, up to the first
+     * torn or damaged one.
+     *
+     * @param report true to say where a damaged record stopped the reading.
+     */
+    private static void readRecords(List<Path> segments, boolean report, RecordVisitor visitor) throws IOException {
+        for (int i = 0; i < segments.size(); i++) {
+            Path path = segments.get(i);
+            try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+                long end = in.size();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                if (end < HEADER_SIZE || readFully(in, header, 0).getInt() != MAGIC) {
+                    throw new IOException("Not a journal segment: " + path);
+                }
+                short version = header.getShort();
+                if (version != VERSION && version != UNTARGETED_VERSION) {
+                    throw new IOException("Unknown journal version " + version + ": " + path);
+                }
+                long segmentSequence = sequenceOf(path);
+                long position = HEADER_SIZE;
+                byte[] body;
+                while ((body = readRecord(in, position, end)) != null) {
+                    visitor.visit(segmentSequence, position, version, body);
+                    position += 8 + body.length;
+                }
+                if (position < end && i < segments.size() - 1) {
+                    if (report) {
+                        System.out.println("Stopped replaying the journal at a damaged record in " + path);
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads one record's body, checking its length and checksum.
+     *
+     * @return The body, or null at the end of the segment or at a torn or damaged record.
+     */
+    private static byte[] readRecord(FileChannel in, long position, long end) throws IOException {
+        if (end - position < 8) {
+            return null;
+        }
+        ByteBuffer head = readFully(in, ByteBuffer.allocate(8), position);
+        int length = head.getInt();
+        int checksum = head.getInt();
+        if (length <= 0 || length > end - position - 8) {
+            return null;
+        }
+        byte[] body = readFully(in, ByteBuffer.allocate(length), position + 8).array();
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue() == checksum ? body : null;
+    }
+
+    /**
+     * A decoded record body.
+     */
+    private static final class Record {
+        byte type;
+        String file;
+        long target = -1; // Unknown in version 1 records, which are always applied
+        String[] fields;
+    }
+
+    private static Record decode(byte[] body, short version) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        Record record = new Record();
+        record.type = in.readByte();
+        record.file = readString(in);
+        if (version != UNTARGETED_VERSION) {
+            record.target = in.readLong();
+        }
+        record.fields = new String[in.readInt()];
+        for (int i = 0; i < record.fields.length; i++) {
+            record.fields[i] = readString(in);
+        }
+        return record;
+    }
+
+    /**
+     * Applies one record to its store, unless it targets a mood log that
+     * already holds the write.
+     *
+     * @return The store written, or null if the record was skipped.
+     */
+    private Path apply(Record record, Map<Path, MoodLog> logs, Map<Path, Map<String, String>> accounts)
+            throws IOException {
+        Path file = layout.getRoot().resolve(record.file);
+        String[] fields = record.fields;
+        switch (record.type) {
+            case MOODS:
+                MoodLog log = replayLog(logs, file);
+                if (record.target >= 0 && log.length() > record.target) {
+                    return null;
+                }
+                List<MoodEntry> entries = new ArrayList<>(fields.length);
+                for (String line : fields) {
+                    entries.add(MoodEntry.parse(line));
+                }
+                log.putAll(entries);
+                break;
+            case REMOVAL:
+                MoodLog removedFrom = replayLog(logs, file);
+                if (record.target >= 0 && removedFrom.length() > record.target) {
+                    return null;
+                }
+                removedFrom.remove(LocalDate.parse(fields[0]));
+                break;
+            case ACCOUNT:
+                Map<String, String> users = accounts.get(file);
+                if (users == null) {
+                    Files.createDirectories(file.getParent());
+                    users = new LinkedHashMap<>();
+                    new UserStore(file).read(users); // Rewritten after the replay in any case
+                    accounts.put(file, users);
+                }
+                users.put(fields[0], fields[1]);
+                break;
+            default:
+                throw new IOException("Unknown journal record type " + record.type);
+        }
+        return file;
+    }
+
+    /**
+     * Opens a mood log for replay, closing the least recently replayed one
+     * when too many are open. Closing does not force; the stores are forced
+     * together at the end.
+     */
+    private static MoodLog replayLog(Map<Path, MoodLog> logs, Path file) throws IOException {
+        MoodLog log = logs.get(file);
+        if (log == null) {
+            Files.createDirectories(file.getParent());
+            log = MoodLog.open(file, Durability.OS);
+            log.holdCompaction();
+            logs.put(file, log);
+            if (logs.size() > MAX_REPLAY_LOGS) {
+                Map.Entry<Path, MoodLog> eldest = logs.entrySet().iterator().next();
+                logs.remove(eldest.getKey());
+                eldest.getValue().close();
+            }
+        }
+        return log;
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            List<Path> segments = new ArrayList<>();
+            files.filter(path -> path.getFileName().toString().matches("[0-9a-f]{16}\\.wal")).sorted()
+                    .forEach(segments::add);
+            return segments;
+        }
+    }
+
+    private static long sequenceOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseUnsignedLong(name.substring(0, name.indexOf('.')), 16);
+    }
+
+    private String relativize(Path file) {
+        return layout.getRoot().toAbsolutePath().relativize(file.toAbsolutePath()).toString()
+                .replace(File.separatorChar, '/');
+    }
+
+    private static byte[] encode(byte type, String file, long target, List<String> fields) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(body);
+        out.writeByte(type);
+        writeString(out, file);
+        out.writeLong(target);
+        out.writeInt(fields.size());
+        for (String field : fields) {
+            writeString(out, field);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(body.toByteArray());
+        ByteBuffer record = ByteBuffer.allocate(8 + body.size());
+        record.putInt(body.size()).putInt((int) crc.getValue()).put(body.toByteArray());
+        return record.array();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Forces a store written through another channel, or by a process that
+     * has since exited; the operating system keeps one set of pages per file.
+     */
+    private static void forceFile(Path file) throws IOException {
+        try (FileChannel store = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            store.force(false);
+        } catch (NoSuchFileException e) {
+            // Deleted since it was written, so there is nothing to keep
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Journal segment ended early");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static int writeFully(FileChannel out, ByteBuffer buffer, long position) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += out.write(buffer, position + written);
+        }
+        return written;
+    }
+}